@@ -0,0 +1,348 @@
+import java.util.*;
+/**
+ * AcceleratedKMeans runs the k means iterations of a KMeans_Clustering with the triangle
+ * inequality used to skip distance evaluations that cannot change a gene's cluster.
+ *
+ * Hamerly's variant keeps, for each gene, an upper bound on the distance to its own mean and
+ * one lower bound on the distance to every other mean. Elkan's variant keeps a lower bound per
+ * gene per mean plus all mean-to-mean distances, which skips more work when k is large at the
+ * cost of n*k memory. Both need a metric that obeys the triangle inequality (Euclidean or
+ * Manhattan, not squared Euclidean or the correlation distances) and data with no missing values:
+ * a masked distance is scaled by the fraction of experiments a gene has, so the distances between
+ * means and how far they moved say nothing about it. Under those conditions both give the same
+ * clustering as the plain algorithm from the same starting assignment, which EngineCheck checks;
+ * otherwise KMeans_Clustering runs the plain algorithm instead.
+ *
+ * As in the plain algorithm, a cluster that loses all its genes is given a random gene from
+ * another cluster; that gene's bounds are reset so they are recomputed on the next pass.
+ */
+class AcceleratedKMeans
+{
+    private final KMeans_Clustering c;
+    private final ExpressionMatrix matrix;
+    private final DistanceMetric metric;
+    private final boolean elkan;
+    private final int n, k, d;
+
+    //upper bound on the distance from each gene to its own mean
+    private final double[] upper;
+    //Hamerly: one lower bound per gene; Elkan: k lower bounds per gene (gene*k + mean)
+    private final double[] lower;
+    //distance between every pair of means (Elkan only) and half the distance to each mean's nearest other mean
+    private final double[] meanDist;
+    private final double[] halfNearestMean;
+    //how far each mean moved in the last update
+    private final double[] drift;
+    //a mean before its update, to measure how far it moved
+    private final double[] previous;
+    private int iterations;
+    //genes that changed cluster in the last pass
+    private int genesMoved;
+    //every gene-to-mean distance computed, to show how many the bounds skip
+    private final Instrumentation.Counter distances;
+
+    AcceleratedKMeans(KMeans_Clustering c, boolean elkan)
+    {
+        this.c = c;
+        this.matrix = c.getMetricMatrix();
+        this.metric = c.getDistanceMetric();
+        if(!metric.isTrueMetric()){
+            throw new IllegalArgumentException("The " + metric + " distance does not obey the triangle inequality");
+        }
+        if(matrix.hasMissingValues()){
+            throw new IllegalArgumentException("The triangle inequality bounds do not hold for data with missing values");
+        }
+        this.elkan = elkan;
+        n = c.getNumGenes();
+        k = c.k;
+        d = c.getNumExperiments();
+        upper = new double[n];
+        lower = new double[elkan ? n*k : n];
+        meanDist = elkan ? new double[k*k] : null;
+        halfNearestMean = new double[k];
+        drift = new double[k];
+        previous = new double[d];
+        distances = c.getInstrumentation().counter("distances");
+    }
+
+    public int getIterations(){
+        return iterations;
+    }
+
+    /**
+     * Runs to convergence starting from the current assignment and cluster sums of the clustering.
+     */
+    public void run(){
+        updateMeans();
+        initialAssignment();
+        populateEmptyClusters();
+        iterations = 1;
+        Instrumentation instrumentation = c.getInstrumentation();
+        Instrumentation.Timer meansTimer = instrumentation.timer("means");
+        Instrumentation.Timer assignTimer = instrumentation.timer("assign");
+        boolean changed = true;
+        while(changed){
+            long startTime = meansTimer.start();
+            long distancesBefore = distances.get();
+            updateMeans();
+            updateBounds();
+            if(elkan){
+                computeMeanDistances();
+            }
+            else{
+                computeHalfNearestMean();
+            }
+            long meansNanos = meansTimer.stop(startTime);
+            startTime = assignTimer.start();
+            changed = elkan ? elkanPass() : hamerlyPass();
+            changed |= populateEmptyClusters();
+            long assignNanos = assignTimer.stop(startTime);
+            iterations++;
+            instrumentation.event("iteration", "iteration", iterations, "moved", genesMoved,
+                    "distances", distances.get() - distancesBefore, "means_ms", meansNanos/1e6, "assign_ms", assignNanos/1e6);
+        }
+        //the last pass moved nothing, so the means already match the assignment
+    }
+
+    //full pass: every distance from every gene to every mean
+    private void initialAssignment(){
+        runPass(gene -> {
+            int best = 0;
+            double bestDist = Double.MAX_VALUE, secondDist = Double.MAX_VALUE;
+            for(int j = 0; j<k; j++){
+                double dist = distance(gene, j);
+                if(elkan){
+                    lower[gene*k+j] = dist;
+                }
+                if(dist<bestDist){
+                    secondDist = bestDist;
+                    bestDist = dist;
+                    best = j;
+                }
+                else if(dist<secondDist){
+                    secondDist = dist;
+                }
+            }
+            upper[gene] = bestDist;
+            if(!elkan){
+                lower[gene] = secondDist;
+            }
+            return best;
+        });
+    }
+
+    private boolean hamerlyPass(){
+        return runPass(gene -> {
+            int a = c.assignment[gene];
+            double bound = Math.max(halfNearestMean[a], lower[gene]);
+            if(upper[gene] <= bound){
+                return a;
+            }
+            //tighten the upper bound and test again before looking at every mean
+            upper[gene] = distance(gene, a);
+            if(upper[gene] <= bound){
+                return a;
+            }
+            int best = a;
+            double bestDist = upper[gene], secondDist = Double.MAX_VALUE;
+            for(int j = 0; j<k; j++){
+                if(j == a){
+                    continue;
+                }
+                double dist = distance(gene, j);
+                if(dist<bestDist || (dist==bestDist && j<best)){
+                    secondDist = bestDist;
+                    bestDist = dist;
+                    best = j;
+                }
+                else if(dist<secondDist){
+                    secondDist = dist;
+                }
+            }
+            upper[gene] = bestDist;
+            lower[gene] = secondDist;
+            return best;
+        });
+    }
+
+    private boolean elkanPass(){
+        return runPass(gene -> {
+            int a = c.assignment[gene];
+            if(upper[gene] <= halfNearestMean[a]){
+                return a;
+            }
+            boolean stale = true;
+            int base = gene*k;
+            for(int j = 0; j<k; j++){
+                if(j == a || upper[gene] <= lower[base+j] || upper[gene] <= 0.5*meanDist[a*k+j]){
+                    continue;
+                }
+                if(stale){
+                    upper[gene] = distance(gene, a);
+                    lower[base+a] = upper[gene];
+                    stale = false;
+                    if(upper[gene] <= lower[base+j] || upper[gene] <= 0.5*meanDist[a*k+j]){
+                        continue;
+                    }
+                }
+                double dist = distance(gene, j);
+                lower[base+j] = dist;
+                if(dist<upper[gene] || (dist==upper[gene] && j<a)){
+                    a = j;
+                    upper[gene] = dist;
+                }
+            }
+            return a;
+        });
+    }
+
+    //distance from a gene to a mean, counted for the instrumentation
+    private double distance(int gene, int mean){
+        distances.increment();
+        return c.distanceToVector(gene, c.means[mean]);
+    }
+
+    //work done for one gene; returns the gene's new cluster
+    private interface GeneStep {
+        int apply(int gene);
+    }
+
+    /**
+     * Applies the step to every gene in parallel chunks, records the genes that changed cluster,
+     * then updates cluster sizes and sums in chunk order. Returns true if any gene moved.
+     */
+    private boolean runPass(GeneStep step){
+        int numChunks = Clustering.getNumChunks(n);
+        int[][] partialMoves = new int[numChunks][];
+        int[] numMoves = new int[numChunks];
+        c.forEachChunk(n, (chunk, start, end) -> {
+            int[] moves = new int[16];
+            int moved = 0;
+            for(int i = start; i<end; i++){
+                int from = c.assignment[i];
+                int to = step.apply(i);
+                if(to != from){
+                    if(2*moved+2 > moves.length){
+                        moves = Arrays.copyOf(moves, 2*moves.length);
+                    }
+                    moves[2*moved] = i;
+                    moves[2*moved+1] = to;
+                    moved++;
+                }
+            }
+            partialMoves[chunk] = moves;
+            numMoves[chunk] = moved;
+        });
+        boolean changed = false;
+        genesMoved = 0;
+        for(int ch = 0; ch<numChunks; ch++){
+            genesMoved += numMoves[ch];
+            for(int m = 0; m<numMoves[ch]; m++){
+                int gene = partialMoves[ch][2*m];
+                int from = c.assignment[gene];
+                int to = partialMoves[ch][2*m+1];
+                matrix.subtractRowFrom(gene, c.clusterSums[from]);
+                matrix.addRowTo(gene, c.clusterSums[to]);
+                if(c.clusterCounts != null){
+                    matrix.subtractPresenceFrom(gene, c.clusterCounts[from]);
+                    matrix.addPresenceTo(gene, c.clusterCounts[to]);
+                }
+                c.clusterSizes[from]--;
+                c.clusterSizes[to]++;
+                c.assignment[gene] = to;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    //re-seeds empty clusters the same way KMeans_Clustering does; returns true if any gene moved
+    private boolean populateEmptyClusters(){
+        boolean moved = false;
+        for(int j = 0; j<k; j++){
+            if(c.clusterSizes[j] == 0){
+                int gene = c.populate(j);
+                upper[gene] = Double.MAX_VALUE;
+                if(!elkan){
+                    lower[gene] = 0;
+                }
+                moved = true;
+            }
+        }
+        return moved;
+    }
+
+    //recomputes every mean from the running sums and records how far each one moved
+    private void updateMeans(){
+        for(int j = 0; j<k; j++){
+            if(c.clusterSizes[j] == 0){
+                drift[j] = 0;
+                continue;
+            }
+            System.arraycopy(c.means[j], 0, previous, 0, d);
+            ExpressionMatrix.divideSum(c.clusterSums[j], c.clusterSizes[j], c.clusterCounts == null ? null : c.clusterCounts[j], c.means[j]);
+            drift[j] = metric.distance(previous, 0, c.means[j], 0, d);
+        }
+    }
+
+    //loosens every bound by the distance its mean(s) moved
+    private void updateBounds(){
+        //largest and second largest drift, so each gene can subtract the largest drift of any other mean
+        int maxIndex = 0;
+        double max = -1, second = 0;
+        for(int j = 0; j<k; j++){
+            if(drift[j] > max){
+                second = Math.max(max, 0);
+                max = drift[j];
+                maxIndex = j;
+            }
+            else if(drift[j] > second){
+                second = drift[j];
+            }
+        }
+        final int largest = maxIndex;
+        final double largestDrift = max, secondDrift = second;
+        c.forEachChunk(n, (chunk, start, end) -> {
+            for(int i = start; i<end; i++){
+                int a = c.assignment[i];
+                upper[i] += drift[a];
+                if(elkan){
+                    int base = i*k;
+                    for(int j = 0; j<k; j++){
+                        lower[base+j] = Math.max(0, lower[base+j] - drift[j]);
+                    }
+                }
+                else{
+                    lower[i] -= (a == largest) ? secondDrift : largestDrift;
+                }
+            }
+        });
+    }
+
+    private void computeHalfNearestMean(){
+        Arrays.fill(halfNearestMean, Double.MAX_VALUE);
+        for(int a = 0; a<k; a++){
+            for(int b = a+1; b<k; b++){
+                double dist = 0.5*distanceBetweenMeans(a, b);
+                halfNearestMean[a] = Math.min(halfNearestMean[a], dist);
+                halfNearestMean[b] = Math.min(halfNearestMean[b], dist);
+            }
+        }
+    }
+
+    private void computeMeanDistances(){
+        Arrays.fill(halfNearestMean, Double.MAX_VALUE);
+        for(int a = 0; a<k; a++){
+            for(int b = a+1; b<k; b++){
+                double dist = distanceBetweenMeans(a, b);
+                meanDist[a*k+b] = meanDist[b*k+a] = dist;
+                halfNearestMean[a] = Math.min(halfNearestMean[a], 0.5*dist);
+                halfNearestMean[b] = Math.min(halfNearestMean[b], 0.5*dist);
+            }
+        }
+    }
+
+    private double distanceBetweenMeans(int a, int b){
+        return metric.distance(c.means[a], 0, c.means[b], 0, d);
+    }
+}
@@ -0,0 +1,200 @@
+/******************************************************************
+ * A <code>BackgroundModel</code> holds the nucleotide composition of a
+ * set of genomic sequences, counted once when it is built, and optionally
+ * a Markov model of order 1 to 3 in which the probability of each base
+ * depends on the bases just before it.
+ * <p>
+ * The model of order <code>k</code> is kept as one table of natural-log
+ * conditional probabilities for every order from 0 to <code>k</code>.
+ * The table of order <code>j</code> has <code>4^(j+1)</code> entries; the
+ * entry for base <code>b</code> after the <code>j</code> bases
+ * <code>c1 ... cj</code> is at index <code>(c1 ... cj b)</code> read as a
+ * base-4 number of codes. Bases near the start of a sequence, or just
+ * after an ambiguous base, have less than <code>k</code> bases of context
+ * and are scored with the highest order they have. Every count starts
+ * at 1, so no conditional probability is 0.
+ * <p>
+ * The plain composition (order 0) is kept separately as frequencies over
+ * all bases, ambiguous ones included, for information content.
+ ******************************************************************/
+public class BackgroundModel {
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * The highest order supported
+     */
+    public static final int MAX_ORDER = 3;
+
+
+
+    /**************************************************************
+     ********************** INSTANCE VARIABLES ********************
+     **************************************************************/
+
+    /**
+     * The order of the Markov model
+     */
+    private final int order;
+
+    /**
+     * The frequencies of A, C, G and T among all bases
+     */
+    private final double[] composition;
+
+    /**
+     * Log conditional probabilities, one table per order from 0 to <code>order</code>
+     */
+    private final double[][] logProbabilities;
+
+
+
+    /**************************************************************
+     ********************** CONSTRUCTOR ***************************
+     **************************************************************/
+
+    /**
+     * Creates a <code>BackgroundModel</code> of the specified order by counting the bases
+     * of the specified sequences.
+     *
+     * @param   sequences   the sequences to count
+     * @param   order   the order of the Markov model, from 0 to 3
+     */
+    public BackgroundModel(PackedSequences sequences, int order) {
+	if (order < 0 || order > MAX_ORDER)
+	    throw new IllegalArgumentException("The order of a background model must be from 0 to " + MAX_ORDER + ", not " + order);
+	this.order = order;
+	long[] counts = sequences.getBaseCounts();
+	composition = new double[4];
+	for (int b=0; b<4; b++)
+	    composition[b] = ((double)counts[b]) / ((double)sequences.getTotalLength());
+
+	long[][] kmerCounts = new long[order + 1][];
+	for (int j=0; j<=order; j++)
+	    kmerCounts[j] = new long[1 << (2 * (j + 1))];
+	if (order == 0) {
+	    System.arraycopy(counts, 0, kmerCounts[0], 0, 4);
+	} else {
+	    byte[] bases = null;
+	    for (int s=0; s<sequences.getNumSequences(); s++) {
+		bases = sequences.getBases(s, bases);
+		int length = sequences.getLength(s);
+		int kmer = 0, run = 0;  // The last bases as a base-4 number, and how many are unambiguous
+		for (int p=0; p<length; p++) {
+		    int b = bases[p];
+		    if (b == PackedSequences.N) {
+			run = 0;
+			continue;
+		    }
+		    kmer = ((kmer << 2) | b) & 0xFF;
+		    run++;
+		    for (int j=0; j<=order && j<run; j++)
+			kmerCounts[j][kmer & ((4 << (2 * j)) - 1)]++;
+		}
+	    }
+	}
+
+	logProbabilities = new double[order + 1][];
+	for (int j=0; j<=order; j++) {
+	    long[] c = kmerCounts[j];
+	    double[] table = new double[c.length];
+	    for (int context=0; context<c.length; context+=4) {
+		double total = c[context] + c[context+1] + c[context+2] + c[context+3] + 4;
+		for (int b=0; b<4; b++)
+		    table[context + b] = Math.log((c[context + b] + 1) / total);
+	    }
+	    logProbabilities[j] = table;
+	}
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC INSTANCE METHODS ***************
+     **************************************************************/
+
+    /**
+     * Returns the order of the Markov model.
+     *
+     * @return   the number of preceding bases each base is conditioned on
+     */
+    public int getOrder() {
+	return order;
+    }
+
+    /**
+     * Returns the frequency of a nucleotide among all bases, ambiguous ones included.
+     *
+     * @param   code   <code>A</code>, <code>C</code>, <code>G</code> or <code>T</code>
+     * @return   the frequency of the nucleotide
+     */
+    public double getFrequency(int code) {
+	return composition[code];
+    }
+
+    /**
+     * Returns a copy of the frequencies of A, C, G and T among all bases.
+     *
+     * @return   an array of 4 frequencies
+     */
+    public double[] getComposition() {
+	return composition.clone();
+    }
+
+    /**
+     * Returns the log probability of a nucleotide with no context, from the order 0 table.
+     *
+     * @param   code   <code>A</code>, <code>C</code>, <code>G</code> or <code>T</code>
+     * @return   the natural log of the probability of the nucleotide
+     */
+    public double logProbability(int code) {
+	return logProbabilities[0][code];
+    }
+
+    /**
+     * Returns the log probability of the base at the specified position given the bases before it,
+     * or 0 for an ambiguous base.
+     *
+     * @param   bases   the base codes of a sequence
+     * @param   pos   a position in the sequence
+     * @return   the natural log of the conditional probability of the base
+     */
+    public double logProbability(byte[] bases, int pos) {
+	int b = bases[pos];
+	if (b == PackedSequences.N)
+	    return 0;
+	int index = b, j = 0;
+	while (j < order && pos - j - 1 >= 0 && bases[pos - j - 1] != PackedSequences.N) {
+	    j++;
+	    index |= bases[pos - j] << (2 * j);
+	}
+	return logProbabilities[j][index];
+    }
+
+    /**
+     * Fills an array with the log probability of every base of a sequence, as from
+     * <code>logProbability</code>.
+     *
+     * @param   bases   the base codes of a sequence
+     * @param   length   the length of the sequence
+     * @param   logs   an array of at least <code>length</code> entries for the log probabilities
+     */
+    public void logProbabilities(byte[] bases, int length, double[] logs) {
+	int kmer = 0, run = 0;
+	for (int p=0; p<length; p++) {
+	    int b = bases[p];
+	    if (b == PackedSequences.N) {
+		run = 0;
+		logs[p] = 0;
+		continue;
+	    }
+	    kmer = ((kmer << 2) | b) & 0xFF;
+	    int j = Math.min(run, order);
+	    logs[p] = logProbabilities[j][kmer & ((4 << (2 * j)) - 1)];
+	    run++;
+	}
+    }
+
+}
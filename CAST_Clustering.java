@@ -1,6 +1,7 @@
 import java.util.*;
+import java.io.*;
 /**
- * Hierarchical_Clustering executes the hierarchical clustering algorithm. 
+ * CAST_Clustering executes the CAST (cluster affinity search technique) clustering algorithm. 
  *
  * @author Catherine Larson and Skylar Kolisko
  * @version April 7 2022
@@ -8,102 +9,246 @@ import java.util.*;
 public class CAST_Clustering extends Clustering
 {
     double t;
-    HashMap<Gene, Integer> unassignedGenes = new HashMap<Gene, Integer>();
+    //rows of the genes not yet in any cluster; iterated in row order
+    BitSet unassignedGenes = new BitSet();
+    //rows of the expression matrix in the cluster being built, in the order they were added
+    int[] members;
+    int numMembers;
+    //number of clusters finished so far
+    int numFinished;
+    //running sum of the expression values of the cluster being built, updated on every add and remove
+    double[] clusterSum;
+    //number of members measured in each experiment, for means that skip missing values
+    int[] clusterCounts;
+    //mean of the cluster being built
+    double[] clusterMean;
+    //scratch space for the affinity passes: the genes examined, and which of them pass
+    int[] candidates;
+    boolean[] selected;
     
     /**
      * Constructor for objects of class CAST_Clustering
      */
     public CAST_Clustering(String fileName, double threshold)
+    {
+        this(fileName, threshold, 1);
+    }
+
+    /**
+     * Constructor that evaluates affinities in parallel chunks on the given number of threads.
+     * Genes are still added and removed in row order, so the clusters match a single thread.
+     */
+    public CAST_Clustering(String fileName, double threshold, int threads)
+    {
+        this(fileName, threshold, threads, StandardDistanceMetric.EUCLIDEAN);
+    }
+
+    /**
+     * Constructor that compares genes with the given metric; the threshold is a distance under that metric.
+     */
+    public CAST_Clustering(String fileName, double threshold, int threads, DistanceMetric metric)
     {
         super(fileName);
         t = threshold;
-        //all genes start unassigned
-        for(int i = 0; i<genes.size(); i++){
-            unassignedGenes.put(genes.get(i), 1);
-        }
+        setNumThreads(threads);
+        setDistanceMetric(metric);
+        allocate();
         cast();
     }
+
+    /**
+     * Constructor for an already loaded matrix. Nothing is clustered until cast() is called, once.
+     */
+    public CAST_Clustering(ExpressionMatrix matrix, double threshold)
+    {
+        super(matrix);
+        t = threshold;
+        allocate();
+    }
+
+    //scratch space sized to the table, and every gene unassigned
+    private void allocate(){
+        members = new int[getNumGenes()];
+        candidates = new int[getNumGenes()];
+        selected = new boolean[getNumGenes()];
+        clusterSum = new double[getNumExperiments()];
+        clusterCounts = new int[getNumExperiments()];
+        clusterMean = new double[getNumExperiments()];
+        //all genes start unassigned
+        unassignedGenes.set(0, getNumGenes());
+        clusterOfGene = new int[getNumGenes()];
+        Arrays.fill(clusterOfGene, -1);
+    }
     
-    public int addGenesWithHighAffinity(Cluster current){
+    public int addGenesWithHighAffinity(){
         int genesAdded = 0;
         //get the cluster average
-        Vector<Double> clusterMean = current.getClusterMean();
-        //go through each gene  
-        for(int i = 0; i < genes.size(); i++){
-            Gene currentGene = genes.get(i);
-            //check if it's in any cluster
-            if(unassignedGenes.containsKey(currentGene)){
-                //if it's close to the mean
-                if(currentGene.distanceToExpressionVector(clusterMean) <= t){
-                    //then add the gene and increment count
-                    current.addGene(currentGene);
-                    unassignedGenes.remove(currentGene);
-                    genesAdded++;
-                }
+        updateClusterMean();
+        //go through each gene that isn't in any cluster
+        int numCandidates = 0;
+        for(int i = unassignedGenes.nextSetBit(0); i >= 0; i = unassignedGenes.nextSetBit(i+1)){
+            candidates[numCandidates++] = i;
+        }
+        instrumentation.counter("distances").add(numCandidates);
+        //check which are close to the mean
+        forEachChunk(numCandidates, (chunk, start, end) -> {
+            for(int c = start; c<end; c++){
+                selected[c] = distanceToVector(candidates[c], clusterMean) <= t;
+            }
+        });
+        for(int c = 0; c<numCandidates; c++){
+            if(selected[c]){
+                //then add the gene and increment count
+                int i = candidates[c];
+                members[numMembers++] = i;
+                getMetricMatrix().addRowTo(i, clusterSum);
+                getMetricMatrix().addPresenceTo(i, clusterCounts);
+                unassignedGenes.clear(i);
+                genesAdded++;
             }
         }
         return genesAdded;
     }
     
-    public int removeGenesWithLowAffinity(Cluster current){
-        Vector<Double> clusterMean = current.getClusterMean(); //recalculate mean here, once
+    public int removeGenesWithLowAffinity(){
+        updateClusterMean(); //recalculate mean here, once
         int genesRemoved = 0;
-        //for every gene in the cluster
-        for(int i = 0; i<current.getSizeOfCluster(); i++){
-            //check if it's still within the range
-            Gene currentGene = current.getGene(i);
-            if(currentGene.distanceToExpressionVector(clusterMean)>t){
-                current.removeGene(currentGene);
-                unassignedGenes.put(currentGene, 1);
+        //check every gene in the cluster against the same mean before removing any, so that
+        //removals don't shift genes past the loop
+        int size = numMembers;
+        instrumentation.counter("distances").add(size);
+        forEachChunk(size, (chunk, start, end) -> {
+            for(int i = start; i<end; i++){
+                selected[i] = distanceToVector(members[i], clusterMean)>t;
+            }
+        });
+        int kept = 0;
+        for(int i = 0; i<size; i++){
+            int row = members[i];
+            if(selected[i]){
+                getMetricMatrix().subtractRowFrom(row, clusterSum);
+                getMetricMatrix().subtractPresenceFrom(row, clusterCounts);
+                unassignedGenes.set(row);
                 genesRemoved ++;
             }
-        }  
+            else{
+                members[kept++] = row;
+            }
+        }
+        numMembers = kept;
         return genesRemoved;
     }
     
-    private Gene getUnassignedGene(){
-        Gene selected = genes.get(0); 
-        boolean unselected = true;
-        int i = 0;
-        while(unselected){
-            selected = genes.get(i);
-            if(unassignedGenes.containsKey(selected)){
-                unselected = false;
+    //mean of the cluster being built, from the running sums, normalized if the metric needs it
+    private void updateClusterMean(){
+        ExpressionMatrix.divideSum(clusterSum, numMembers, getMetricMatrix().hasMissingValues() ? clusterCounts : null, clusterMean);
+        normalizeVector(clusterMean);
+    }
+    
+    //true if the gene was measured in at least one experiment
+    private boolean hasAnyValue(int row){
+        ExpressionMatrix rows = getMetricMatrix();
+        if(rows.isComplete(row)){
+            return true;
+        }
+        for(int j = 0; j<getNumExperiments(); j++){
+            if(rows.isPresent(row, j)){
+                return true;
             }
-            i++;
         }
-        return selected;
+        return false;
+    }
+
+    private int getUnassignedGene(){
+        //the lowest-numbered gene that isn't in a cluster
+        return unassignedGenes.nextSetBit(0);
     }
     
     public void cast(){
         int genesAdded, genesRemoved;
         boolean clusterUnfinished = true;
+        Instrumentation.Timer addTimer = instrumentation.timer("add");
+        Instrumentation.Timer removeTimer = instrumentation.timer("remove");
+        instrumentation.event("start", "genes", getNumGenes(), "experiments", getNumExperiments(), "threshold", t,
+                "metric", metric, "threads", numThreads);
         
-        while(unassignedGenes.size()>0){
+        while(!unassignedGenes.isEmpty()){
+            long clusterStart = System.nanoTime();
+            int rounds = 0, totalAdded = 0, totalRemoved = 0;
             //get a new gene that's not in a cluster
-            Gene nextGene = getUnassignedGene();
+            int nextGene = getUnassignedGene();
             //make a new cluster from it
-            Cluster currentCluster = new Cluster();
-            currentCluster.addGene(nextGene);
-            clusters.add(currentCluster);
-            //and finish it's cluster
-            clusterUnfinished = true;
+            members[0] = nextGene;
+            numMembers = 1;
+            unassignedGenes.clear(nextGene);
+            Arrays.fill(clusterSum, 0);
+            Arrays.fill(clusterCounts, 0);
+            getMetricMatrix().addRowTo(nextGene, clusterSum);
+            getMetricMatrix().addPresenceTo(nextGene, clusterCounts);
+            //and finish it's cluster; a gene with no measured experiment is infinitely far from every
+            //mean, even its own, so it stays in a cluster of its own
+            clusterUnfinished = hasAnyValue(nextGene);
             while(clusterUnfinished){
                 //run highAffinity to get everything close enough to it
-                genesAdded = addGenesWithHighAffinity(currentCluster);
+                long startTime = addTimer.start();
+                genesAdded = addGenesWithHighAffinity();
+                addTimer.stop(startTime);
                 //run lowAffinity
-                genesRemoved = removeGenesWithLowAffinity(currentCluster);
+                startTime = removeTimer.start();
+                genesRemoved = removeGenesWithLowAffinity();
+                removeTimer.stop(startTime);
+                rounds++;
+                totalAdded += genesAdded;
+                totalRemoved += genesRemoved;
                 //if an any point both of those are not adding new things to the cluster or removing then unfinished = true
                 if(genesAdded == 0 && genesRemoved == 0){
                     clusterUnfinished = false;
                 }
             }
+            //the members are final once the cluster stops changing
+            for(int m = 0; m<numMembers; m++){
+                clusterOfGene[members[m]] = numFinished;
+            }
+            numFinished++;
+            instrumentation.event("cluster", "cluster", numFinished-1, "size", numMembers, "rounds", rounds,
+                    "added", totalAdded, "removed", totalRemoved, "unassigned", unassignedGenes.cardinality(),
+                    "ms", (System.nanoTime()-clusterStart)/1e6);
         }
+        //the Clusters themselves are only built from the rows if they are written out
+        setClustersFromAssignment(clusterOfGene, numFinished);
+        instrumentation.event("finished", "clusters", numFinished);
+        instrumentation.summarize();
     }
     
     public static void main(String[] args){
         double t = Double.parseDouble(args[1]);
-        CAST_Clustering c = new CAST_Clustering(args[0], t);
-        System.out.println(c.toString());
+        //optional arguments: number of threads, then a metric (euclidean, squared_euclidean, pearson, cosine, manhattan);
+        //"tsv=FILE", "cdt=PREFIX" or "text=FILE" anywhere after the threshold also write the result there
+        List<String> positional = new ArrayList<String>();
+        List<String> outputs = new ArrayList<String>();
+        for(int i = 2; i<args.length; i++){
+            if(ClusteringResultWriter.isOutputOption(args[i])){
+                outputs.add(args[i]);
+            }
+            else{
+                positional.add(args[i]);
+            }
+        }
+        int threads = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 1;
+        DistanceMetric metric = positional.size() > 1 ? DistanceMetric.forName(positional.get(1)) : StandardDistanceMetric.EUCLIDEAN;
+        CAST_Clustering c = new CAST_Clustering(args[0], t, threads, metric);
+        try{
+            for(String output : outputs){
+                ClusteringResultWriter.writeOption(c, output);
+            }
+            try(Writer out = ClusteringResultWriter.open("-")){
+                c.write(out);
+                out.write(System.lineSeparator());
+            }
+        }
+        catch(IOException e){
+            System.err.println("Error - could not write the clusters: " + e.getMessage());
+            System.exit(1);
+        }
     }
 }
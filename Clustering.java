@@ -1,5 +1,6 @@
 import java.util.*;  // Needed for Scanner class and for Vector class
 import java.io.*;  // Needed for File class
+import java.util.concurrent.*;  // Needed for ForkJoinPool class
 
 /******************************************************************
  * An instance of the <code>Clustering</code> class represents a
@@ -17,15 +18,85 @@ public class Clustering {
     protected Vector<String> experiments;
 
     /**
-     * A collection of genes
+     * The <code>Gene</code> of each row of the expression matrix, or <code>null</code> until
+     * <code>getGene</code> first creates it; only read through <code>getGene</code>
      */
-    protected Vector<Gene> genes;
+    private Gene[] genes;
 
     /**
-     * A collection of clusters
+     * A collection of clusters, or <code>null</code> while they are only recorded in
+     * <code>clusterOfGene</code> and have not been built yet
      */
     protected Vector<Cluster> clusters;
 
+    /**
+     * The number of clusters recorded by <code>setClustersFromAssignment</code>
+     */
+    private int numAssignedClusters;
+
+    /**
+     * For each gene (row of the expression matrix), the index of its cluster, or -1 if it is in none;
+     * <code>null</code> until the clustering algorithm records it
+     */
+    protected int[] clusterOfGene;
+
+    /**
+     * The expression values of all genes, stored as a dense primitive matrix.
+     * Row <code>i</code> of the matrix corresponds to <code>getGene(i)</code>.
+     */
+    protected ExpressionMatrix expressionMatrix;
+
+    /**
+     * The metric used to compare genes with each other and with cluster means
+     */
+    protected DistanceMetric metric = StandardDistanceMetric.EUCLIDEAN;
+
+    /**
+     * The expression values with every row normalized for the metric, created when first needed.
+     * Only differs from <code>expressionMatrix</code> when the metric normalizes.
+     */
+    private volatile ExpressionMatrix metricMatrix;
+
+    /**
+     * Where the clustering algorithm reports its counters, timers and per-iteration events
+     */
+    protected Instrumentation instrumentation;
+
+    /**
+     * The number of threads used by parallel steps of a clustering algorithm
+     */
+    protected int numThreads = 1;
+
+    /**
+     * The pool that runs parallel steps, created when first needed
+     */
+    private ForkJoinPool pool;
+
+
+
+    /**
+     * The smallest number of elements in one chunk of a parallel step
+     */
+    private static final int MIN_CHUNK_SIZE = 2048;
+
+    /**
+     * The largest number of chunks a parallel step is split into
+     */
+    private static final int MAX_CHUNKS = 256;
+
+
+
+    /**************************************************************
+     ********************** NESTED TYPES **************************
+     **************************************************************/
+
+    /**
+     * Work performed on one contiguous chunk <code>[start, end)</code> of a range of indices.
+     */
+    protected interface ChunkTask {
+    void run(int chunk, int start, int end);
+    }
+
 
 
     /**************************************************************
@@ -39,13 +110,40 @@ public class Clustering {
      * Genes and experiments are read-in from the tab-delimited file. Initially, the constructed
      * <code>Clustering</code> is empty.
      *
+     * The file is read in a single pass by an <code>ExpressionFileReader</code>; files large
+     * enough to benefit are parsed in parallel chunks, one per available processor.
+     *
      * @param   fileName   the name of a tab-delimited text file containing gene and experiment data
      */
     public Clustering(String fileName) {
-    experiments = getExperimentNamesFromFile(fileName);
-    genes = getGeneInformationFromFile(fileName);
+    // Arguments are evaluated left to right, so the clock is read before the file
+    this(System.nanoTime(), readExpressionMatrix(fileName));
     System.err.println("\nRead in " + getNumExperiments() + " experiments and " + getNumGenes() + " genes.");
+    }
+
+    /** 
+     * Creates an initially empty <code>Clustering</code> of the genes in the specified <code>ExpressionMatrix</code>.
+     * The <code>Instrumentation</code> is set up from the <code>clustering.metrics</code> system
+     * properties (see <code>Instrumentation.fromSystemProperties</code>).
+     *
+     * @param   matrix   the expression values, gene names and experiment names to cluster
+     */
+    public Clustering(ExpressionMatrix matrix) {
+    expressionMatrix = matrix;
+    experiments = matrix.getExperimentNames();
+    genes = new Gene[matrix.getNumGenes()];
     clusters = new Vector<Cluster>();
+    instrumentation = Instrumentation.fromSystemProperties(getClass().getSimpleName());
+    }
+
+    /**
+     * Creates a <code>Clustering</code> of a matrix that began loading at the specified time,
+     * and records the time taken to load it.
+     */
+    private Clustering(long readStartTime, ExpressionMatrix matrix) {
+    this(matrix);
+    instrumentation.timer("read").stop(readStartTime);
+    instrumentation.event("read", "genes", matrix.getNumGenes(), "experiments", matrix.getNumExperiments(), "storage", matrix.getStorage());
     }
 
 
@@ -69,7 +167,7 @@ public class Clustering {
      * @return   an integer representing the number of genes
      */
     public int getNumGenes() {
-    return genes.size();
+    return expressionMatrix.getNumGenes();
     }
 
     /**
@@ -78,7 +176,227 @@ public class Clustering {
      * @return   an integer representing the number of clusters
      */
     public int getNumClusters() {
-    return clusters.size();
+    return clusters == null ? numAssignedClusters : clusters.size();
+    }
+
+    /**
+     * Returns the <code>Gene</code> stored in the specified row of the expression matrix.
+     * The <code>Gene</code> is created the first time it is requested and reused afterwards.
+     * <p>
+     * A <code>Gene</code> can only be created from a line of text, so the clustering algorithms
+     * work on rows of the expression matrix instead; <code>Genes</code> are only created for
+     * <code>Clusters</code>, when the clusters are written out.
+     *
+     * @param   row   the index of a gene
+     * @return   the <code>Gene</code> in that row
+     */
+    public synchronized Gene getGene(int row) {
+    Gene g = genes[row];
+    if (g == null)
+        g = genes[row] = new Gene(expressionMatrix.getRowAsLine(row));
+    return g;
+    }
+
+    /**
+     * Returns the dense matrix of expression values for all genes in this <code>Clustering</code>.
+     *
+     * @return   the <code>ExpressionMatrix</code> backing this <code>Clustering</code>
+     */
+    public ExpressionMatrix getExpressionMatrix() {
+    return expressionMatrix;
+    }
+
+    /**
+     * Sets the metric used to compare genes with each other and with cluster means.
+     * The default is <code>StandardDistanceMetric.EUCLIDEAN</code>.
+     *
+     * @param   metric   the <code>DistanceMetric</code> to use
+     */
+    public synchronized void setDistanceMetric(DistanceMetric metric) {
+    this.metric = metric;
+    metricMatrix = null;
+    }
+
+    /**
+     * Returns the metric used to compare genes with each other and with cluster means.
+     *
+     * @return   the <code>DistanceMetric</code> in use
+     */
+    public DistanceMetric getDistanceMetric() {
+    return metric;
+    }
+
+    /**
+     * Returns the expression values that distances are computed from: the expression matrix itself,
+     * or, if the metric normalizes, a copy with every row normalized once, in parallel chunks.
+     * Gene names, functions and missing values are shared with the expression matrix. The copy keeps
+     * the expression matrix's storage, except that 16-bit codes become <code>FLOAT</code> values.
+     *
+     * @return   the <code>ExpressionMatrix</code> that the metric compares
+     */
+    public ExpressionMatrix getMetricMatrix() {
+    ExpressionMatrix result = metricMatrix;
+    if (result != null)
+        return result;
+    synchronized (this) {
+    if (metricMatrix == null) {
+        if (!metric.isNormalizing()) {
+        metricMatrix = expressionMatrix;
+        } else {
+        long startTime = instrumentation.timer("normalize").start();
+        ExpressionMatrix m = expressionMatrix;
+        int d = m.getNumExperiments();
+        double[] normalized = new double[m.getNumGenes() * d];
+        forEachChunk(m.getNumGenes(), (chunk, start, end) -> {
+            for (int i=start; i<end; i++) {
+            m.copyRow(i, normalized, m.getRowOffset(i));
+            if (m.isComplete(i))
+                metric.normalize(normalized, m.getRowOffset(i), d);
+            else
+                metric.normalize(normalized, m.getRowOffset(i), d, m.getPresenceMask(), i * m.getMaskWordsPerRow());
+            }
+        });
+        // Normalized rows fall outside the per-experiment ranges of 16-bit codes, so they
+        // are held as floats rather than quantized a second time
+        metricMatrix = m.withValues(normalized, m.getStorage() == ExpressionMatrix.Storage.QUANTIZED_16
+                                    ? ExpressionMatrix.Storage.FLOAT : m.getStorage());
+        instrumentation.timer("normalize").stop(startTime);
+        }
+    }
+    return metricMatrix;
+    }
+    }
+
+    /**
+     * Returns the distance between two genes under the metric.
+     *
+     * @param   rowA   the index of a gene
+     * @param   rowB   the index of another gene
+     * @return   the distance between the genes
+     */
+    public double distanceBetweenGenes(int rowA, int rowB) {
+    return getMetricMatrix().distanceBetweenRows(metric, rowA, rowB);
+    }
+
+    /**
+     * Returns the distance under the metric between a gene and a vector, such as a cluster mean,
+     * that has been normalized with <code>normalizeVector</code>.
+     *
+     * @param   row   the index of a gene
+     * @param   v   a normalized vector with one value per experiment
+     * @return   the distance between the gene and the vector
+     */
+    public double distanceToVector(int row, double[] v) {
+    return getMetricMatrix().distanceToVector(metric, row, v);
+    }
+
+    /**
+     * Normalizes a vector in place for comparison with genes under the metric.
+     * Does nothing unless the metric normalizes.
+     *
+     * @param   v   a vector with one value per experiment
+     */
+    public void normalizeVector(double[] v) {
+    metric.normalize(v, 0, v.length);
+    }
+
+    /**
+     * Sets where the clustering algorithm reports its counters, timers and events.
+     * Set it before the algorithm runs; <code>Instrumentation.DISABLED</code> turns reporting off.
+     *
+     * @param   instrumentation   the <code>Instrumentation</code> to report into
+     */
+    public void setInstrumentation(Instrumentation instrumentation) {
+    this.instrumentation = instrumentation;
+    }
+
+    /**
+     * Returns where the clustering algorithm reports its counters, timers and events.
+     *
+     * @return   the <code>Instrumentation</code> in use
+     */
+    public Instrumentation getInstrumentation() {
+    return instrumentation;
+    }
+
+    /**
+     * Sets the number of threads used by parallel steps of the clustering algorithm.
+     * A value of 1 runs every step on the calling thread.
+     *
+     * @param   numThreads   the number of threads to use
+     */
+    public void setNumThreads(int numThreads) {
+    this.numThreads = Math.max(1, numThreads);
+    pool = null;
+    }
+
+    /**
+     * Returns the number of threads used by parallel steps of the clustering algorithm.
+     *
+     * @return   the number of threads
+     */
+    public int getNumThreads() {
+    return numThreads;
+    }
+
+    /**
+     * Returns the number of chunks that <code>forEachChunk</code> splits a range of the specified size into.
+     * The number depends only on the size of the range, never on the number of threads,
+     * so results merged chunk by chunk are identical however many threads are used.
+     *
+     * @param   n   the size of the range
+     * @return   the number of chunks
+     */
+    public static int getNumChunks(int n) {
+    int chunkSize = Math.max(MIN_CHUNK_SIZE, (n + MAX_CHUNKS - 1) / MAX_CHUNKS);
+    return Math.max(1, (n + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Splits the range <code>[0, n)</code> into <code>getNumChunks(n)</code> contiguous chunks and runs the
+     * specified task on each, in parallel when more than one thread is configured.
+     * The method returns once every chunk has been processed.
+     *
+     * @param   n   the size of the range
+     * @param   task   the work to perform on each chunk
+     */
+    protected void forEachChunk(int n, ChunkTask task) {
+    forEachChunk(n, getNumChunks(n), task);
+    }
+
+    /**
+     * Splits the range <code>[0, n)</code> into the specified number of contiguous chunks and runs the
+     * specified task on each, in parallel when more than one thread is configured.
+     *
+     * @param   n   the size of the range
+     * @param   numChunks   the number of chunks
+     * @param   task   the work to perform on each chunk
+     */
+    protected void forEachChunk(int n, int numChunks, ChunkTask task) {
+    int chunkSize = (n + numChunks - 1) / numChunks;
+    if (numThreads == 1 || numChunks == 1) {
+        for (int c=0; c<numChunks; c++)
+        task.run(c, c * chunkSize, Math.min(n, (c + 1) * chunkSize));
+        return;
+    }
+    if (pool == null)
+        pool = new ForkJoinPool(numThreads);
+    List<Callable<Void>> work = new ArrayList<Callable<Void>>(numChunks);
+    for (int c=0; c<numChunks; c++) {
+        final int chunk = c;
+        work.add(() -> { task.run(chunk, chunk * chunkSize, Math.min(n, (chunk + 1) * chunkSize)); return null; });
+    }
+    try {
+        for (Future<Void> f : pool.invokeAll(work))
+        f.get();
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while clustering", e);
+    } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException)e.getCause();
+        throw new IllegalStateException(e.getCause());
+    }
     }
 
     /**
@@ -121,38 +439,174 @@ public class Clustering {
      * tab-delimited collection of gene information, including
      * the gene's name, function, and expression values.
      * A <code>Vector</code> of <code>Gene</code> objects is returned.
+     * As a side effect, the expression values are also stored in
+     * the primitive <code>ExpressionMatrix</code> of this <code>Clustering</code>.
+     * The file is parsed by an <code>ExpressionFileReader</code>, as in the constructor.
      *
      * @param   fileName   the name of a tab-delimited text file with gene and experiment data
      * @return   a collection of <code>Genes</code> as extracted from the specified file
      */
     public Vector<Gene> getGeneInformationFromFile(String fileName) {
-    genes = new Vector<Gene>();
     try {
-        Scanner r = new Scanner(new File(fileName));
-        String firstLine = r.nextLine();  // Ignore first (header) line of file
-        while (r.hasNextLine()) {  // Continue until we reach end of file
-        String line = r.nextLine();  // Read in next line of file
-        genes.add(new Gene(line));
+        expressionMatrix = new ExpressionFileReader(fileName).read();
+    } catch (IOException e) {
+        System.err.println("Error - could not read in file " + fileName);
+        expressionMatrix = new ExpressionMatrix(new String[0], new String[0], new String[0], new double[0]);
+    }
+    metricMatrix = null;
+    genes = new Gene[expressionMatrix.getNumGenes()];
+    Vector<Gene> result = new Vector<Gene>(genes.length);
+    for (int i=0; i<genes.length; i++)  // Genes see missing values as NaN
+        result.add(getGene(i));
+    return result;
+    }
+
+    /**
+     * Returns an <code>ExpressionMatrix</code> read from the specified tab-delimited file.
+     * An empty matrix is returned if the file cannot be read.
+     * <p>
+     * A cache file may be named directly. Setting the system property <code>clustering.cache</code>
+     * to <code>true</code> also writes the contents of each text file read to a binary
+     * <code>ExpressionCache</code> next to it, which later calls read instead for as long as the
+     * text file is unchanged; setting <code>clustering.cache.float</code> to <code>true</code> as well
+     * writes single-precision caches, which are read as <code>FLOAT</code> storage.
+     * <p>
+     * Setting the system property <code>clustering.storage</code> to <code>float</code> or
+     * <code>quantized_16</code> returns a matrix holding its values in that
+     * <code>ExpressionMatrix.Storage</code>, to fit larger tables in memory.
+     *
+     * @param   fileName   the name of a tab-delimited text file with gene and experiment data
+     * @return   the expression values, gene names and experiment names in the file
+     */
+    public static ExpressionMatrix readExpressionMatrix(String fileName) {
+    ExpressionMatrix matrix = loadExpressionMatrix(fileName);
+    String storage = System.getProperty("clustering.storage");
+    if (storage != null) {
+        try {
+        matrix = matrix.toStorage(ExpressionMatrix.Storage.valueOf(storage.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+        System.err.println("Warning - unknown storage " + storage + "; keeping values as doubles");
         }
-        r.close();
-    } catch (FileNotFoundException e) {
+    }
+    return matrix;
+    }
+
+    /**
+     * Reads an <code>ExpressionMatrix</code> from a cache file named directly or, if caching is
+     * enabled, from the text file's cache; failing that, from the text file, writing the cache if
+     * caching is enabled.
+     */
+    private static ExpressionMatrix loadExpressionMatrix(String fileName) {
+    boolean useCache = Boolean.getBoolean("clustering.cache");
+    String cacheFileName = fileName.endsWith(ExpressionCache.EXTENSION) ? fileName : ExpressionCache.getCacheFileName(fileName);
+    // A cache that is up to date but unreadable would only be written the same way again
+    boolean upToDate = cacheFileName.equals(fileName) || (useCache && ExpressionCache.isUpToDate(cacheFileName, fileName));
+    if (upToDate) {
+        try {
+        long startTime = System.nanoTime();
+        ExpressionMatrix matrix = ExpressionCache.read(cacheFileName);
+        System.err.printf("Read %d rows from cache %s in %.3f s%n", matrix.getNumGenes(), cacheFileName, (System.nanoTime() - startTime) / 1e9);
+        return matrix;
+        } catch (IOException e) {
+        System.err.println("Warning - could not read cache " + cacheFileName + " (" + e.getMessage() + "); parsing " + fileName);
+        }
+    }
+    File f = new File(fileName);
+    // Parallel parsing only pays off once there are several megabytes per thread
+    int numThreads = f.length() > (64L << 20) ? Runtime.getRuntime().availableProcessors() : 1;
+    ExpressionMatrix matrix;
+    try {
+        matrix = new ExpressionFileReader(fileName, numThreads).read();
+    } catch (IOException e) {
         System.err.println("Error - could not read in file " + fileName);
+        return new ExpressionMatrix(new String[0], new String[0], new String[0], new double[0]);
+    }
+    if (useCache && !upToDate) {
+        try {
+        ExpressionCache.write(matrix, cacheFileName, fileName, Boolean.getBoolean("clustering.cache.float"));
+        } catch (IOException e) {
+        System.err.println("Warning - could not write cache " + cacheFileName + " (" + e.getMessage() + ")");
+        }
+    }
+    return matrix;
+    }
+
+    /**
+     * Replaces the clusters of this <code>Clustering</code> with an assignment of genes (rows of the
+     * expression matrix) to cluster indices. The <code>Clusters</code> themselves are only built
+     * when they are first needed, by <code>getClusters</code>.
+     *
+     * @param   assignment   an array holding, for each gene, the index of its cluster
+     * @param   numClusters   the number of clusters
+     */
+    public void setClustersFromAssignment(int[] assignment, int numClusters) {
+    clusterOfGene = assignment.clone();
+    numAssignedClusters = numClusters;
+    clusters = null;
+    }
+
+    /**
+     * Returns the <code>Clusters</code> of this <code>Clustering</code>, building them from the recorded
+     * assignment of genes to clusters if that has not been done yet.
+     *
+     * @return   the clusters, in order
+     */
+    public synchronized Vector<Cluster> getClusters() {
+    if (clusters == null) {
+        Vector<Cluster> built = new Vector<Cluster>(numAssignedClusters);
+        for (int k=0; k<numAssignedClusters; k++)
+        built.add(new Cluster());
+        for (int i=0; i<clusterOfGene.length; i++) {
+        if (clusterOfGene[i] >= 0)
+            built.get(clusterOfGene[i]).addGene(getGene(i));
+        }
+        clusters = built;
+    }
+    return clusters;
+    }
+
+    /**
+     * Returns, for each gene (row of the expression matrix), the index of its cluster, or -1 if it
+     * is in none. The array is <em>not</em> copied, so callers must not modify it.
+     *
+     * @return   the cluster of every gene
+     * @exception   IllegalStateException   if the clustering algorithm has not recorded one
+     */
+    public int[] getClusterAssignment() {
+    if (clusterOfGene == null)
+        throw new IllegalStateException("No cluster assignment has been recorded");
+    return clusterOfGene;
+    }
+
+    /**
+     * Writes all <code>Clusters</code> in this <code>Clustering</code> in the form returned by
+     * <code>toString</code>, one cluster at a time, so only the largest cluster's text is ever in memory.
+     *
+     * @param   out   where to write the clusters
+     * @exception   IOException   if the clusters cannot be written
+     */
+    public void write(Writer out) throws IOException {
+    Vector<Cluster> clusters = getClusters();
+    for (int k=0; k<clusters.size(); k++) {
+        out.write("Cluster # " + k + " containing " + clusters.get(k).getSizeOfCluster() + " genes.\n");
+        out.write(clusters.get(k).toString());
     }
-    return genes;
     }
 
     /**
      * Returns a <code>String</code> representation of all <code>Clusters</code> in this <code>Clustering</code>.
+     * Large clusterings should be written with <code>write</code> instead.
      *
      * @return   a <code>String</code> represenation of this <code>Clustering</code>
      */
     public String toString() {
-    StringBuilder sb = new StringBuilder();
-    for (int k=0; k<getNumClusters(); k++) {
-        sb.append("Cluster # " + k + " containing " + clusters.get(k).getSizeOfCluster() + " genes.\n");
-        sb.append(clusters.get(k).toString());
+    StringWriter sw = new StringWriter();
+    try {
+        write(sw);
+    } catch (IOException e) {
+        throw new UncheckedIOException(e);  // A StringWriter never throws
     }
-    return sb.toString();
+    return sw.toString();
     }
 
 
@@ -0,0 +1,195 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/******************************************************************
+ * The <code>ClusteringResultWriter</code> class writes the result of a
+ * <code>Clustering</code> straight to a buffered stream, a line at a
+ * time, so the output of a clustering of any size never has to be held
+ * in memory. It writes:
+ * <ul>
+ * <li>a tab-delimited table of every gene, the index of its cluster and
+ *     its distance (under the clustering's metric) to the mean of that
+ *     cluster, in row order;</li>
+ * <li>a CDT file of the expression values with the genes grouped by
+ *     cluster, for viewing in Java TreeView;</li>
+ * <li>the text form returned by <code>Clustering.toString</code>.</li>
+ * </ul>
+ * Hierarchical clusterings can also be written as a CDT/GTR pair with
+ * <code>DendrogramWriter</code>.
+ ******************************************************************/
+public class ClusteringResultWriter {
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * The size of the buffer in front of each output file
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+
+
+    /**************************************************************
+     ********************** PUBLIC CLASS METHODS ******************
+     **************************************************************/
+
+    /**
+     * Opens a buffered UTF-8 <code>Writer</code> on the named file, or on standard output if the
+     * name is <code>-</code>. Closing a <code>Writer</code> on standard output only flushes it.
+     *
+     * @param   fileName   the name of a file, or <code>-</code>
+     * @return   a buffered <code>Writer</code>
+     * @exception   IOException   if the file cannot be opened
+     */
+    public static Writer open(String fileName) throws IOException {
+	OutputStream out;
+	if (fileName.equals("-")) {
+	    out = new FilterOutputStream(new FileOutputStream(FileDescriptor.out)) {
+		    // FilterOutputStream would otherwise write an array one byte at a time
+		    public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		    }
+
+		    public void close() throws IOException {
+			flush();
+		    }
+		};
+	} else {
+	    out = new FileOutputStream(fileName);
+	}
+	return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Writes one line per gene, in row order, holding the gene's name, the index of its cluster and
+     * its distance to the mean of that cluster, after a <code>GENE\tCLUSTER\tDISTANCE</code> header.
+     * Genes in no cluster get cluster -1 and no distance.
+     *
+     * @param   clustering   a <code>Clustering</code> whose algorithm has run
+     * @param   out   where to write the table
+     * @exception   IOException   if the table cannot be written
+     */
+    public static void writeTsv(Clustering clustering, Writer out) throws IOException {
+	int[] assignment = clustering.getClusterAssignment();
+	double[][] means = clusterMeans(clustering, assignment);
+	ExpressionMatrix matrix = clustering.getExpressionMatrix();
+	out.write("GENE\tCLUSTER\tDISTANCE\n");
+	StringBuilder sb = new StringBuilder(64);
+	for (int i=0; i<assignment.length; i++) {
+	    sb.setLength(0);
+	    sb.append(matrix.getGeneName(i)).append('\t').append(assignment[i]).append('\t');
+	    if (assignment[i] >= 0)
+		sb.append(clustering.distanceToVector(i, means[assignment[i]]));
+	    sb.append('\n');
+	    out.write(sb.toString());
+	}
+    }
+
+    /**
+     * Writes the expression values as a CDT file with the genes grouped by cluster, clusters in
+     * index order and genes within a cluster in row order. Genes in no cluster come last.
+     *
+     * @param   clustering   a <code>Clustering</code> whose algorithm has run
+     * @param   out   where to write the CDT file
+     * @exception   IOException   if the file cannot be written
+     */
+    public static void writeCdt(Clustering clustering, Writer out) throws IOException {
+	int[] assignment = clustering.getClusterAssignment();
+	int numClusters = clustering.getNumClusters();
+	// Counting sort by cluster; unassigned genes go in an extra bucket at the end
+	int[] start = new int[numClusters + 2];
+	for (int a : assignment)
+	    start[(a < 0 ? numClusters : a) + 1]++;
+	for (int c=0; c<=numClusters; c++)
+	    start[c + 1] += start[c];
+	int[] order = new int[assignment.length];
+	for (int i=0; i<assignment.length; i++)
+	    order[start[assignment[i] < 0 ? numClusters : assignment[i]]++] = i;
+	DendrogramWriter.writeCdt(clustering.getExpressionMatrix(), order, out);
+    }
+
+    /**
+     * Writes the text form of a <code>Clustering</code>, as returned by its <code>toString</code>.
+     *
+     * @param   clustering   a <code>Clustering</code>
+     * @param   out   where to write the text
+     * @exception   IOException   if the text cannot be written
+     */
+    public static void writeText(Clustering clustering, Writer out) throws IOException {
+	clustering.write(out);
+    }
+
+    /**
+     * Writes a result if the specified command line option asks for one: <code>tsv=FILE</code> for
+     * the table of <code>writeTsv</code>, <code>cdt=PREFIX</code> for <code>PREFIX.cdt</code> from
+     * <code>writeCdt</code>, or <code>text=FILE</code> for the text form. <code>-</code> as a file name
+     * or prefix means standard output.
+     *
+     * @param   clustering   a <code>Clustering</code> whose algorithm has run
+     * @param   option   a command line argument
+     * @return   <code>true</code> if the option named an output and it was written
+     * @exception   IOException   if the output cannot be written
+     */
+    public static boolean writeOption(Clustering clustering, String option) throws IOException {
+	int equals = option.indexOf('=');
+	if (equals < 0)
+	    return false;
+	String kind = option.substring(0, equals), name = option.substring(equals + 1);
+	if (!kind.equals("tsv") && !kind.equals("cdt") && !kind.equals("text"))
+	    return false;
+	try (Writer out = open(kind.equals("cdt") && !name.equals("-") ? name + ".cdt" : name)) {
+	    if (kind.equals("tsv"))
+		writeTsv(clustering, out);
+	    else if (kind.equals("cdt"))
+		writeCdt(clustering, out);
+	    else
+		writeText(clustering, out);
+	}
+	return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified command line argument is one that
+     * <code>writeOption</code> handles.
+     *
+     * @param   option   a command line argument
+     * @return   whether the argument names an output
+     */
+    public static boolean isOutputOption(String option) {
+	return option.startsWith("tsv=") || option.startsWith("cdt=") || option.startsWith("text=");
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE CLASS METHODS ******************
+     ***************************************************************/
+
+    /**
+     * Returns the mean of every cluster, normalized for the clustering's metric, skipping missing values.
+     */
+    private static double[][] clusterMeans(Clustering clustering, int[] assignment) {
+	ExpressionMatrix rows = clustering.getMetricMatrix();
+	int numClusters = clustering.getNumClusters();
+	int d = rows.getNumExperiments();
+	double[][] means = new double[numClusters][d];
+	int[] sizes = new int[numClusters];
+	int[][] counts = rows.hasMissingValues() ? new int[numClusters][d] : null;
+	for (int i=0; i<assignment.length; i++) {
+	    int c = assignment[i];
+	    if (c < 0)
+		continue;
+	    rows.addRowTo(i, means[c]);
+	    sizes[c]++;
+	    if (counts != null)
+		rows.addPresenceTo(i, counts[c]);
+	}
+	for (int c=0; c<numClusters; c++) {
+	    ExpressionMatrix.divideSum(means[c], sizes[c], counts == null ? null : counts[c], means[c]);
+	    clustering.normalizeVector(means[c]);
+	}
+	return means;
+    }
+
+}
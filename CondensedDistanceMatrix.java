@@ -0,0 +1,140 @@
+/******************************************************************
+ * An instance of the <code>CondensedDistanceMatrix</code> class holds the
+ * distance between every pair of <code>n</code> items in condensed form:
+ * only the upper triangle (excluding the diagonal) is stored, row by row,
+ * in one array of <code>n*(n-1)/2</code> <code>floats</code>.
+ * Distances are computed in <code>double</code> precision and rounded
+ * once when stored, which halves memory with no effect on clustering
+ * at the precision of expression data.
+ ******************************************************************/
+public class CondensedDistanceMatrix {
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * The number of interleaved stripes of rows the matrix is computed in
+     */
+    private static final int STRIPES = 64;
+
+
+
+    /**************************************************************
+     ********************** INSTANCE VARIABLES ********************
+     **************************************************************/
+
+    /**
+     * The number of items
+     */
+    private int n;
+
+    /**
+     * Distances for pairs <code>(i, j)</code> with <code>i &lt; j</code>, stored row by row
+     */
+    private float[] distances;
+
+
+
+    /**************************************************************
+     ********************** CONSTRUCTOR ***************************
+     **************************************************************/
+
+    /**
+     * Creates a <code>CondensedDistanceMatrix</code> for the specified number of items with every distance 0.
+     *
+     * @param   n   the number of items
+     */
+    public CondensedDistanceMatrix(int n) {
+	long size = (long)n * (n - 1) / 2;
+	if (size > Integer.MAX_VALUE - 8)
+	    throw new IllegalArgumentException("Too many items (" + n + ") for a condensed distance matrix");
+	this.n = n;
+	distances = new float[(int)Math.max(0, size)];
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC INSTANCE METHODS ***************
+     **************************************************************/
+
+    /**
+     * Returns the number of items in this <code>CondensedDistanceMatrix</code>.
+     *
+     * @return   the number of items
+     */
+    public int size() {
+	return n;
+    }
+
+    /**
+     * Returns the distance between two different items.
+     *
+     * @param   i   the index of an item
+     * @param   j   the index of another item
+     * @return   the distance between the items
+     */
+    public double get(int i, int j) {
+	return distances[index(i, j)];
+    }
+
+    /**
+     * Sets the distance between two different items.
+     *
+     * @param   i   the index of an item
+     * @param   j   the index of another item
+     * @param   distance   the distance between the items
+     */
+    public void set(int i, int j, double distance) {
+	distances[index(i, j)] = (float)distance;
+    }
+
+    /**
+     * Returns the position in the condensed array of the pair <code>(i, j)</code>.
+     *
+     * @param   i   the index of an item
+     * @param   j   the index of another item
+     * @return   the index in the condensed array
+     */
+    public int index(int i, int j) {
+	if (i > j) {
+	    int t = i;
+	    i = j;
+	    j = t;
+	}
+	// Rows 0..i-1 hold (n-1) + (n-2) + ... + (n-i) entries
+	return (int)((long)i * (2L * n - i - 1) / 2) + (j - i - 1);
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC CLASS METHODS ******************
+     **************************************************************/
+
+    /**
+     * Returns the distances under the clustering's metric between every pair of genes in the specified
+     * <code>Clustering</code>, computed in parallel chunks of rows using the clustering's threads.
+     *
+     * @param   clustering   a <code>Clustering</code> whose expression matrix supplies the genes
+     * @return   a <code>CondensedDistanceMatrix</code> of gene-to-gene distances
+     */
+    public static CondensedDistanceMatrix fromGenes(Clustering clustering) {
+	ExpressionMatrix matrix = clustering.getMetricMatrix();
+	DistanceMetric metric = clustering.getDistanceMetric();
+	int n = matrix.getNumGenes();
+	CondensedDistanceMatrix result = new CondensedDistanceMatrix(n);
+	// Row i holds n-1-i pairs, so deal rows out to stripes in turn to even out the work
+	int numStripes = Math.max(1, Math.min(n, STRIPES));
+	clustering.forEachChunk(numStripes, numStripes, (chunk, start, end) -> {
+	    for (int i=chunk; i<n; i+=numStripes) {
+		int base = result.index(i, i + 1) - (i + 1);
+		for (int j=i+1; j<n; j++)
+		    result.distances[base + j] = (float)matrix.distanceBetweenRows(metric, i, j);
+	    }
+	});
+	return result;
+    }
+
+}
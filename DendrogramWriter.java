@@ -0,0 +1,213 @@
+import java.io.*;
+
+/******************************************************************
+ * The <code>DendrogramWriter</code> class writes a complete
+ * <code>MergeTree</code> in formats read by tree viewers: Newick, and the
+ * CDT/GTR file pair used by Cluster 3.0 and Java TreeView. A CDT file
+ * can also be written on its own, with the genes in any order.
+ * <p>
+ * Every writer walks the tree with an explicit stack rather than by
+ * recursion, since a tree of <code>n</code> genes can be <code>n</code>
+ * merges deep.
+ ******************************************************************/
+public class DendrogramWriter {
+
+    /**************************************************************
+     ********************** PUBLIC CLASS METHODS ******************
+     **************************************************************/
+
+    /**
+     * Writes the tree in Newick format, naming each leaf after its gene. Branch lengths are
+     * the difference between the merge distances at either end of the branch (genes sit at 0).
+     * Branches up to a merge at an infinite distance, of clusters with no experiment in common,
+     * are written without a length.
+     *
+     * @param   tree   a complete <code>MergeTree</code>
+     * @param   matrix   the <code>ExpressionMatrix</code> that supplies gene names
+     * @param   out   the <code>Writer</code> to write to
+     * @exception   IOException   if the tree cannot be written
+     */
+    public static void writeNewick(MergeTree tree, ExpressionMatrix matrix, Writer out) throws IOException {
+	int n = checkComplete(tree);
+	if (n == 1) {
+	    out.write(newickName(matrix.getGeneName(0)) + ";\n");
+	    return;
+	}
+	int[] parent = new int[2 * n - 1];
+	for (int m=0; m<n-1; m++) {
+	    parent[tree.getLeft(m)] = n + m;
+	    parent[tree.getRight(m)] = n + m;
+	}
+	// Each stack entry is a node id, or -1 - id once the node's children have been written
+	int[] stack = new int[2 * n];
+	int top = 0;
+	stack[top++] = 2 * n - 2;
+	while (top > 0) {
+	    int entry = stack[--top];
+	    if (entry < 0) {
+		out.write(')');
+		writeBranchLength(tree, parent, -1 - entry, out);
+		continue;
+	    }
+	    if (entry != 2 * n - 2 && tree.getRight(parent[entry] - n) == entry)
+		out.write(',');
+	    if (entry < n) {
+		out.write(newickName(matrix.getGeneName(entry)));
+		writeBranchLength(tree, parent, entry, out);
+	    } else {
+		out.write('(');
+		stack[top++] = -1 - entry;
+		stack[top++] = tree.getRight(entry - n);
+		stack[top++] = tree.getLeft(entry - n);
+	    }
+	}
+	out.write(";\n");
+    }
+
+    /**
+     * Writes the GTR file of the tree: one line per merge naming the new node, its two children,
+     * and their similarity, <code>1 - height / maxHeight</code>, so the first merges are near 1 and
+     * the root is 0. <code>maxHeight</code> is the largest finite merge distance, and merges at an
+     * infinite distance, of clusters with no experiment in common, get a similarity of 0.
+     *
+     * @param   tree   a complete <code>MergeTree</code>
+     * @param   out   the <code>Writer</code> to write to
+     * @exception   IOException   if the tree cannot be written
+     */
+    public static void writeGtr(MergeTree tree, Writer out) throws IOException {
+	int n = checkComplete(tree);
+	double maxHeight = 0.0;
+	for (int m=0; m<n-1; m++) {
+	    if (tree.getHeight(m) < Double.POSITIVE_INFINITY)
+		maxHeight = Math.max(maxHeight, tree.getHeight(m));
+	}
+	for (int m=0; m<n-1; m++) {
+	    double height = tree.getHeight(m);
+	    double similarity = height == Double.POSITIVE_INFINITY ? 0.0 : maxHeight > 0 ? 1.0 - height / maxHeight : 1.0;
+	    out.write(nodeId(n + m, n) + "\t" + nodeId(tree.getLeft(m), n) + "\t" + nodeId(tree.getRight(m), n) + "\t" + similarity + "\n");
+	}
+    }
+
+    /**
+     * Writes the CDT file of the tree: the expression matrix with its genes in dendrogram order,
+     * each labelled with the GTR id of its leaf.
+     *
+     * @param   tree   a complete <code>MergeTree</code>
+     * @param   matrix   the <code>ExpressionMatrix</code> that was clustered
+     * @param   out   the <code>Writer</code> to write to
+     * @exception   IOException   if the tree cannot be written
+     */
+    public static void writeCdt(MergeTree tree, ExpressionMatrix matrix, Writer out) throws IOException {
+	int n = checkComplete(tree);
+	writeCdtRows(matrix, tree.getLeafOrder(), n, out);
+    }
+
+    /**
+     * Writes expression values as a CDT file without a GID column, with the genes in the specified
+     * order, such as grouped by cluster. Missing values are left blank.
+     *
+     * @param   matrix   the expression values
+     * @param   order   the rows of <code>matrix</code> in the order they are written
+     * @param   out   where to write the CDT file
+     * @exception   IOException   if the file cannot be written
+     */
+    public static void writeCdt(ExpressionMatrix matrix, int[] order, Writer out) throws IOException {
+	writeCdtRows(matrix, order, -1, out);
+    }
+
+    /**
+     * Writes the CDT and GTR files of the tree to <code>prefix.cdt</code> and <code>prefix.gtr</code>.
+     *
+     * @param   tree   a complete <code>MergeTree</code>
+     * @param   matrix   the <code>ExpressionMatrix</code> that was clustered
+     * @param   prefix   the path of both files, without extension
+     * @exception   IOException   if either file cannot be written
+     */
+    public static void writeCdtAndGtr(MergeTree tree, ExpressionMatrix matrix, String prefix) throws IOException {
+	try (Writer out = new BufferedWriter(new FileWriter(prefix + ".gtr"), 1 << 16)) {
+	    writeGtr(tree, out);
+	}
+	try (Writer out = new BufferedWriter(new FileWriter(prefix + ".cdt"), 1 << 16)) {
+	    writeCdt(tree, matrix, out);
+	}
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE CLASS METHODS ******************
+     ***************************************************************/
+
+    /**
+     * Writes the header and rows of a CDT file, with a GID column naming tree leaves if
+     * <code>numLeaves</code> is not negative. One line is built at a time.
+     */
+    private static void writeCdtRows(ExpressionMatrix matrix, int[] order, int numLeaves, Writer out) throws IOException {
+	int numExperiments = matrix.getNumExperiments();
+	StringBuilder sb = new StringBuilder(numLeaves >= 0 ? "GID\tORF\tNAME\tGWEIGHT" : "ORF\tNAME\tGWEIGHT");
+	for (String name : matrix.getExperimentNames())
+	    sb.append('\t').append(name);
+	sb.append(numLeaves >= 0 ? "\nEWEIGHT\t\t\t" : "\nEWEIGHT\t\t");
+	for (int j=0; j<numExperiments; j++)
+	    sb.append("\t1");
+	sb.append('\n');
+	out.write(sb.toString());
+	for (int gene : order) {
+	    sb.setLength(0);
+	    if (numLeaves >= 0)
+		sb.append(nodeId(gene, numLeaves)).append('\t');
+	    sb.append(matrix.getGeneName(gene)).append('\t').append(matrix.getGeneFunction(gene)).append("\t1");
+	    for (int j=0; j<numExperiments; j++) {
+		sb.append('\t');
+		if (matrix.isPresent(gene, j))
+		    sb.append(matrix.getValue(gene, j));
+	    }
+	    sb.append('\n');
+	    out.write(sb.toString());
+	}
+    }
+
+    /**
+     * Returns the number of genes in the tree, or throws an exception if the tree does not join them all.
+     */
+    private static int checkComplete(MergeTree tree) {
+	if (!tree.isComplete())
+	    throw new IllegalStateException("The merge tree does not join all " + tree.getNumLeaves() + " genes");
+	return tree.getNumLeaves();
+    }
+
+    /**
+     * Writes the length of the branch above the specified node.
+     */
+    private static void writeBranchLength(MergeTree tree, int[] parent, int node, Writer out) throws IOException {
+	int n = tree.getNumLeaves();
+	if (node == 2 * n - 2)
+	    return;
+	double below = node < n ? 0.0 : tree.getHeight(node - n);
+	double length = tree.getHeight(parent[node] - n) - below;
+	if (Double.isNaN(length) || Double.isInfinite(length))
+	    return;
+	out.write(':');
+	out.write(Double.toString(length));
+    }
+
+    /**
+     * Returns the GTR id of a node: GENE<i>i</i>X for genes and NODE<i>m</i>X for merges,
+     * with merges numbered from 1 as Cluster 3.0 does.
+     */
+    private static String nodeId(int node, int n) {
+	return node < n ? "GENE" + node + "X" : "NODE" + (node - n + 1) + "X";
+    }
+
+    /**
+     * Returns a gene name quoted as Newick requires if it holds spaces or punctuation.
+     */
+    private static String newickName(String name) {
+	for (int i=0; i<name.length(); i++) {
+	    if ("()[]':;, \t".indexOf(name.charAt(i)) >= 0)
+		return "'" + name.replace("'", "''") + "'";
+	}
+	return name;
+    }
+
+}
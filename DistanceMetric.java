@@ -0,0 +1,148 @@
+/******************************************************************
+ * A <code>DistanceMetric</code> measures how far apart two expression
+ * vectors are. Vectors are passed as an array and an offset, so rows of an
+ * <code>ExpressionMatrix</code> can be compared in place.
+ * <p>
+ * A metric may require its vectors to be <em>normalized</em> first (see
+ * <code>isNormalizing</code>). Correlation-type metrics use this to reduce
+ * each comparison to a dot product: every row is normalized once, and each
+ * mean or other vector compared against the rows is normalized before use.
+ * <p>
+ * Rows with missing values are compared through the masked forms of
+ * <code>distance</code> and <code>normalize</code>, which take a presence
+ * bitmask laid out as in <code>ExpressionMatrix</code> and expect 0 in every
+ * missing position.
+ ******************************************************************/
+public interface DistanceMetric {
+
+    /**
+     * Returns the distance between two vectors, both already normalized if this metric normalizes.
+     *
+     * @param   a   an array holding the first vector
+     * @param   aOffset   the index of the first element of the first vector
+     * @param   b   an array holding the second vector
+     * @param   bOffset   the index of the first element of the second vector
+     * @param   length   the number of elements in each vector
+     * @return   the distance between the vectors
+     */
+    double distance(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**
+     * Returns the distance between two vectors counting only the elements whose presence bit is set,
+     * scaled where needed so that it is comparable with distances between vectors with nothing missing.
+     * Missing elements of both vectors must hold 0. A metric that sums over the present elements
+     * returns <code>Double.POSITIVE_INFINITY</code> when none is present.
+     *
+     * @param   a   an array holding the first vector
+     * @param   aOffset   the index of the first element of the first vector
+     * @param   b   an array holding the second vector
+     * @param   bOffset   the index of the first element of the second vector
+     * @param   length   the number of elements in each vector
+     * @param   mask   presence bits: element <code>j</code> is present if bit <code>j % 64</code> of word <code>j / 64</code> is set
+     * @param   maskOffset   the index of the first word of the mask
+     * @return   the distance between the vectors over the present elements
+     */
+    double distance(double[] a, int aOffset, double[] b, int bOffset, int length, long[] mask, int maskOffset);
+
+    /**
+     * Returns <code>true</code> if vectors must be passed through <code>normalize</code> before
+     * they are compared.
+     *
+     * @return   whether this metric normalizes its vectors
+     */
+    default boolean isNormalizing() {
+	return false;
+    }
+
+    /**
+     * Normalizes a vector in place. Does nothing unless <code>isNormalizing</code> returns <code>true</code>.
+     *
+     * @param   v   an array holding the vector
+     * @param   offset   the index of the first element of the vector
+     * @param   length   the number of elements in the vector
+     */
+    default void normalize(double[] v, int offset, int length) {
+    }
+
+    /**
+     * Normalizes a vector with missing elements in place, using only its present elements and
+     * leaving 0 in the missing ones.
+     *
+     * @param   v   an array holding the vector
+     * @param   offset   the index of the first element of the vector
+     * @param   length   the number of elements in the vector
+     * @param   mask   presence bits, as for the masked <code>distance</code>
+     * @param   maskOffset   the index of the first word of the mask
+     */
+    default void normalize(double[] v, int offset, int length, long[] mask, int maskOffset) {
+	normalize(v, offset, length);
+	for (int j=0; j<length; j++) {
+	    if ((mask[maskOffset + (j >>> 6)] & (1L << j)) == 0)
+		v[offset + j] = 0.0;
+	}
+    }
+
+    /**
+     * Returns <code>true</code> if this metric obeys the triangle inequality, which the accelerated
+     * k means engines rely on.
+     *
+     * @return   whether this is a true metric
+     */
+    default boolean isTrueMetric() {
+	return true;
+    }
+
+    /**
+     * Returns a metric that orders distances the same way as this one but may be cheaper to compute,
+     * for use when only the nearest vector is wanted (for example squared Euclidean for Euclidean).
+     *
+     * @return   a <code>DistanceMetric</code> with the same ordering
+     */
+    default DistanceMetric forComparison() {
+	return this;
+    }
+
+    /**
+     * Returns the <code>StandardDistanceMetric</code> that this metric computes, so the metric can be
+     * recognized whichever implementation computes it, or <code>null</code> if it is none of them.
+     *
+     * @return   the standard metric computed, or <code>null</code>
+     */
+    default StandardDistanceMetric getStandardMetric() {
+	return null;
+    }
+
+    /**
+     * Converts a distance computed by the metric returned by <code>forComparison</code> into a
+     * distance under this metric, so the nearest vector's distance need not be computed again.
+     *
+     * @param   comparisonDistance   a distance under <code>forComparison()</code>
+     * @return   the same distance under this metric
+     */
+    default double fromComparison(double comparisonDistance) {
+	return comparisonDistance;
+    }
+
+    /**
+     * Returns the metric with the specified name (euclidean, squared_euclidean, pearson, cosine or
+     * manhattan, in any case). When the system property <code>clustering.simd</code> is
+     * <code>true</code> and the <code>jdk.incubator.vector</code> implementations were compiled and
+     * the module is available, those are returned instead.
+     *
+     * @param   name   the name of a metric
+     * @return   the <code>DistanceMetric</code> with that name
+     */
+    static DistanceMetric forName(String name) {
+	StandardDistanceMetric metric = StandardDistanceMetric.valueOf(name.toUpperCase());
+	if (Boolean.getBoolean("clustering.simd")) {
+	    try {
+		Class<?> vectorMetrics = Class.forName("VectorDistanceMetric");
+		return (DistanceMetric)vectorMetrics.getMethod("forStandard", StandardDistanceMetric.class).invoke(null, metric);
+	    } catch (ReflectiveOperationException | LinkageError e) {
+		System.err.println("SIMD distance metrics are not available (" + e + "); using " + metric);
+	    }
+	}
+	return metric;
+    }
+
+}
@@ -5,25 +5,88 @@
  */
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.Math;
 public class EM_MotifSearch extends MotifSearch {
     
+    //every random choice made by a run comes from here; each restart gets its own split of it
+    SplittableRandom rand = new SplittableRandom();
+    //number of restarts, or chunks of sequences in an E-step, processed at once
+    int numThreads = 1;
+    //where restarts and chunks run; made on first use from numThreads unless one is given
+    ExecutorService executor;
+    //buffers the sequences of each chunk of an E-step are unpacked into, made as chunks first run
+    byte[][] chunkCodes;
+    //a chunk of an E-step covers at least this many sequences, and an E-step has at most MAX_CHUNKS chunks
+    static final int MIN_CHUNK_SIZE = 16;
+    static final int MAX_CHUNKS = 64;
+    //the best restart finished so far by run_EM_multiple_times, its information content and its number
+    private EM_MotifSearch bestRestart;
+    private double bestRestartIC;
+    private int bestRestartNumber;
+    
     //constructor
     public EM_MotifSearch(java.lang.String fileName, int motifLength){
         super(fileName, motifLength);
     }
 
+    /**
+     * Constructor for a restart: shares the sequences and background of the given search but 
+     * has its own matrix, motif instances and random numbers.
+     */
+    protected EM_MotifSearch(EM_MotifSearch other, SplittableRandom rand){
+        super(other);
+        this.rand = rand;
+    }
+
+    /**
+     * Returns a fresh search over the same sequences for one restart. Subclasses return 
+     * their own type, so restarts run their version of the algorithm.
+     */
+    protected EM_MotifSearch newRestart(SplittableRandom rand){
+        return new EM_MotifSearch(this, rand);
+    }
+
+    /**
+     * Seeds the random number generator so that runs can be reproduced. Restarts are seeded 
+     * from it in order, so the result does not depend on the number of threads.
+     */
+    public void setSeed(long seed){
+        rand = new SplittableRandom(seed);
+    }
+
+    /**
+     * Sets how many restarts run_EM_multiple_times runs at once. When there are fewer restarts 
+     * than threads, the restarts run one at a time and each E-step is split across the threads instead.
+     */
+    public void setNumThreads(int numThreads){
+        this.numThreads = numThreads;
+        executor = null;
+    }
+
+    /**
+     * Runs restarts and E-step chunks on the given executor instead of a pool of numThreads 
+     * threads; numThreads should be set to its size. The executor is not shut down.
+     */
+    public void setExecutor(ExecutorService executor){
+        this.executor = executor;
+    }
+
     /**
      * The initial random seed step in the EM algorithm.
      * For each sequence, randomly determine the start index of a motif instance in the sequence.
      */
     public void setRandomLocationsForMotifInstances(){
         for(int i = 0; i<numSequences; i++){
-            //get random index
+            //get random index; a sequence shorter than the motif has no window and no instance
+            int numWindows = sequences.getLength(i)-motifLength+1;
+            if(numWindows <= 0){
+                instanceLocations[i] = -1;
+                continue;
+            }
             int randomIndex;
-            Random rand = new Random();
-            randomIndex = rand.nextInt(sequences.get(i).length()-motifLength+1);
-            instanceLocations.set(i, randomIndex);
+            randomIndex = rand.nextInt(numWindows);
+            instanceLocations[i] = randomIndex;
         }
     }
 
@@ -32,32 +95,26 @@ public class EM_MotifSearch extends MotifSearch {
      * Based on the motif instances in the sequences, creates a matrix motif model. The resulting matrix model should be updated with pseudocounts so that no entries in the matrix correspond to 0.0.
      */
     public void determineMatrixModel(){
-        double[][] newMatrix = new double[motifLength][numSequences];
-        //calculate column by column
-        int aCount, cCount, gCount, tCount;
-        for(int i = 0; i<motifLength;i++){
-            //go through each sequence we have
-            aCount = cCount = gCount = tCount = 0;
-            //have to go through instance locations
-            for(int j = 0; j<numSequences; j++){
-                //gets char in i'th position
-                int motifStart = instanceLocations.get(j);
-                char current = sequences.get(j).charAt(motifStart+i);
-                if(current == 'A') aCount++;
-                else if(current == 'C') cCount++;
-                else if(current == 'G') gCount++;
-                else if(current == 'T') tCount++;
-                
+        //counts of A, C, G, T and ambiguous bases in each column, indexed by base code
+        int[][] counts = new int[5][motifLength];
+        int numInstances = 0;
+        //have to go through instance locations, skipping sequences too short to hold one
+        for(int j = 0; j<numSequences; j++){
+            if(instanceLocations[j] < 0){
+                continue;
+            }
+            numInstances++;
+            //unpack the instance and count its bases column by column
+            sequences.copyBases(j, instanceLocations[j], motifLength, codes, 0);
+            for(int i = 0; i<motifLength; i++){
+                counts[codes[i]][i]++;
+            }
+        }
+        //calculate percents; ambiguous bases count towards no nucleotide
+        for(int b = 0; b<4; b++){
+            for(int i = 0; i<motifLength; i++){
+                matrix[b][i] = numInstances == 0 ? 0.0 : (double)counts[b][i] / numInstances;
             }
-            //calculate percents
-            //A's
-            matrix[0][i] = (double)aCount / numSequences;
-            //C's
-            matrix[1][i] = (double)cCount / numSequences;
-            //G's
-            matrix[2][i]= (double)gCount / numSequences;
-            //T's
-            matrix[3][i] = (double)tCount / numSequences;
         }
 
         //add pseudocounts
@@ -67,30 +124,79 @@ public class EM_MotifSearch extends MotifSearch {
     /**
      * The Expectation step in the EM algorithm. Based on the matrix model, identifies motif 
      * instances in the sequences. One motif instance is identified in each sequence. For each 
-     * sequence, the motif instance that best matches the model is chosen.
+     * sequence, the motif instance that best matches the model is chosen, by its log-odds 
+     * score against the background composition of the sequences.
      */
     public void determineMotifInstances(){
-        //for each sequence
-        for(int i = 0; i<numSequences; i++){
-            //find motif (returns index)
-            int location = findMotif(sequences.get(i));
-            //put it into the instance locations
-            instanceLocations.set(i, location);
-        }
-    }
-
-    private int findMotif(String s){
-        int motifLocation = 0; 
-        double bestScore = 0; 
-        for(int i = 0; i<s.length()-motifLength+1; i++){
-            String current = s.substring(i, i+motifLength);
-            //optimize score and choose
-            if(getScoreForMotifInstance(current)>bestScore){
-                motifLocation = i;
-                bestScore = getScoreForMotifInstance(current);
+        //log-odds table for the current matrix, built once per step and shared by every chunk
+        LogOddsScorer scorer = getLogOddsScorer();
+        //each sequence is scored on its own, so chunks of sequences can be scored in parallel
+        forEachChunk(numSequences, (chunk, start, end) -> {
+            byte[] bases = getChunkCodes(chunk);
+            for(int i = start; i<end; i++){
+                //find motif (returns index) and put it into the instance locations
+                instanceLocations[i] = findMotif(scorer, i, bases);
             }
+        });
+    }
+
+    //the window with the best log-odds score against the background; the earliest wins ties,
+    //and a sequence shorter than the motif has no window, so -1
+    private int findMotif(LogOddsScorer scorer, int seq, byte[] buffer){
+        if(sequences.getLength(seq) < motifLength){
+            return -1;
+        }
+        //unpack the sequence once and score each window straight from its base codes
+        byte[] bases = sequences.getBases(seq, buffer);
+        return scorer.bestWindow(bases, sequences.getLength(seq));
+    }
+
+    /**
+     * Work done on one contiguous chunk [start, end) of the sequences.
+     */
+    protected interface ChunkTask {
+        void run(int chunk, int start, int end);
+    }
+
+    /**
+     * Returns the number of chunks forEachChunk splits n sequences into. It depends only on n, 
+     * so anything done chunk by chunk (such as drawing from a chunk's random numbers) gives the 
+     * same result for any number of threads.
+     */
+    protected static int getNumChunks(int n){
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, (n + MAX_CHUNKS - 1) / MAX_CHUNKS);
+        return Math.max(1, (n + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Splits the sequences [0, n) into getNumChunks(n) contiguous chunks and runs the task on 
+     * each, in parallel when more than one thread is configured, returning when all are done.
+     */
+    protected void forEachChunk(int n, ChunkTask task){
+        int numChunks = getNumChunks(n);
+        int chunkSize = (n + numChunks - 1) / numChunks;
+        if(chunkCodes == null || chunkCodes.length < numChunks){
+            chunkCodes = new byte[numChunks][];
+        }
+        List<Callable<Void>> work = new ArrayList<Callable<Void>>(numChunks);
+        for(int c = 0; c<numChunks; c++){
+            final int chunk = c;
+            work.add(() -> {
+                task.run(chunk, chunk * chunkSize, Math.min(n, (chunk + 1) * chunkSize));
+                return null;
+            });
         }
-        return motifLocation;
+        runAll(work);
+    }
+
+    /**
+     * Returns the buffer the given chunk unpacks its sequences into.
+     */
+    protected byte[] getChunkCodes(int chunk){
+        if(chunkCodes[chunk] == null){
+            chunkCodes[chunk] = new byte[sequences.getMaxLength()];
+        }
+        return chunkCodes[chunk];
     }
 
     /**
@@ -101,19 +207,12 @@ public class EM_MotifSearch extends MotifSearch {
     public double getScoreForMotifInstance(String s){
         double score = 1;
         for(int i = 0; i < motifLength; i++){
-            char current = s.charAt(i);
-            if(current == 'A') {
-                score = score*matrix[0][i];
-            }
-            else if(current == 'C'){
-                score = score*matrix[1][i];
-            }
-            else if(current == 'G'){
-                score = score*matrix[2][i];
-            }
-            else if(current == 'T'){
-                score = score*matrix[3][i];
+            int current = PackedSequences.code(s.charAt(i));
+            if(current == PackedSequences.N){
+                //a window with an ambiguous base can't be an instance
+                return 0;
             }
+            score = score*matrix[current][i];
         } 
         return score;
     }
@@ -135,16 +234,14 @@ public class EM_MotifSearch extends MotifSearch {
      * get information content of matrix at position i
      */
     private double getInformationContentofPosition(int i){
-        char[] nucleotides = new char[]{'A', 'C', 'G', 'T'};
         double content = 0;
         double nucContent;
-        int count = 0;
-        for(char nuc : nucleotides){
-            double q = getNucleotideContent(nuc);
-            double m = matrix[count][i];
+        for(int b = 0; b<4; b++){
+            //background frequencies are counted once, when the sequences are read
+            double q = background.getFrequency(b);
+            double m = matrix[b][i];
             nucContent = m*(log2(m/q));
             content += nucContent;
-            count++;
         }
         return content;
     }
@@ -191,27 +288,134 @@ public class EM_MotifSearch extends MotifSearch {
      * the algorithm. Upon completion of this method, this EM_MotifSearch should correspond to the 
      * best motif (including matrix model and motif instances) identified over all executions of the 
      * algorithm.
+     * <p>
+     * Each restart runs on its own copy of the search with its own split of the random number 
+     * generator, numThreads (or the executor's threads) at a time. Ties go to the earliest restart.
      */
     public void run_EM_multiple_times(int iterations){
-        double bestIC = 0;
-        double[][] bestMatrix = new double[4][motifLength];
-        Vector<Integer> bestInstanceLocations = new Vector<Integer>();
-
+        //with fewer restarts than threads, run the restarts one at a time and give each one's
+        //E-steps all the threads; otherwise run restarts at once, each on a single thread
+        boolean parallelRestarts = iterations >= numThreads;
+        ExecutorService stepExecutor = numThreads > 1 && !parallelRestarts ? getExecutor() : null;
+        //split every restart's generator up front, in order, so results don't depend on scheduling;
+        //the restart itself is only made when it runs, so just the running ones hold buffers
+        List<Callable<Void>> restarts = new ArrayList<Callable<Void>>(iterations);
         for(int i = 0; i<iterations; i++){
-            EM();
-            if(getInformationContentOfMatrix()>bestIC){
-                bestMatrix = getMatrix();
-                bestInstanceLocations = getInstanceLocations();
-                bestIC = getInformationContentOfMatrix();
+            final int number = i;
+            final SplittableRandom restartRand = rand.split();
+            restarts.add(() -> {
+                EM_MotifSearch restart = newRestart(restartRand);
+                if(stepExecutor != null){
+                    restart.numThreads = numThreads;
+                    restart.executor = stepExecutor;
+                }
+                restart.EM();
+                restart.releaseBuffers();
+                keepIfBest(number, restart, restart.getInformationContentOfMatrix());
+                return null;
+            });
+        }
+        bestRestart = null;
+        if(parallelRestarts){
+            runAll(restarts);
+        }
+        else{
+            for(Callable<Void> restart : restarts){
+                call(restart);
             }
         }
-        matrix = bestMatrix;
-        instanceLocations = bestInstanceLocations;
+        if(bestRestart != null){
+            matrix = bestRestart.matrix;
+            instanceLocations = bestRestart.instanceLocations;
+            bestRestart = null;
+        }
+    }
+
+    //keeps only the best restart so far; ties go to the earliest, whatever order they finish in
+    private synchronized void keepIfBest(int number, EM_MotifSearch restart, double ic){
+        if(bestRestart == null || ic>bestRestartIC || (ic == bestRestartIC && number<bestRestartNumber)){
+            bestRestart = restart;
+            bestRestartIC = ic;
+            bestRestartNumber = number;
+        }
+    }
+
+    /**
+     * Drops the scratch buffers of a finished restart, keeping only its matrix and instances.
+     */
+    protected void releaseBuffers(){
+        codes = null;
+        chunkCodes = null;
+    }
+
+    //the executor given, or a pool of numThreads threads made on first use
+    private ExecutorService getExecutor(){
+        if(executor == null){
+            executor = new ForkJoinPool(numThreads);
+        }
+        return executor;
+    }
+
+    //runs the tasks in the calling thread, or on the executor when there is more than one thread
+    private void runAll(List<Callable<Void>> tasks){
+        if(tasks.size() == 1 || (executor == null && numThreads == 1)){
+            for(Callable<Void> task : tasks){
+                call(task);
+            }
+            return;
+        }
+        try{
+            for(Future<Void> f : getExecutor().invokeAll(tasks)){
+                f.get();
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while searching for motifs", e);
+        }
+        catch(ExecutionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    //runs one task in the calling thread
+    private static void call(Callable<Void> task){
+        try{
+            task.call();
+        }
+        catch(RuntimeException e){
+            throw e;
+        }
+        catch(Exception e){
+            throw new IllegalStateException(e);
+        }
     }
     
 
+    /**
+     * Applies the optional arguments after the number of restarts: the order (0-3) of the Markov 
+     * background used for scoring, "threads=N" to run N restarts at once, and "seed=N".
+     */
+    static void parseOptions(EM_MotifSearch search, String[] args){
+        for(int i = 3; i<args.length; i++){
+            if(args[i].startsWith("threads=")){
+                search.setNumThreads(Integer.parseInt(args[i].substring(8)));
+            }
+            else if(args[i].startsWith("seed=")){
+                search.setSeed(Long.parseLong(args[i].substring(5)));
+            }
+            else{
+                search.setBackgroundOrder(Integer.parseInt(args[i]));
+            }
+        }
+    }
+
     public static void main(String[] args) {
         EM_MotifSearch em = new EM_MotifSearch(args[0], Integer.parseInt(args[1]));
+        parseOptions(em, args);
         em.run_EM_multiple_times(Integer.parseInt(args[2]));
 
         System.out.println("*****FINAL MOTIFS*****");
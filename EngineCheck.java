@@ -0,0 +1,215 @@
+import java.io.*;
+import java.util.*;
+
+/******************************************************************
+ * The <code>EngineCheck</code> class checks that the faster engines of
+ * the clustering algorithms find the same clustering as the plain ones,
+ * on synthetic expression tables with and without missing values. For
+ * k means, Hamerly's and Elkan's algorithms must give every gene the same
+ * cluster as Lloyd's from the same seed. Their bounds do not hold for
+ * missing values, so there they must be rejected and <code>AUTO</code>
+ * must fall back to Lloyd's. For hierarchical clustering, the
+ * nearest-neighbor chain must make the same clusters as a scan of every
+ * pair, under every linkage; the clusters may be numbered differently.
+ * <p>
+ * Run it as <code>java EngineCheck [seed=1]</code>; it prints one line per
+ * comparison and exits with status 1 if any of them differ.
+ ******************************************************************/
+public class EngineCheck {
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * The size of the k means tables
+     */
+    private static final int KMEANS_GENES = 3000, KMEANS_EXPERIMENTS = 12, KMEANS_CLUSTERS = 40;
+
+    /**
+     * The size of the hierarchical clustering tables, small enough for the scan
+     */
+    private static final int HIERARCHICAL_GENES = 400, HIERARCHICAL_EXPERIMENTS = 12, HIERARCHICAL_CLUSTERS = 10;
+
+    /**
+     * The fraction of values left blank in the tables with missing values
+     */
+    private static final double MISSING_RATE = 0.1;
+
+
+
+    /**************************************************************
+     ********************** PUBLIC CLASS METHODS ******************
+     **************************************************************/
+
+    /**
+     * Compares the k means engines on one table with the specified seed, and returns
+     * <code>true</code> if they all agree. On a table with missing values, the bounded
+     * engines must instead refuse to run.
+     *
+     * @param   matrix   an expression table
+     * @param   numClusters   the number of clusters
+     * @param   metric   the distance metric
+     * @param   seed   the seed of every run
+     * @return   whether every engine gave the same assignment as <code>LLOYD</code>, or was rejected
+     */
+    public static boolean checkKMeans(ExpressionMatrix matrix, int numClusters, DistanceMetric metric, long seed) {
+	int[] expected = kMeans(matrix, numClusters, metric, seed, KMeans_Clustering.Engine.LLOYD);
+	boolean same = true;
+	for (KMeans_Clustering.Engine engine : KMeans_Clustering.Engine.values()) {
+	    if (engine == KMeans_Clustering.Engine.LLOYD)
+		continue;
+	    if (matrix.hasMissingValues() && engine != KMeans_Clustering.Engine.AUTO)
+		same &= reportRejected("k means " + engine + ", " + metric + describe(matrix),
+				       matrix, numClusters, metric, seed, engine);
+	    else
+		same &= report("k means " + engine + " vs LLOYD, " + metric + describe(matrix),
+			       expected, kMeans(matrix, numClusters, metric, seed, engine));
+	}
+	return same;
+    }
+
+    /**
+     * Compares the hierarchical clustering engines on one table under every linkage, and returns
+     * <code>true</code> if they agree.
+     *
+     * @param   matrix   an expression table
+     * @param   numClusters   the number of clusters to cut the tree into
+     * @param   metric   the distance metric
+     * @return   whether <code>NN_CHAIN</code> made the same clusters as <code>SCAN</code> under every linkage
+     */
+    public static boolean checkHierarchical(ExpressionMatrix matrix, int numClusters, DistanceMetric metric) {
+	boolean same = true;
+	for (Linkage linkage : Linkage.values()) {
+	    same &= report("hierarchical NN_CHAIN vs SCAN, " + linkage + ", " + metric + describe(matrix),
+			   renumber(hierarchical(matrix, numClusters, metric, linkage, Hierarchical_Clustering.Engine.SCAN)),
+			   renumber(hierarchical(matrix, numClusters, metric, linkage, Hierarchical_Clustering.Engine.NN_CHAIN)));
+	}
+	return same;
+    }
+
+    /**
+     * Runs every check on synthetic tables and exits with status 1 if any fails.
+     */
+    public static void main(String[] args) throws IOException {
+	long seed = 1;
+	for (String arg : args) {
+	    if (arg.startsWith("seed="))
+		seed = Long.parseLong(arg.substring(5));
+	    else
+		throw new IllegalArgumentException("Usage: java EngineCheck [seed=N]");
+	}
+	boolean same = true;
+	for (double missingRate : new double[] {0.0, MISSING_RATE}) {
+	    ExpressionMatrix matrix = synthetic(KMEANS_GENES, KMEANS_EXPERIMENTS, KMEANS_CLUSTERS, missingRate, seed);
+	    for (StandardDistanceMetric metric : new StandardDistanceMetric[] {StandardDistanceMetric.EUCLIDEAN,
+									      StandardDistanceMetric.MANHATTAN})
+		same &= checkKMeans(matrix, KMEANS_CLUSTERS, metric, seed);
+	    matrix = synthetic(HIERARCHICAL_GENES, HIERARCHICAL_EXPERIMENTS, HIERARCHICAL_CLUSTERS, missingRate, seed);
+	    same &= checkHierarchical(matrix, HIERARCHICAL_CLUSTERS, StandardDistanceMetric.EUCLIDEAN);
+	}
+	if (!same)
+	    System.exit(1);
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE CLASS METHODS ******************
+     ***************************************************************/
+
+    /**
+     * Returns the cluster of every gene after k means with the specified engine.
+     */
+    private static int[] kMeans(ExpressionMatrix matrix, int numClusters, DistanceMetric metric, long seed,
+				KMeans_Clustering.Engine engine) {
+	KMeans_Clustering clustering = new KMeans_Clustering(matrix, numClusters);
+	clustering.setDistanceMetric(metric);
+	clustering.setEngine(engine);
+	clustering.setSeed(seed);
+	clustering.kMeans();
+	return clustering.getClusterAssignment();
+    }
+
+    /**
+     * Returns the cluster of every gene after hierarchical clustering with the specified engine.
+     */
+    private static int[] hierarchical(ExpressionMatrix matrix, int numClusters, DistanceMetric metric, Linkage linkage,
+				      Hierarchical_Clustering.Engine engine) {
+	Hierarchical_Clustering clustering = new Hierarchical_Clustering(matrix, numClusters);
+	clustering.setDistanceMetric(metric);
+	clustering.setLinkage(linkage);
+	clustering.setEngine(engine);
+	clustering.hierarchical();
+	return clustering.getClusterAssignment();
+    }
+
+    /**
+     * Numbers the clusters of an assignment in the order their first genes appear, so that two
+     * assignments making the same clusters are equal.
+     */
+    private static int[] renumber(int[] assignment) {
+	Map<Integer, Integer> numbers = new HashMap<Integer, Integer>();
+	int[] renumbered = new int[assignment.length];
+	for (int i=0; i<assignment.length; i++) {
+	    Integer number = numbers.get(assignment[i]);
+	    if (number == null)
+		numbers.put(assignment[i], number = numbers.size());
+	    renumbered[i] = number;
+	}
+	return renumbered;
+    }
+
+    /**
+     * Prints whether two assignments are the same and returns <code>true</code> if they are.
+     */
+    private static boolean report(String what, int[] expected, int[] actual) {
+	int differ = 0;
+	for (int i=0; i<expected.length; i++) {
+	    if (expected[i] != actual[i])
+		differ++;
+	}
+	System.out.println((differ == 0 ? "same     " : "DIFFERENT") + "  " + what
+			   + (differ == 0 ? "" : " (" + differ + " of " + expected.length + " genes)"));
+	return differ == 0;
+    }
+
+    /**
+     * Prints whether k means refused to run with the specified engine and returns <code>true</code> if it did.
+     */
+    private static boolean reportRejected(String what, ExpressionMatrix matrix, int numClusters, DistanceMetric metric,
+					  long seed, KMeans_Clustering.Engine engine) {
+	boolean rejected = false;
+	try {
+	    kMeans(matrix, numClusters, metric, seed, engine);
+	} catch (IllegalArgumentException e) {
+	    rejected = true;
+	}
+	System.out.println((rejected ? "rejected " : "RAN      ") + "  " + what);
+	return rejected;
+    }
+
+    /**
+     * Returns a note of whether a table has missing values, for the report.
+     */
+    private static String describe(ExpressionMatrix matrix) {
+	return matrix.hasMissingValues() ? ", missing values" : ", complete";
+    }
+
+    /**
+     * Writes a synthetic expression table to a temporary file and reads it back.
+     */
+    private static ExpressionMatrix synthetic(int numGenes, int numExperiments, int numClusters, double missingRate,
+					      long seed) throws IOException {
+	File file = File.createTempFile("engine-check", ".txt");
+	File truth = new File(file.getPath() + ".truth");
+	try {
+	    SyntheticData.writeExpressionTable(file.getPath(), numGenes, numExperiments, numClusters, 1.0, missingRate, seed, 1);
+	    return new ExpressionFileReader(file.getPath()).read();
+	} finally {
+	    file.delete();
+	    truth.delete();
+	}
+    }
+
+}
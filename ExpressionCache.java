@@ -0,0 +1,299 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/******************************************************************
+ * The <code>ExpressionCache</code> class stores an
+ * <code>ExpressionMatrix</code> in a compact binary file that can be
+ * memory-mapped and opened far faster than its text file can be parsed.
+ * <p>
+ * A cache file holds, in little-endian order:
+ * <ul>
+ * <li>a header: the magic number, the format version, the size in bytes of
+ *     each value (4 or 8), the numbers of genes and experiments, flags
+ *     (whether any value is missing), and the size and modification time of
+ *     the text file it was made from;</li>
+ * <li>three string columns, each a run of UTF-8 strings preceded by their
+ *     byte lengths: the experiment names, the gene names and the gene
+ *     functions;</li>
+ * <li>the expression values as one row-major block of
+ *     <code>float</code>s or <code>double</code>s, aligned to 8 bytes, with
+ *     0 for missing values;</li>
+ * <li>if any value is missing, the presence bits of
+ *     <code>ExpressionMatrix.getPresenceMask</code>, aligned to 8 bytes.</li>
+ * </ul>
+ * The values are copied straight into the arrays of an
+ * <code>ExpressionMatrix</code> with the same storage (<code>FLOAT</code>
+ * for a 4-byte cache) and never scanned, so opening a cache costs little
+ * more than reading its bytes.
+ * <p>
+ * When the system property <code>clustering.cache</code> is
+ * <code>true</code>, <code>Clustering.readExpressionMatrix</code> writes a
+ * cache next to each text file it parses (as <code>fileName.exmc</code>)
+ * and reads the cache instead on later runs, as long as the text file has
+ * not changed since.
+ ******************************************************************/
+public class ExpressionCache {
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * The extension added to the name of a text file to name its cache
+     */
+    public static final String EXTENSION = ".exmc";
+
+    /**
+     * The first four bytes of every cache file ("EXMC")
+     */
+    private static final int MAGIC = 0x434D5845;
+
+    /**
+     * The version of the format written by this class
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The size in bytes of the fixed part of the header
+     */
+    private static final int HEADER_SIZE = 40;
+
+    /**
+     * The flag set in the header when the file holds presence bits
+     */
+    private static final int HAS_MISSING_VALUES = 1;
+
+    /**
+     * The most bytes of values mapped at once; a <code>MappedByteBuffer</code> cannot hold more
+     * than 2 GB, so larger caches are read a segment at a time
+     */
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+
+
+    /**************************************************************
+     ********************** PUBLIC CLASS METHODS ******************
+     **************************************************************/
+
+    /**
+     * Returns the name of the cache file for the specified text file.
+     *
+     * @param   fileName   the name of a tab-delimited text file
+     * @return   the name of its cache file
+     */
+    public static String getCacheFileName(String fileName) {
+	return fileName + EXTENSION;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified cache file exists and was made from the
+     * specified text file as it is now (same size and modification time).
+     *
+     * @param   cacheFileName   the name of a cache file
+     * @param   sourceFileName   the name of the text file it should have been made from
+     * @return   whether the cache can be used in place of the text file
+     */
+    public static boolean isUpToDate(String cacheFileName, String sourceFileName) {
+	File cache = new File(cacheFileName);
+	File source = new File(sourceFileName);
+	if (!cache.isFile() || cache.length() < HEADER_SIZE)
+	    return false;
+	try (FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ)) {
+	    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	    channel.read(header, 0);
+	    header.flip();
+	    if (header.getInt() != MAGIC || header.getInt() != VERSION)
+		return false;
+	    header.position(24);
+	    return header.getLong() == source.length() && header.getLong() == source.lastModified();
+	} catch (IOException e) {
+	    return false;
+	}
+    }
+
+    /**
+     * Reads an <code>ExpressionMatrix</code> from a cache file. The strings are read through a
+     * buffered stream and the values by memory-mapping them a segment of at most 1 GB at a time,
+     * so caches of any size can be read. A cache of 4-byte values gives a matrix with
+     * <code>FLOAT</code> storage and one of 8-byte values a matrix with <code>DOUBLE</code> storage.
+     *
+     * @param   cacheFileName   the name of a cache file
+     * @return   the <code>ExpressionMatrix</code> stored in the file
+     * @exception   IOException   if the file cannot be read or is not a cache file
+     */
+    public static ExpressionMatrix read(String cacheFileName) throws IOException {
+	try (FileChannel channel = FileChannel.open(Paths.get(cacheFileName), StandardOpenOption.READ)) {
+	    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	    channel.read(header, 0);
+	    header.flip();
+	    if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+		throw new IOException(cacheFileName + " is not an expression cache file");
+	    int version = header.getInt();
+	    if (version != VERSION)
+		throw new IOException(cacheFileName + " has unsupported version " + version);
+	    int valueSize = header.getInt();
+	    int numGenes = header.getInt();
+	    int numExperiments = header.getInt();
+	    int flags = header.getInt();
+	    if (valueSize != 8 && valueSize != 4)
+		throw new IOException(cacheFileName + " has unsupported value size " + valueSize);
+
+	    // Not closed: closing the stream would close the channel
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(HEADER_SIZE)), 1 << 16));
+	    long[] position = {HEADER_SIZE};
+	    String[] experimentNames = readStrings(in, numExperiments, position);
+	    String[] geneNames = readStrings(in, numGenes, position);
+	    String[] geneFunctions = readStrings(in, numGenes, position);
+
+	    int size = Math.multiplyExact(numGenes, numExperiments);
+	    int maskWords = (numExperiments + 63) / 64;
+	    long[] presence = (flags & HAS_MISSING_VALUES) == 0 ? null : new long[numGenes * maskWords];
+	    long start = align(position[0]);
+	    long maskStart = align(start + (long)size * valueSize);
+	    if ((presence == null ? start + (long)size * valueSize : maskStart + 8L * presence.length) > channel.size())
+		throw new IOException(cacheFileName + " is truncated");
+	    double[] values = valueSize == 8 ? new double[size] : null;
+	    float[] floatValues = valueSize == 4 ? new float[size] : null;
+	    int perSegment = SEGMENT_SIZE / valueSize;
+	    for (int offset=0; offset<size; offset+=perSegment) {
+		int count = Math.min(perSegment, size - offset);
+		ByteBuffer segment = map(channel, start + (long)offset * valueSize, (long)count * valueSize);
+		if (values != null)
+		    segment.asDoubleBuffer().get(values, offset, count);
+		else
+		    segment.asFloatBuffer().get(floatValues, offset, count);
+	    }
+	    if (presence != null) {
+		for (int offset=0; offset<presence.length; offset+=SEGMENT_SIZE / 8) {
+		    int count = Math.min(SEGMENT_SIZE / 8, presence.length - offset);
+		    map(channel, maskStart + 8L * offset, 8L * count).asLongBuffer().get(presence, offset, count);
+		}
+	    }
+	    if (values != null)
+		return new ExpressionMatrix(experimentNames, geneNames, geneFunctions, values, presence);
+	    return new ExpressionMatrix(experimentNames, geneNames, geneFunctions, floatValues, presence);
+	}
+    }
+
+    /**
+     * Writes an <code>ExpressionMatrix</code> to a cache file. The file is written under a
+     * temporary name and then renamed, so a reader never sees a partly written cache.
+     *
+     * @param   matrix   the <code>ExpressionMatrix</code> to store
+     * @param   cacheFileName   the name of the cache file
+     * @param   sourceFileName   the name of the text file the matrix was read from
+     * @param   singlePrecision   <code>true</code> to store values as <code>floats</code>, halving the file
+     * @exception   IOException   if the file cannot be written
+     */
+    public static void write(ExpressionMatrix matrix, String cacheFileName, String sourceFileName, boolean singlePrecision) throws IOException {
+	File source = new File(sourceFileName);
+	int numGenes = matrix.getNumGenes();
+	int numExperiments = matrix.getNumExperiments();
+	Path target = Paths.get(cacheFileName).toAbsolutePath();
+	Path temporary = Paths.get(target + "." + ProcessHandle.current().pid() + ".tmp");
+	try {
+	    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(singlePrecision ? 4 : 8).putInt(numGenes).putInt(numExperiments);
+		header.putInt(matrix.hasMissingValues() ? HAS_MISSING_VALUES : 0);
+		header.putLong(source.length()).putLong(source.lastModified());
+		out.write(header.array());
+		long position = HEADER_SIZE;
+		for (String name : matrix.getExperimentNames())
+		    position += writeString(out, name);
+		for (int i=0; i<numGenes; i++)
+		    position += writeString(out, matrix.getGeneName(i));
+		for (int i=0; i<numGenes; i++)
+		    position += writeString(out, matrix.getGeneFunction(i));
+		for (long p=position; p<align(position); p++)
+		    out.write(0);
+
+		int valueSize = singlePrecision ? 4 : 8;
+		ByteBuffer row = ByteBuffer.allocate(numExperiments * valueSize).order(ByteOrder.LITTLE_ENDIAN);
+		double[] rowValues = new double[numExperiments];
+		for (int i=0; i<numGenes; i++) {
+		    row.clear();
+		    matrix.copyRow(i, rowValues, 0);  // 0 where a value is missing
+		    for (int j=0; j<numExperiments; j++) {
+			if (singlePrecision)
+			    row.putFloat((float)rowValues[j]);
+			else
+			    row.putDouble(rowValues[j]);
+		    }
+		    out.write(row.array(), 0, row.position());
+		}
+		long[] presence = matrix.getPresenceMask();
+		if (presence != null) {
+		    position = align(position) + (long)numGenes * numExperiments * valueSize;
+		    for (long p=position; p<align(position); p++)
+			out.write(0);
+		    ByteBuffer words = ByteBuffer.allocate(8 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+		    for (int w=0; w<presence.length; w++) {
+			words.putLong(presence[w]);
+			if (!words.hasRemaining() || w == presence.length - 1) {
+			    out.write(words.array(), 0, words.position());
+			    words.clear();
+			}
+		    }
+		}
+	    }
+	    Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	} finally {
+	    Files.deleteIfExists(temporary);
+	}
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE CLASS METHODS ******************
+     ***************************************************************/
+
+    /**
+     * Reads the specified number of length-prefixed UTF-8 strings, adding the number of bytes
+     * read to <code>position[0]</code>.
+     */
+    private static String[] readStrings(DataInputStream in, int count, long[] position) throws IOException {
+	String[] strings = new String[count];
+	byte[] bytes = new byte[256];
+	for (int i=0; i<count; i++) {
+	    int length = Integer.reverseBytes(in.readInt());  // Little-endian, like the rest of the file
+	    if (length < 0)
+		throw new IOException("Corrupt string length " + length);
+	    if (length > bytes.length)
+		bytes = new byte[Math.max(length, 2 * bytes.length)];
+	    in.readFully(bytes, 0, length);
+	    strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+	    position[0] += 4 + length;
+	}
+	return strings;
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string and returns the number of bytes written.
+     */
+    private static int writeString(DataOutputStream out, String s) throws IOException {
+	byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+	out.writeInt(Integer.reverseBytes(bytes.length));  // Little-endian, like the rest of the file
+	out.write(bytes);
+	return 4 + bytes.length;
+    }
+
+    /**
+     * Maps part of a cache file for reading, in the byte order of the file.
+     */
+    private static ByteBuffer map(FileChannel channel, long start, long length) throws IOException {
+	return channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Rounds a file offset up to a multiple of 8.
+     */
+    private static long align(long position) {
+	return (position + 7) & ~7L;
+    }
+
+}
@@ -0,0 +1,662 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/******************************************************************
+ * An instance of the <code>ExpressionFileReader</code> class reads a
+ * tab-delimited file of gene and experiment data into an
+ * <code>ExpressionMatrix</code> in a single pass.
+ * <p>
+ * The file layout is the one expected by <code>Clustering</code>: a header
+ * line whose first two tokens are ignored and whose remaining tokens are
+ * experiment names, followed by one line per gene holding the gene's name,
+ * function, and expression values. Bytes are read through a
+ * <code>FileChannel</code> and tokenized by hand, so no <code>String</code>
+ * is created for an expression value. Large files may be split into
+ * line-aligned chunks that are parsed concurrently.
+ * <p>
+ * Blank cells, cells holding <code>NA</code> or <code>NaN</code> (in any
+ * case), and cells missing from the end of a short line are read as missing
+ * values and stored as <code>NaN</code>.
+ ******************************************************************/
+public class ExpressionFileReader {
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * Size in bytes of the buffer each parser reads into
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Files smaller than this many bytes per thread are not split further
+     */
+    private static final long MIN_CHUNK_SIZE = 8L << 20;
+
+    /**
+     * Exact powers of ten representable as <code>doubles</code>
+     */
+    private static final double[] POWERS_OF_TEN = {
+	1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+	1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+
+
+    /**************************************************************
+     ********************** INSTANCE VARIABLES ********************
+     **************************************************************/
+
+    /**
+     * The name of the file being read
+     */
+    private String fileName;
+
+    /**
+     * The number of threads used to parse the file
+     */
+    private int numThreads;
+
+
+
+    /**************************************************************
+     ********************** CONSTRUCTOR ***************************
+     **************************************************************/
+
+    /**
+     * Creates an <code>ExpressionFileReader</code> for the specified file that parses on a single thread.
+     *
+     * @param   fileName   the name of a tab-delimited text file containing gene and experiment data
+     */
+    public ExpressionFileReader(String fileName) {
+	this(fileName, 1);
+    }
+
+    /**
+     * Creates an <code>ExpressionFileReader</code> for the specified file that splits the file into
+     * chunks parsed concurrently by up to the specified number of threads.
+     *
+     * @param   fileName   the name of a tab-delimited text file containing gene and experiment data
+     * @param   numThreads   the maximum number of threads used for parsing
+     */
+    public ExpressionFileReader(String fileName, int numThreads) {
+	this.fileName = fileName;
+	this.numThreads = Math.max(1, numThreads);
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC INSTANCE METHODS ***************
+     **************************************************************/
+
+    /**
+     * Reads the file and returns its contents as an <code>ExpressionMatrix</code>.
+     *
+     * @return   an <code>ExpressionMatrix</code> holding every gene in the file
+     * @throws   IOException   if the file cannot be read, or holds a value that is not a number
+     */
+    public ExpressionMatrix read() throws IOException {
+	try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+	    long fileSize = channel.size();
+	    ChunkParser headerParser = new ChunkParser(channel, 0, fileSize, -1);
+	    String[] experimentNames = headerParser.readHeader();
+	    long dataStart = headerParser.position();
+
+	    long[] boundaries = getChunkBoundaries(channel, dataStart, fileSize);
+	    int numChunks = boundaries.length - 1;
+	    ChunkParser[] parsers = new ChunkParser[numChunks];
+	    for (int c=0; c<numChunks; c++)
+		parsers[c] = new ChunkParser(channel, boundaries[c], boundaries[c + 1], experimentNames.length);
+
+	    // The header is line 1, and each chunk starts after the lines of the chunks before it
+	    long firstLine = 2;
+	    if (numChunks == 1) {
+		try {
+		    parsers[0].parseRows();
+		} catch (BadValueException e) {
+		    throw e.toIOException(fileName, firstLine);
+		}
+	    } else {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, numChunks));
+		try {
+		    List<Future<Void>> results = new ArrayList<Future<Void>>();
+		    for (ChunkParser parser : parsers)
+			results.add(pool.submit(parser));
+		    // Waiting in order means every chunk before a failed one has finished counting its lines
+		    for (int c=0; c<numChunks; c++) {
+			try {
+			    results.get(c).get();
+			} catch (ExecutionException e) {
+			    if (e.getCause() instanceof BadValueException)
+				throw ((BadValueException)e.getCause()).toIOException(fileName, firstLine);
+			    if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			    throw new IOException("Could not parse " + fileName, e.getCause());
+			}
+			firstLine += parsers[c].numLines;
+		    }
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    throw new InterruptedIOException("Interrupted while reading " + fileName);
+		} finally {
+		    pool.shutdown();
+		}
+	    }
+
+	    return concatenate(experimentNames, parsers);
+	}
+    }
+
+    /**
+     * Opens the file for reading in batches of at most the specified number of rows.
+     * Only one batch is held in memory at a time.
+     *
+     * @param   batchSize   the largest number of rows returned by one call to <code>nextBatch</code>
+     * @return   a <code>RowStream</code> positioned at the first gene in the file
+     * @throws   IOException   if the file cannot be read
+     */
+    public RowStream openRowStream(int batchSize) throws IOException {
+	if (batchSize < 1)
+	    throw new IllegalArgumentException("Batch size must be positive but was " + batchSize);
+	return new RowStream(fileName, FileChannel.open(Paths.get(fileName), StandardOpenOption.READ), batchSize);
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE INSTANCE METHODS ***************
+     ***************************************************************/
+
+    /**
+     * Returns the file offsets at which chunks begin, followed by the end of the file.
+     * Every offset except the first is moved forward to just past a newline so that
+     * each chunk holds only whole lines.
+     */
+    private long[] getChunkBoundaries(FileChannel channel, long dataStart, long fileSize) throws IOException {
+	long dataSize = fileSize - dataStart;
+	int numChunks = (int)Math.max(1, Math.min(numThreads, dataSize / MIN_CHUNK_SIZE));
+	long[] boundaries = new long[numChunks + 1];
+	boundaries[0] = dataStart;
+	boundaries[numChunks] = fileSize;
+	ByteBuffer probe = ByteBuffer.allocate(4096);
+	for (int c=1; c<numChunks; c++) {
+	    long position = Math.max(dataStart + c * (dataSize / numChunks), boundaries[c - 1]);
+	    boolean found = false;
+	    while (!found && position < fileSize) {
+		probe.clear();
+		int n = channel.read(probe, position);
+		if (n <= 0)
+		    break;
+		for (int i=0; i<n && !found; i++) {
+		    if (probe.get(i) == '\n') {
+			position += i + 1;
+			found = true;
+		    }
+		}
+		if (!found)
+		    position += n;
+	    }
+	    boundaries[c] = Math.min(position, fileSize);
+	}
+	return boundaries;
+    }
+
+    /**
+     * Copies the rows parsed by each chunk, in file order, into a single <code>ExpressionMatrix</code>.
+     */
+    private static ExpressionMatrix concatenate(String[] experimentNames, ChunkParser[] parsers) {
+	int numRows = 0;
+	for (ChunkParser parser : parsers)
+	    numRows += parser.numRows;
+	if (parsers.length == 1)
+	    return parsers[0].toMatrix(experimentNames);
+	String[] names = new String[numRows];
+	String[] functions = new String[numRows];
+	double[] values = new double[numRows * experimentNames.length];
+	int row = 0;
+	for (ChunkParser parser : parsers) {
+	    System.arraycopy(parser.names, 0, names, row, parser.numRows);
+	    System.arraycopy(parser.functions, 0, functions, row, parser.numRows);
+	    System.arraycopy(parser.values, 0, values, row * experimentNames.length, parser.numRows * experimentNames.length);
+	    row += parser.numRows;
+	}
+	return new ExpressionMatrix(experimentNames, names, functions, values);
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC CLASS METHODS ******************
+     **************************************************************/
+
+    /**
+     * Returns <code>true</code> if the specified bytes hold a missing value: nothing but
+     * spaces, or <code>NA</code> or <code>NaN</code> in any case.
+     *
+     * @param   bytes   an array of bytes holding a cell in ASCII
+     * @param   start   the index of the first byte of the cell
+     * @param   end   the index just past the last byte of the cell
+     * @return   whether the cell is a missing value
+     */
+    public static boolean isMissing(byte[] bytes, int start, int end) {
+	while (start < end && bytes[start] == ' ')
+	    start++;
+	while (end > start && bytes[end - 1] == ' ')
+	    end--;
+	int length = end - start;
+	if (length == 0)
+	    return true;
+	if (length != 2 && length != 3)
+	    return false;
+	// Upper-case letters by clearing bit 5
+	return (bytes[start] & 0xDF) == 'N' && (bytes[start + 1] & 0xDF) == 'A'
+	    && (length == 2 || (bytes[start + 2] & 0xDF) == 'N');
+    }
+
+    /**
+     * Parses one expression value, returning <code>NaN</code> for a missing value.
+     *
+     * @param   cell   the text of a cell
+     * @return   the parsed value, or <code>NaN</code> if the cell is a missing value
+     */
+    public static double parseValue(String cell) {
+	byte[] bytes = cell.getBytes(StandardCharsets.US_ASCII);
+	return isMissing(bytes, 0, bytes.length) ? Double.NaN : parseDouble(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Parses a decimal number from the specified bytes. Plain decimal and scientific notation
+     * are parsed by hand; anything else (e.g. <code>NaN</code> or numbers with more than 18
+     * significant digits) falls back to <code>Double.parseDouble</code>.
+     *
+     * @param   bytes   an array of bytes holding the number in ASCII
+     * @param   start   the index of the first byte of the number
+     * @param   end   the index just past the last byte of the number
+     * @return   the parsed number
+     */
+    public static double parseDouble(byte[] bytes, int start, int end) {
+	int i = start;
+	boolean negative = false;
+	if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+	    negative = bytes[i] == '-';
+	    i++;
+	}
+	long mantissa = 0;
+	int digits = 0;
+	int exponent = 0;
+	boolean sawDigit = false;
+	while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+	    if (digits < 18) {
+		mantissa = mantissa * 10 + (bytes[i] - '0');
+		if (mantissa != 0) digits++;
+	    } else {
+		exponent++;  // Too many digits to keep exactly; remember the magnitude
+		digits++;
+	    }
+	    sawDigit = true;
+	    i++;
+	}
+	if (i < end && bytes[i] == '.') {
+	    i++;
+	    while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+		if (digits < 18) {
+		    mantissa = mantissa * 10 + (bytes[i] - '0');
+		    exponent--;
+		    if (mantissa != 0) digits++;
+		} else {
+		    digits++;
+		}
+		sawDigit = true;
+		i++;
+	    }
+	}
+	if (sawDigit && i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+	    i++;
+	    boolean negativeExponent = false;
+	    if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+		negativeExponent = bytes[i] == '-';
+		i++;
+	    }
+	    int e = 0;
+	    boolean sawExponentDigit = false;
+	    while (i < end && bytes[i] >= '0' && bytes[i] <= '9' && e < 10000) {
+		e = e * 10 + (bytes[i] - '0');
+		sawExponentDigit = true;
+		i++;
+	    }
+	    if (!sawExponentDigit)
+		sawDigit = false;
+	    exponent += negativeExponent ? -e : e;
+	}
+	if (!sawDigit || i != end || digits > 18 || exponent < -22 || exponent > 22)
+	    return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.US_ASCII).trim());
+	// Both the mantissa (< 2^63, at most 18 digits) and the power of ten are exact,
+	// so a single multiply or divide gives a correctly rounded result when mantissa < 2^53
+	if (mantissa >= (1L << 53))
+	    return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+	double value = (double)mantissa;
+	value = exponent < 0 ? value / POWERS_OF_TEN[-exponent] : value * POWERS_OF_TEN[exponent];
+	return negative ? -value : value;
+    }
+
+
+
+    /**************************************************************
+     ********************** NESTED CLASSES ************************
+     **************************************************************/
+
+    /**
+     * Reads the genes of a file a batch at a time, for data sets too large to hold in memory.
+     */
+    public static class RowStream implements Closeable {
+
+	private final FileChannel channel;
+	private final ChunkParser parser;
+	private final String[] experimentNames;
+	private final long dataStart;
+	private final int batchSize;
+
+	private final String fileName;
+
+	private RowStream(String fileName, FileChannel channel, int batchSize) throws IOException {
+	    this.fileName = fileName;
+	    this.channel = channel;
+	    this.batchSize = batchSize;
+	    ChunkParser headerParser = new ChunkParser(channel, 0, channel.size(), -1);
+	    experimentNames = headerParser.readHeader();
+	    dataStart = headerParser.position();
+	    parser = new ChunkParser(channel, dataStart, channel.size(), experimentNames.length, batchSize);
+	}
+
+	/**
+	 * Returns the names of the experiments in the file.
+	 *
+	 * @return   an array of experiment names
+	 */
+	public String[] getExperimentNames() {
+	    return experimentNames;
+	}
+
+	/**
+	 * Reads the next batch of genes. The returned arrays are reused by the following call.
+	 *
+	 * @return   the number of genes read, or 0 at the end of the file
+	 * @throws   IOException   if the file cannot be read, or holds a value that is not a number
+	 */
+	public int nextBatch() throws IOException {
+	    parser.numRows = 0;
+	    try {
+		parser.parseRows(batchSize);
+	    } catch (BadValueException e) {
+		throw e.toIOException(fileName, 2);  // The parser counts lines from the one after the header
+	    }
+	    return parser.numRows;
+	}
+
+	/**
+	 * Returns the expression values of the current batch in row-major order.
+	 *
+	 * @return   an array holding at least <code>numRows * getExperimentNames().length</code> values
+	 */
+	public double[] getValues() {
+	    return parser.values;
+	}
+
+	/**
+	 * Returns the gene names of the current batch.
+	 *
+	 * @return   an array holding at least <code>numRows</code> names
+	 */
+	public String[] getGeneNames() {
+	    return parser.names;
+	}
+
+	/**
+	 * Returns the gene functions of the current batch.
+	 *
+	 * @return   an array holding at least <code>numRows</code> functions
+	 */
+	public String[] getGeneFunctions() {
+	    return parser.functions;
+	}
+
+	/**
+	 * Moves back to the first gene in the file.
+	 */
+	public void rewind() {
+	    parser.reset(dataStart);
+	}
+
+	public void close() throws IOException {
+	    channel.close();
+	}
+    }
+
+    /**
+     * Parses the whole lines in one byte range of the file into growable primitive buffers.
+     */
+    private static class ChunkParser implements Callable<Void> {
+
+	private final FileChannel channel;
+	private long position;
+	private final long end;
+	private final int numColumns;
+
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int bufferStart = 0;
+	private int bufferEnd = 0;
+
+	int numRows = 0;
+	int numLines = 0;
+	String[] names;
+	String[] functions;
+	double[] values;
+
+	ChunkParser(FileChannel channel, long start, long end, int numColumns) {
+	    this(channel, start, end, numColumns, 1024);
+	}
+
+	ChunkParser(FileChannel channel, long start, long end, int numColumns, int initialRows) {
+	    this.channel = channel;
+	    this.position = start;
+	    this.end = end;
+	    this.numColumns = numColumns;
+	    names = new String[initialRows];
+	    functions = new String[initialRows];
+	    values = new double[Math.max(1, numColumns) * initialRows];
+	}
+
+	/**
+	 * Returns the file offset of the first byte not yet consumed.
+	 */
+	long position() {
+	    return position - (bufferEnd - bufferStart);
+	}
+
+	public Void call() throws IOException {
+	    parseRows();
+	    return null;
+	}
+
+	/**
+	 * Reads the header line and returns the experiment names it contains.
+	 */
+	String[] readHeader() throws IOException {
+	    int lineEnd = nextLineEnd();
+	    if (lineEnd < 0)
+		return new String[0];
+	    List<String> tokens = new ArrayList<String>();
+	    int tokenStart = bufferStart;
+	    int contentEnd = trimCarriageReturn(bufferStart, lineEnd);
+	    for (int i=bufferStart; i<=contentEnd; i++) {
+		if (i == contentEnd || buffer[i] == '\t') {
+		    tokens.add(new String(buffer, tokenStart, i - tokenStart, StandardCharsets.UTF_8));
+		    tokenStart = i + 1;
+		}
+	    }
+	    bufferStart = lineEnd + 1;
+	    // Ignore first two tokens
+	    return tokens.subList(Math.min(2, tokens.size()), tokens.size()).toArray(new String[0]);
+	}
+
+	/**
+	 * Parses every remaining line in this chunk.
+	 */
+	void parseRows() throws IOException {
+	    parseRows(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Parses lines until the chunk is exhausted or <code>numRows</code> reaches the specified limit.
+	 */
+	void parseRows(int maxRows) throws IOException {
+	    int lineEnd;
+	    while (numRows < maxRows && (lineEnd = nextLineEnd()) >= 0) {
+		int contentEnd = trimCarriageReturn(bufferStart, lineEnd);
+		if (contentEnd > bufferStart)  // Skip blank lines
+		    parseRow(bufferStart, contentEnd);
+		bufferStart = lineEnd + 1;
+		numLines++;
+	    }
+	}
+
+	/**
+	 * Discards buffered bytes and parsed rows, and continues reading from the specified file offset.
+	 */
+	void reset(long start) {
+	    position = start;
+	    bufferStart = 0;
+	    bufferEnd = 0;
+	    numRows = 0;
+	    numLines = 0;
+	}
+
+	/**
+	 * Parses one line holding a gene's name, function, and expression values.
+	 */
+	private void parseRow(int start, int end) throws BadValueException {
+	    if (numRows == names.length) {
+		names = Arrays.copyOf(names, 2 * names.length);
+		functions = Arrays.copyOf(functions, 2 * functions.length);
+		values = Arrays.copyOf(values, 2 * values.length);
+	    }
+	    int i = start;
+	    int tokenEnd = indexOfTab(i, end);
+	    String name = new String(buffer, i, tokenEnd - i, StandardCharsets.UTF_8);
+	    i = tokenEnd + 1;
+	    tokenEnd = indexOfTab(Math.min(i, end), end);
+	    String function = i <= end ? new String(buffer, i, tokenEnd - i, StandardCharsets.UTF_8) : "";
+	    i = tokenEnd + 1;
+	    int offset = numRows * numColumns;
+	    for (int j=0; j<numColumns; j++) {
+		if (i > end) {  // A short line leaves its last experiments missing
+		    values[offset + j] = Double.NaN;
+		    continue;
+		}
+		tokenEnd = indexOfTab(i, end);
+		try {
+		    values[offset + j] = isMissing(buffer, i, tokenEnd) ? Double.NaN : parseDouble(buffer, i, tokenEnd);
+		} catch (NumberFormatException e) {
+		    throw new BadValueException(numLines, new String(buffer, i, tokenEnd - i, StandardCharsets.UTF_8), e);
+		}
+		i = tokenEnd + 1;
+	    }
+	    names[numRows] = name;
+	    functions[numRows] = function;
+	    numRows++;
+	}
+
+	private int indexOfTab(int from, int end) {
+	    int i = from;
+	    while (i < end && buffer[i] != '\t')
+		i++;
+	    return i;
+	}
+
+	private int trimCarriageReturn(int start, int lineEnd) {
+	    return (lineEnd > start && buffer[lineEnd - 1] == '\r') ? lineEnd - 1 : lineEnd;
+	}
+
+	/**
+	 * Returns the buffer index of the newline ending the current line, refilling the
+	 * buffer as needed. The final line of the chunk is terminated by a virtual newline.
+	 * Returns -1 once the chunk is exhausted.
+	 */
+	private int nextLineEnd() throws IOException {
+	    int scanFrom = bufferStart;
+	    while (true) {
+		for (int i=scanFrom; i<bufferEnd; i++) {
+		    if (buffer[i] == '\n')
+			return i;
+		}
+		scanFrom = bufferEnd;
+		if (position >= end) {
+		    if (bufferStart == bufferEnd)
+			return -1;
+		    ensureCapacity(bufferEnd + 1);
+		    buffer[bufferEnd] = '\n';
+		    return bufferEnd++;
+		}
+		// Move the partial line to the front of the buffer, then read more bytes
+		int pending = bufferEnd - bufferStart;
+		if (bufferStart > 0) {
+		    System.arraycopy(buffer, bufferStart, buffer, 0, pending);
+		    scanFrom -= bufferStart;
+		    bufferStart = 0;
+		    bufferEnd = pending;
+		}
+		ensureCapacity(bufferEnd + 1);
+		int toRead = (int)Math.min(buffer.length - bufferEnd, end - position);
+		int n = channel.read(ByteBuffer.wrap(buffer, bufferEnd, toRead), position);
+		if (n < 0) {
+		    position = end;
+		} else {
+		    position += n;
+		    bufferEnd += n;
+		}
+	    }
+	}
+
+	private void ensureCapacity(int capacity) {
+	    if (capacity > buffer.length)
+		buffer = Arrays.copyOf(buffer, Math.max(capacity, 2 * buffer.length));
+	}
+
+	ExpressionMatrix toMatrix(String[] experimentNames) {
+	    return new ExpressionMatrix(experimentNames, Arrays.copyOf(names, numRows), Arrays.copyOf(functions, numRows),
+					Arrays.copyOf(values, numRows * numColumns));
+	}
+    }
+
+    /**
+     * Thrown by a <code>ChunkParser</code> for a cell that is neither a number nor a missing value.
+     * The line is counted within the chunk, since a chunk parsed in parallel does not know how
+     * many lines come before it.
+     */
+    private static class BadValueException extends IOException {
+
+	private final int lineInChunk;
+	private final String cell;
+
+	BadValueException(int lineInChunk, String cell, NumberFormatException cause) {
+	    super(cause);
+	    this.lineInChunk = lineInChunk;
+	    this.cell = cell;
+	}
+
+	/**
+	 * Returns the exception to report, given the line number in the file of the chunk's first line.
+	 */
+	IOException toIOException(String fileName, long firstLine) {
+	    return new IOException(fileName + ", line " + (firstLine + lineInChunk) + ": \"" + cell + "\" is not a number", getCause());
+	}
+    }
+
+}
@@ -0,0 +1,863 @@
+import java.util.*;  // Needed for Vector class
+
+/******************************************************************
+ * An instance of the <code>ExpressionMatrix</code> class represents the
+ * expression values of a collection of genes across a collection of
+ * experiments, stored as one dense row-major array of primitive
+ * <code>doubles</code>. Row <code>i</code> holds the expression values of
+ * gene <code>i</code>, so a gene can be referred to by its row index alone.
+ * <p>
+ * Missing values are passed in as <code>NaN</code>. They are recorded in a
+ * presence bitmask (bit <code>j % 64</code> of word <code>j / 64</code> of a
+ * row's mask is set when experiment <code>j</code> was measured) and replaced
+ * by 0 in the backing array, so distance and mean loops can run over every
+ * value without testing for <code>NaN</code>. Matrices without missing values
+ * have no mask and cost nothing extra.
+ * <p>
+ * Expression tables rarely carry more than three or four significant digits,
+ * so a matrix can be converted with <code>toStorage</code> to keep its values
+ * as <code>floats</code> (half the memory) or as 16-bit codes with a scale
+ * and offset per experiment (a quarter of the memory). Values are widened to
+ * <code>double</code> as they are read, so sums, means and distances are
+ * still accumulated in double precision; only the stored values are rounded.
+ ******************************************************************/
+public class ExpressionMatrix {
+
+    /**
+     * The ways an <code>ExpressionMatrix</code> can hold its values
+     */
+    public enum Storage {
+	/** 8 bytes per value, exact */
+	DOUBLE,
+	/** 4 bytes per value, about 7 significant digits */
+	FLOAT,
+	/** 2 bytes per value, 65536 evenly spaced levels between the lowest and highest value of each experiment */
+	QUANTIZED_16
+    }
+
+
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * The number of levels of a 16-bit code, less one
+     */
+    private static final int MAX_CODE = 0xFFFF;
+
+    /**
+     * Per-thread buffers that rows held as <code>floats</code> or codes are widened into
+     * before being compared
+     */
+    private static final ThreadLocal<double[][]> scratch = ThreadLocal.withInitial(() -> new double[2][0]);
+
+    /**
+     * Per-thread buffer for the experiments measured in both of two rows being compared
+     */
+    private static final ThreadLocal<long[][]> scratchMask = ThreadLocal.withInitial(() -> new long[1][0]);
+
+
+    /**************************************************************
+     ********************** INSTANCE VARIABLES ********************
+     **************************************************************/
+
+    /**
+     * The number of genes (rows)
+     */
+    private int numGenes;
+
+    /**
+     * The number of experiments (columns)
+     */
+    private int numExperiments;
+
+    /**
+     * How the values are held
+     */
+    private Storage storage = Storage.DOUBLE;
+
+    /**
+     * Expression values in row-major order; the value for gene
+     * <code>i</code> in experiment <code>j</code> is at index
+     * <code>i*numExperiments + j</code>. <code>null</code> unless the storage is <code>DOUBLE</code>.
+     */
+    private double[] values;
+
+    /**
+     * Expression values in row-major order for <code>FLOAT</code> storage
+     */
+    private float[] floatValues;
+
+    /**
+     * Unsigned 16-bit codes in row-major order for <code>QUANTIZED_16</code> storage; code
+     * <code>c</code> in experiment <code>j</code> stands for <code>codeOffset[j] + c*codeScale[j]</code>
+     */
+    private short[] codes;
+
+    /**
+     * The value of code 0 in each experiment
+     */
+    private double[] codeOffset;
+
+    /**
+     * The step between consecutive codes in each experiment
+     */
+    private double[] codeScale;
+
+    /**
+     * Gene names, one per row
+     */
+    private String[] geneNames;
+
+    /**
+     * Gene functions, one per row
+     */
+    private String[] geneFunctions;
+
+    /**
+     * Experiment names, one per column
+     */
+    private String[] experimentNames;
+
+    /**
+     * The number of mask words per row
+     */
+    private int maskWords;
+
+    /**
+     * Presence bits, <code>maskWords</code> words per row, or <code>null</code> if no value is missing
+     */
+    private long[] presence;
+
+    /**
+     * For each row, <code>true</code> if all its values are present; <code>null</code> if no value is missing
+     */
+    private boolean[] complete;
+
+
+
+    /**************************************************************
+     ********************** CONSTRUCTOR ***************************
+     **************************************************************/
+
+    /**
+     * Creates an <code>ExpressionMatrix</code> backed by the specified arrays.
+     * The arrays are used directly and are not copied; <code>NaN</code> values
+     * are treated as missing and overwritten with 0.
+     *
+     * @param   experimentNames   the names of the experiments (columns)
+     * @param   geneNames   the names of the genes (rows)
+     * @param   geneFunctions   the functions of the genes (rows)
+     * @param   values   row-major expression values of length <code>geneNames.length * experimentNames.length</code>
+     * @throws   IllegalArgumentException   if <code>values</code> has the wrong length, or the table has more
+     *           values than an array can hold
+     */
+    public ExpressionMatrix(String[] experimentNames, String[] geneNames, String[] geneFunctions, double[] values) {
+	setNames(experimentNames, geneNames, geneFunctions, values.length);
+	this.values = values;
+	for (int i=0; i<values.length; i++) {
+	    if (Double.isNaN(values[i])) {
+		buildPresenceMask();
+		break;
+	    }
+	}
+    }
+
+    /**
+     * Creates an <code>ExpressionMatrix</code> with <code>DOUBLE</code> storage whose missing values
+     * are already recorded, such as one read from an <code>ExpressionCache</code>. The arrays are
+     * used directly and the values are not scanned, so they must hold 0 wherever a value is missing.
+     *
+     * @param   experimentNames   the names of the experiments (columns)
+     * @param   geneNames   the names of the genes (rows)
+     * @param   geneFunctions   the functions of the genes (rows)
+     * @param   values   row-major expression values of length <code>geneNames.length * experimentNames.length</code>
+     * @param   presence   presence bits laid out as <code>getPresenceMask</code> returns them, or <code>null</code> if no value is missing
+     * @throws   IllegalArgumentException   if an array has the wrong length
+     */
+    public ExpressionMatrix(String[] experimentNames, String[] geneNames, String[] geneFunctions, double[] values,
+			    long[] presence) {
+	setNames(experimentNames, geneNames, geneFunctions, values.length);
+	this.values = values;
+	setPresenceMask(presence);
+    }
+
+    /**
+     * Creates an <code>ExpressionMatrix</code> with <code>FLOAT</code> storage whose missing values
+     * are already recorded, such as one read from a single-precision <code>ExpressionCache</code>.
+     * The arrays are used directly and the values are not scanned, so they must hold 0 wherever a
+     * value is missing.
+     *
+     * @param   experimentNames   the names of the experiments (columns)
+     * @param   geneNames   the names of the genes (rows)
+     * @param   geneFunctions   the functions of the genes (rows)
+     * @param   values   row-major expression values of length <code>geneNames.length * experimentNames.length</code>
+     * @param   presence   presence bits laid out as <code>getPresenceMask</code> returns them, or <code>null</code> if no value is missing
+     * @throws   IllegalArgumentException   if an array has the wrong length
+     */
+    public ExpressionMatrix(String[] experimentNames, String[] geneNames, String[] geneFunctions, float[] values,
+			    long[] presence) {
+	setNames(experimentNames, geneNames, geneFunctions, values.length);
+	storage = Storage.FLOAT;
+	floatValues = values;
+	setPresenceMask(presence);
+    }
+
+    /**
+     * Creates an <code>ExpressionMatrix</code> with the names and missing values of another
+     * matrix but different values, such as the rows of that matrix normalized for a metric,
+     * held in the specified storage.
+     */
+    private ExpressionMatrix(ExpressionMatrix other, double[] values, Storage storage) {
+	experimentNames = other.experimentNames;
+	geneNames = other.geneNames;
+	geneFunctions = other.geneFunctions;
+	numGenes = other.numGenes;
+	numExperiments = other.numExperiments;
+	maskWords = other.maskWords;
+	presence = other.presence;
+	complete = other.complete;
+	this.storage = storage;
+	switch (storage) {
+	case DOUBLE:
+	    this.values = values;
+	    break;
+	case FLOAT:
+	    floatValues = new float[values.length];
+	    for (int i=0; i<values.length; i++)
+		floatValues[i] = (float)values[i];
+	    break;
+	case QUANTIZED_16:
+	    quantize(values);
+	    break;
+	}
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC INSTANCE METHODS ***************
+     **************************************************************/
+
+    /**
+     * Returns the number of genes (rows) in this <code>ExpressionMatrix</code>.
+     *
+     * @return   an integer representing the number of genes
+     */
+    public int getNumGenes() {
+	return numGenes;
+    }
+
+    /**
+     * Returns the number of experiments (columns) in this <code>ExpressionMatrix</code>.
+     *
+     * @return   an integer representing the number of experiments
+     */
+    public int getNumExperiments() {
+	return numExperiments;
+    }
+
+    /**
+     * Returns the expression value of the specified gene in the specified experiment.
+     *
+     * @param   row   the index of a gene
+     * @param   column   the index of an experiment
+     * @return   the expression value
+     */
+    public double getValue(int row, int column) {
+	return isPresent(row, column) ? storedValue(row * numExperiments + column) : Double.NaN;
+    }
+
+    /**
+     * Returns <code>true</code> if any expression value in this <code>ExpressionMatrix</code> is missing.
+     *
+     * @return   whether a value is missing
+     */
+    public boolean hasMissingValues() {
+	return presence != null;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified gene was measured in the specified experiment.
+     *
+     * @param   row   the index of a gene
+     * @param   column   the index of an experiment
+     * @return   whether the value is present
+     */
+    public boolean isPresent(int row, int column) {
+	return presence == null || (presence[row * maskWords + (column >>> 6)] & (1L << column)) != 0;
+    }
+
+    /**
+     * Returns <code>true</code> if every value of the specified gene is present.
+     *
+     * @param   row   the index of a gene
+     * @return   whether the row has no missing values
+     */
+    public boolean isComplete(int row) {
+	return complete == null || complete[row];
+    }
+
+    /**
+     * Returns the presence bitmask of all rows, or <code>null</code> if no value is missing.
+     * The array is <em>not</em> copied, so callers must not modify it.
+     *
+     * @return   the presence bits, <code>getMaskWordsPerRow()</code> words per row
+     */
+    public long[] getPresenceMask() {
+	return presence;
+    }
+
+    /**
+     * Returns the number of words of the presence bitmask that belong to each row.
+     *
+     * @return   the number of mask words per row
+     */
+    public int getMaskWordsPerRow() {
+	return maskWords;
+    }
+
+    /**
+     * Returns an <code>ExpressionMatrix</code> with the same genes, experiments, missing values and
+     * storage as this one but the specified values, which must hold 0 wherever a value is missing.
+     *
+     * @param   newValues   row-major expression values of the same size as this matrix
+     * @return   an <code>ExpressionMatrix</code> holding <code>newValues</code> (used directly for <code>DOUBLE</code> storage)
+     */
+    public ExpressionMatrix withValues(double[] newValues) {
+	return withValues(newValues, storage);
+    }
+
+    /**
+     * Returns an <code>ExpressionMatrix</code> with the same genes, experiments and missing values as
+     * this one but the specified values, which must hold 0 wherever a value is missing, held in the
+     * specified storage. Values derived from this matrix, such as normalized rows, do not keep its
+     * range per experiment, so they should not be held as <code>QUANTIZED_16</code> codes unless they are
+     * meant to be quantized again.
+     *
+     * @param   newValues   row-major expression values of the same size as this matrix
+     * @param   newStorage   the <code>Storage</code> to hold them in
+     * @return   an <code>ExpressionMatrix</code> holding <code>newValues</code> (used directly for <code>DOUBLE</code> storage)
+     */
+    public ExpressionMatrix withValues(double[] newValues, Storage newStorage) {
+	int size = numGenes * numExperiments;
+	if (newValues.length != size)
+	    throw new IllegalArgumentException("Expected " + size + " expression values but found " + newValues.length);
+	return new ExpressionMatrix(this, newValues, newStorage);
+    }
+
+    /**
+     * Returns how this <code>ExpressionMatrix</code> holds its values.
+     *
+     * @return   the <code>Storage</code> in use
+     */
+    public Storage getStorage() {
+	return storage;
+    }
+
+    /**
+     * Returns an <code>ExpressionMatrix</code> with the same genes, experiments and missing values as
+     * this one, holding its values in the specified storage. Returns this matrix if it already does.
+     * Converting to <code>FLOAT</code> or <code>QUANTIZED_16</code> rounds the values.
+     *
+     * @param   newStorage   the <code>Storage</code> to use
+     * @return   an <code>ExpressionMatrix</code> with that storage
+     */
+    public ExpressionMatrix toStorage(Storage newStorage) {
+	if (newStorage == storage)
+	    return this;
+	double[] all = new double[numGenes * numExperiments];
+	for (int i=0; i<numGenes; i++)
+	    copyRow(i, all, i * numExperiments);
+	return new ExpressionMatrix(this, all, newStorage);
+    }
+
+    /**
+     * Returns the number of bytes taken by the expression values and presence bits.
+     *
+     * @return   the size of the values in bytes
+     */
+    public long getValueBytes() {
+	long size = (long)numGenes * numExperiments;
+	long bytes = storage == Storage.DOUBLE ? 8 * size : storage == Storage.FLOAT ? 4 * size : 2 * size + 16L * numExperiments;
+	return bytes + (presence == null ? 0 : 8L * presence.length + numGenes);
+    }
+
+    /**
+     * Returns the backing row-major array of expression values. The array is
+     * <em>not</em> copied, so callers must not modify it. Only matrices with
+     * <code>DOUBLE</code> storage have one; others are read through <code>copyRow</code>.
+     *
+     * @return   the row-major array of expression values
+     * @exception   IllegalStateException   if the values are not stored as <code>doubles</code>
+     */
+    public double[] getValues() {
+	if (storage != Storage.DOUBLE)
+	    throw new IllegalStateException("Expression values are stored as " + storage);
+	return values;
+    }
+
+    /**
+     * Copies the values of the specified row, widened to <code>double</code>, into an array.
+     * Missing values are copied as 0.
+     *
+     * @param   row   the index of a gene
+     * @param   dest   the array receiving the values
+     * @param   destOffset   the index in <code>dest</code> of the first value
+     */
+    public void copyRow(int row, double[] dest, int destOffset) {
+	int offset = row * numExperiments;
+	switch (storage) {
+	case DOUBLE:
+	    System.arraycopy(values, offset, dest, destOffset, numExperiments);
+	    return;
+	case FLOAT:
+	    for (int j=0; j<numExperiments; j++)
+		dest[destOffset + j] = floatValues[offset + j];
+	    return;
+	default:
+	    for (int j=0; j<numExperiments; j++)
+		dest[destOffset + j] = codeOffset[j] + codeScale[j] * (codes[offset + j] & MAX_CODE);
+	    // Code 0 need not stand for 0, so missing values are cleared afterwards
+	    if (!isComplete(row)) {
+		for (int j=0; j<numExperiments; j++) {
+		    if (!isPresent(row, j))
+			dest[destOffset + j] = 0.0;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Returns the index in the backing array of the first value of the specified row.
+     *
+     * @param   row   the index of a gene
+     * @return   the offset of the row in the backing array
+     */
+    public int getRowOffset(int row) {
+	return row * numExperiments;
+    }
+
+    /**
+     * Returns the name of the gene in the specified row.
+     *
+     * @param   row   the index of a gene
+     * @return   the name of the gene
+     */
+    public String getGeneName(int row) {
+	return geneNames[row];
+    }
+
+    /**
+     * Returns the function of the gene in the specified row.
+     *
+     * @param   row   the index of a gene
+     * @return   the function of the gene
+     */
+    public String getGeneFunction(int row) {
+	return geneFunctions[row];
+    }
+
+    /**
+     * Returns a collection of the experiment names.
+     *
+     * @return   a <code>Vector</code> of experiment names
+     */
+    public Vector<String> getExperimentNames() {
+	return new Vector<String>(Arrays.asList(experimentNames));
+    }
+
+    /**
+     * Returns the tab-delimited line (name, function, expression values) describing the
+     * gene in the specified row, in the same layout as the rows of an input file.
+     *
+     * @param   row   the index of a gene
+     * @return   a tab-delimited <code>String</code> describing the gene
+     */
+    public String getRowAsLine(int row) {
+	StringBuilder sb = new StringBuilder();
+	sb.append(geneNames[row]).append('\t').append(geneFunctions[row]);
+	int offset = getRowOffset(row);
+	for (int j=0; j<numExperiments; j++) {
+	    if (!isPresent(row, j))
+		sb.append('\t').append(Double.NaN);
+	    else if (storage == Storage.FLOAT)
+		sb.append('\t').append(floatValues[offset + j]);  // Prints 1.019, not 1.0190000534057617
+	    else
+		sb.append('\t').append(storedValue(offset + j));
+	}
+	return sb.toString();
+    }
+
+    /**
+     * Returns the squared Euclidean distance between the specified row and the specified vector.
+     *
+     * @param   row   the index of a gene
+     * @param   v   a vector with one value per experiment
+     * @return   the squared Euclidean distance
+     */
+    public double squaredDistanceToVector(int row, double[] v) {
+	return distanceToVector(StandardDistanceMetric.SQUARED_EUCLIDEAN, row, v);
+    }
+
+    /**
+     * Returns the Euclidean distance between the specified row and the specified vector.
+     *
+     * @param   row   the index of a gene
+     * @param   v   a vector with one value per experiment
+     * @return   the Euclidean distance
+     */
+    public double distanceToVector(int row, double[] v) {
+	return distanceToVector(StandardDistanceMetric.EUCLIDEAN, row, v);
+    }
+
+    /**
+     * Returns the distance under the specified metric between the specified row and a vector
+     * with no missing values, counting only the experiments in which the gene was measured.
+     *
+     * @param   metric   a <code>DistanceMetric</code>
+     * @param   row   the index of a gene
+     * @param   v   a vector with one value per experiment
+     * @return   the distance
+     */
+    public double distanceToVector(DistanceMetric metric, int row, double[] v) {
+	double[] a = values;
+	int offset = row * numExperiments;
+	if (storage != Storage.DOUBLE) {
+	    a = scratchRow(0, row);
+	    offset = 0;
+	}
+	if (isComplete(row))
+	    return metric.distance(a, offset, v, 0, numExperiments);
+	return metric.distance(a, offset, v, 0, numExperiments, presence, row * maskWords);
+    }
+
+    /**
+     * Returns the distance under the specified metric between two rows, counting only the
+     * experiments in which both genes were measured.
+     *
+     * @param   metric   a <code>DistanceMetric</code>
+     * @param   rowA   the index of a gene
+     * @param   rowB   the index of another gene
+     * @return   the distance
+     */
+    public double distanceBetweenRows(DistanceMetric metric, int rowA, int rowB) {
+	double[] a = values, b = values;
+	int offsetA = rowA * numExperiments, offsetB = rowB * numExperiments;
+	if (storage != Storage.DOUBLE) {
+	    a = scratchRow(0, rowA);
+	    b = scratchRow(1, rowB);
+	    offsetA = offsetB = 0;
+	}
+	if (isComplete(rowA) && isComplete(rowB))
+	    return metric.distance(a, offsetA, b, offsetB, numExperiments);
+	long[] shared = scratchMask();
+	for (int w=0; w<maskWords; w++)
+	    shared[w] = presence[rowA * maskWords + w] & presence[rowB * maskWords + w];
+	return metric.distance(a, offsetA, b, offsetB, numExperiments, shared, 0);
+    }
+
+    /**
+     * Returns the squared Euclidean distance between two vectors stored in arrays.
+     *
+     * @param   a   an array holding the first vector
+     * @param   aOffset   the index of the first element of the first vector
+     * @param   b   an array holding the second vector
+     * @param   bOffset   the index of the first element of the second vector
+     * @param   length   the number of elements in each vector
+     * @return   the squared Euclidean distance
+     */
+    public static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+	// Four independent partial sums, combined in a fixed order (see StandardDistanceMetric)
+	double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+	int j = 0;
+	for (; j+3<length; j+=4) {
+	    double d0 = a[aOffset + j] - b[bOffset + j];
+	    double d1 = a[aOffset + j + 1] - b[bOffset + j + 1];
+	    double d2 = a[aOffset + j + 2] - b[bOffset + j + 2];
+	    double d3 = a[aOffset + j + 3] - b[bOffset + j + 3];
+	    s0 += d0 * d0;
+	    s1 += d1 * d1;
+	    s2 += d2 * d2;
+	    s3 += d3 * d3;
+	}
+	for (; j<length; j++) {
+	    double d = a[aOffset + j] - b[bOffset + j];
+	    s0 += d * d;
+	}
+	return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Returns the Euclidean distance between two rows.
+     *
+     * @param   rowA   the index of a gene
+     * @param   rowB   the index of another gene
+     * @return   the Euclidean distance between the two genes
+     */
+    public double distanceBetweenRows(int rowA, int rowB) {
+	return distanceBetweenRows(StandardDistanceMetric.EUCLIDEAN, rowA, rowB);
+    }
+
+    /**
+     * Adds the values of the specified row to the specified vector, element by element.
+     *
+     * @param   row   the index of a gene
+     * @param   sum   a vector with one value per experiment that is updated in place
+     */
+    public void addRowTo(int row, double[] sum) {
+	addRowTo(row, sum, 0);
+    }
+
+    /**
+     * Adds the values of the specified row to a vector stored in an array, element by element.
+     *
+     * @param   row   the index of a gene
+     * @param   sum   an array holding a vector with one value per experiment that is updated in place
+     * @param   sumOffset   the index in <code>sum</code> of the first element of the vector
+     */
+    public void addRowTo(int row, double[] sum, int sumOffset) {
+	int offset = row * numExperiments;
+	switch (storage) {
+	case DOUBLE:
+	    for (int j=0; j<numExperiments; j++)
+		sum[sumOffset + j] += values[offset + j];
+	    return;
+	case FLOAT:
+	    for (int j=0; j<numExperiments; j++)
+		sum[sumOffset + j] += floatValues[offset + j];
+	    return;
+	default:
+	    double[] v = scratchRow(0, row);
+	    for (int j=0; j<numExperiments; j++)
+		sum[sumOffset + j] += v[j];
+	}
+    }
+
+    /**
+     * Subtracts the values of the specified row from the specified vector, element by element.
+     *
+     * @param   row   the index of a gene
+     * @param   sum   a vector with one value per experiment that is updated in place
+     */
+    public void subtractRowFrom(int row, double[] sum) {
+	int offset = row * numExperiments;
+	switch (storage) {
+	case DOUBLE:
+	    for (int j=0; j<numExperiments; j++)
+		sum[j] -= values[offset + j];
+	    return;
+	case FLOAT:
+	    for (int j=0; j<numExperiments; j++)
+		sum[j] -= floatValues[offset + j];
+	    return;
+	default:
+	    double[] v = scratchRow(0, row);
+	    for (int j=0; j<numExperiments; j++)
+		sum[j] -= v[j];
+	}
+    }
+
+    /**
+     * Adds 1 to the count of each experiment in which the specified row was measured.
+     * Does nothing if no value is missing.
+     *
+     * @param   row   the index of a gene
+     * @param   counts   a vector with one count per experiment that is updated in place
+     */
+    public void addPresenceTo(int row, int[] counts) {
+	addPresence(row, counts, 1);
+    }
+
+    /**
+     * Subtracts 1 from the count of each experiment in which the specified row was measured.
+     * Does nothing if no value is missing.
+     *
+     * @param   row   the index of a gene
+     * @param   counts   a vector with one count per experiment that is updated in place
+     */
+    public void subtractPresenceFrom(int row, int[] counts) {
+	addPresence(row, counts, -1);
+    }
+
+    /**
+     * Divides a sum of rows by the number of rows summed, per experiment when values are missing.
+     * An experiment in which none of the rows was measured gets a mean of 0.
+     *
+     * @param   sum   a sum of rows, with one value per experiment
+     * @param   numRows   the number of rows summed
+     * @param   counts   the number of those rows measured in each experiment, or <code>null</code> if no value is missing
+     * @param   mean   a vector with one value per experiment that receives the mean (may be <code>sum</code>)
+     */
+    public static void divideSum(double[] sum, int numRows, int[] counts, double[] mean) {
+	for (int j=0; j<sum.length; j++) {
+	    int n = counts == null ? numRows : counts[j];
+	    mean[j] = n > 0 ? sum[j] / n : 0.0;
+	}
+    }
+
+    /**
+     * Stores the mean of the specified rows in the specified vector, skipping missing values.
+     *
+     * @param   rows   an array of gene indices
+     * @param   count   the number of entries of <code>rows</code> to use
+     * @param   mean   a vector with one value per experiment that receives the mean
+     */
+    public void meanOfRows(int[] rows, int count, double[] mean) {
+	Arrays.fill(mean, 0.0);
+	int[] counts = presence == null ? null : new int[numExperiments];
+	for (int i=0; i<count; i++) {
+	    addRowTo(rows[i], mean);
+	    if (counts != null)
+		addPresenceTo(rows[i], counts);
+	}
+	divideSum(mean, count, counts, mean);
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE INSTANCE METHODS ***************
+     ***************************************************************/
+
+    /**
+     * Sets the names and dimensions of this matrix after checking that they fit the specified number
+     * of values.
+     */
+    private void setNames(String[] experimentNames, String[] geneNames, String[] geneFunctions, int numValues) {
+	// Every offset row*numExperiments + column is an int below the size, so the size must be one
+	long size = (long)geneNames.length * experimentNames.length;
+	if (size > Integer.MAX_VALUE)
+	    throw new IllegalArgumentException("Too many expression values for one matrix: " + geneNames.length
+					       + " genes by " + experimentNames.length + " experiments");
+	if (numValues != size)
+	    throw new IllegalArgumentException("Expected " + size + " expression values but found " + numValues);
+	this.experimentNames = experimentNames;
+	this.geneNames = geneNames;
+	this.geneFunctions = geneFunctions;
+	numGenes = geneNames.length;
+	numExperiments = experimentNames.length;
+	maskWords = (numExperiments + 63) / 64;
+    }
+
+    /**
+     * Uses the specified presence bits, which cost one pass over the mask rather than the values
+     * to find the complete rows.
+     */
+    private void setPresenceMask(long[] mask) {
+	if (mask == null)
+	    return;
+	if (mask.length != numGenes * maskWords)
+	    throw new IllegalArgumentException("Expected " + (numGenes * maskWords) + " presence words but found " + mask.length);
+	presence = mask;
+	complete = new boolean[numGenes];
+	for (int row=0; row<numGenes; row++) {
+	    int measured = 0;
+	    for (int w=0; w<maskWords; w++)
+		measured += Long.bitCount(mask[row * maskWords + w]);
+	    complete[row] = measured == numExperiments;
+	}
+    }
+
+    /**
+     * Records every <code>NaN</code> value in the presence bitmask and replaces it with 0.
+     */
+    private void buildPresenceMask() {
+	presence = new long[numGenes * maskWords];
+	complete = new boolean[numGenes];
+	for (int row=0; row<numGenes; row++) {
+	    int offset = row * numExperiments;
+	    boolean rowComplete = true;
+	    for (int j=0; j<numExperiments; j++) {
+		if (Double.isNaN(values[offset + j])) {
+		    values[offset + j] = 0.0;
+		    rowComplete = false;
+		} else {
+		    presence[row * maskWords + (j >>> 6)] |= 1L << j;
+		}
+	    }
+	    complete[row] = rowComplete;
+	}
+    }
+
+    /**
+     * Returns the stored value at the specified index of the row-major layout, widened to <code>double</code>.
+     */
+    private double storedValue(int index) {
+	switch (storage) {
+	case DOUBLE:
+	    return values[index];
+	case FLOAT:
+	    return floatValues[index];
+	default:
+	    int j = index % numExperiments;
+	    return codeOffset[j] + codeScale[j] * (codes[index] & MAX_CODE);
+	}
+    }
+
+    /**
+     * Widens the specified row into one of this thread's scratch buffers and returns the buffer.
+     */
+    private double[] scratchRow(int buffer, int row) {
+	double[][] buffers = scratch.get();
+	if (buffers[buffer].length < numExperiments)
+	    buffers[buffer] = new double[numExperiments];
+	copyRow(row, buffers[buffer], 0);
+	return buffers[buffer];
+    }
+
+    /**
+     * Returns this thread's mask buffer, grown to at least one row's words.
+     */
+    private long[] scratchMask() {
+	long[][] buffer = scratchMask.get();
+	if (buffer[0].length < maskWords)
+	    buffer[0] = new long[maskWords];
+	return buffer[0];
+    }
+
+    /**
+     * Encodes row-major values as 16-bit codes spread evenly between the lowest and highest value
+     * present in each experiment, so the rounding error is at most half a step.
+     */
+    private void quantize(double[] all) {
+	codeOffset = new double[numExperiments];
+	codeScale = new double[numExperiments];
+	double[] max = new double[numExperiments];
+	Arrays.fill(codeOffset, Double.POSITIVE_INFINITY);
+	Arrays.fill(max, Double.NEGATIVE_INFINITY);
+	for (int i=0; i<numGenes; i++) {
+	    for (int j=0; j<numExperiments; j++) {
+		if (isPresent(i, j)) {
+		    double v = all[i * numExperiments + j];
+		    codeOffset[j] = Math.min(codeOffset[j], v);
+		    max[j] = Math.max(max[j], v);
+		}
+	    }
+	}
+	for (int j=0; j<numExperiments; j++) {
+	    if (codeOffset[j] > max[j])  // Nothing measured in this experiment
+		codeOffset[j] = max[j] = 0.0;
+	    codeScale[j] = (max[j] - codeOffset[j]) / MAX_CODE;
+	}
+	codes = new short[all.length];
+	for (int i=0; i<numGenes; i++) {
+	    for (int j=0; j<numExperiments; j++) {
+		int index = i * numExperiments + j;
+		if (codeScale[j] > 0.0 && isPresent(i, j))
+		    codes[index] = (short)Math.min(MAX_CODE, Math.max(0, Math.round((all[index] - codeOffset[j]) / codeScale[j])));
+	    }
+	}
+    }
+
+    private void addPresence(int row, int[] counts, int delta) {
+	if (presence == null)
+	    return;
+	int base = row * maskWords;
+	// Adds delta times each presence bit, with no branch per value
+	for (int j=0; j<numExperiments; j++)
+	    counts[j] += (int)((presence[base + (j >>> 6)] >>> j) & 1L) * delta;
+    }
+
+}
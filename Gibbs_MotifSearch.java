@@ -2,6 +2,9 @@ import java.util.*;
 
 public class Gibbs_MotifSearch extends EM_MotifSearch{
     
+    //for each chunk of an E-step, the scores, then sampling weights, of the windows of the sequence being sampled
+    double[][] chunkWindowScores;
+    
     /**
      * constructor
      */
@@ -9,33 +12,57 @@ public class Gibbs_MotifSearch extends EM_MotifSearch{
         super(fileName, motifLength);
     }
 
+    /**
+     * Constructor for a restart of the given search.
+     */
+    protected Gibbs_MotifSearch(Gibbs_MotifSearch other, SplittableRandom rand){
+        super(other, rand);
+    }
+
+    protected EM_MotifSearch newRestart(SplittableRandom rand){
+        return new Gibbs_MotifSearch(this, rand);
+    }
+
+    protected void releaseBuffers(){
+        super.releaseBuffers();
+        chunkWindowScores = null;
+    }
+
     /**
      * The Expectation step in the EM algorithm.
      * Based on the matrix model, identifies motif instances in the sequences. One motif instance is 
      * identified in each sequence. For each sequence, a motif instance is chosen by sampling the scores 
      * of each possible motif instance in that sequence. The score of each possible motif instance is 
-     * based on the matrix model.
+     * based on the matrix model: it is sampled in proportion to its likelihood under the matrix 
+     * relative to the background composition.
      */
     public void determineMotifInstances(){
-        //for each sequence
-        for(int i = 0; i<numSequences; i++){
-            //choose motif sequence
-            Vector<Double> scores = getScores(sequences.get(i));
-            //use this vector to pass to getIndexViaSampling
-            int index = getIndexViaSampling(scores);
-            //the index this returns is what is passed to 
-            instanceLocations.set(i, index);
+        LogOddsScorer scorer = getLogOddsScorer();
+        //each chunk of sequences samples from its own stream, split off in chunk order, so the
+        //draws don't depend on which thread runs which chunk
+        int numChunks = getNumChunks(numSequences);
+        SplittableRandom[] chunkRand = new SplittableRandom[numChunks];
+        for(int c = 0; c<numChunks; c++){
+            chunkRand[c] = rand.split();
         }
-    }
-       
-    private Vector<Double> getScores(String s){
-        //get the possible scores of a sequence and put them in vector
-        Vector<Double> scores = new Vector<Double>();
-        for(int i = 0; i<s.length()-motifLength+1; i++){
-            String current = s.substring(i, i+motifLength);
-            scores.add(getScoreForMotifInstance(current));
+        if(chunkWindowScores == null || chunkWindowScores.length < numChunks){
+            chunkWindowScores = new double[numChunks][];
         }
-        return scores;
+        forEachChunk(numSequences, (chunk, start, end) -> {
+            byte[] bases = getChunkCodes(chunk);
+            if(chunkWindowScores[chunk] == null){
+                chunkWindowScores[chunk] = new double[Math.max(1, sequences.getMaxLength()-motifLength+1)];
+            }
+            double[] windowScores = chunkWindowScores[chunk];
+            for(int i = start; i<end; i++){
+                //score every window, then turn the log-odds into weights without underflow
+                sequences.getBases(i, bases);
+                int numWindows = scorer.scoreWindows(bases, sequences.getLength(i), windowScores);
+                double sum = LogOddsScorer.toWeights(windowScores, numWindows);
+                //the index this returns is what is passed to; a sequence shorter than the motif has no window
+                instanceLocations[i] = numWindows == 0 ? -1 : getIndexViaSampling(windowScores, numWindows, sum, chunkRand[chunk]);
+            }
+        });
     }
     
 
@@ -54,6 +81,22 @@ public class Gibbs_MotifSearch extends EM_MotifSearch{
         return index;
     }
 
+    /**
+     * Returns the index of a value sampled in proportion to the first n of the given weights, 
+     * which add up to sum, without copying them, drawing from the given random numbers.
+     */
+    public int getIndexViaSampling(double[] weights, int n, double sum, SplittableRandom random){
+        double target = random.nextDouble()*sum;
+        double sumSoFar = 0;
+        for(int i = 0; i<n; i++){
+            sumSoFar += weights[i];
+            if(sumSoFar>=target && weights[i]>0){
+                return i;
+            }
+        }
+        return 0;
+    }
+
     private static Vector<Double> normalizeValues(Vector<Double> values){
         double sum = 0;
         double normalizedVal; 
@@ -78,9 +121,8 @@ public class Gibbs_MotifSearch extends EM_MotifSearch{
         return cumulative;
     }
 
-    private static int selectIndex(Vector<Double> cumulativeDist){
+    private int selectIndex(Vector<Double> cumulativeDist){
         //generate number btwn 0 and 1
-        Random rand = new Random();
         double random = rand.nextDouble();
         int index = 0;
         for(int i = 0; i<cumulativeDist.size(); i++){
@@ -95,6 +137,7 @@ public class Gibbs_MotifSearch extends EM_MotifSearch{
 
     public static void main(String[] args) {
         Gibbs_MotifSearch g = new Gibbs_MotifSearch(args[0], Integer.parseInt(args[1]));
+        parseOptions(g, args);
         
         g.run_EM_multiple_times(Integer.parseInt(args[2]));
 
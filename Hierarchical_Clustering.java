@@ -1,4 +1,5 @@
-
+import java.util.*;
+import java.io.*;
 /**
  * Hierarchical_Clustering executes the hierarchical clustering algorithm. 
  *
@@ -9,70 +10,323 @@ public class Hierarchical_Clustering extends Clustering
 {
     // instance variables - replace the example below with your own
     int numClusters; 
+    //distances between clusters, indexed by slot; a merged cluster keeps the slot of its first half
+    CondensedDistanceMatrix distances;
+    //slot of each live cluster, in order; only the first numLive entries are used
+    int[] slots;
+    //number of clusters left while the SCAN engine merges
+    int numLive;
+    //number of genes in the cluster held in each slot
+    int[] slotSizes;
+    //slot each slot was merged into, or its own index while its cluster is still live
+    int[] mergedInto;
+    //how the distance between two clusters is defined
+    Linkage linkage = Linkage.AVERAGE;
+
+    /**
+     * The ways the merges can be found. NN_CHAIN uses the nearest-neighbor-chain algorithm (O(n^2)
+     * overall) and records the full merge tree, so the tree can be cut again or written out without
+     * clustering again; SCAN compares every pair of clusters before each merge and stops at
+     * numClusters, recording no tree.
+     * NN_CHAIN is the default (before the merge tree was added, SCAN was the only engine). Both make
+     * the same clusters under every linkage, which EngineCheck checks; only the speed differs, and
+     * getMergeTree(), cutTree() and the tree exports need NN_CHAIN.
+     */
+    public enum Engine { SCAN, NN_CHAIN }
+    Engine engine = Engine.NN_CHAIN;
+    //every merge, from single genes to one cluster; only set by the NN_CHAIN engine
+    MergeTree mergeTree;
     
     /**
      * Constructor for objects of class Hierarchical_Clustering
      */
     public Hierarchical_Clustering(String fileName, int numClust)
+    {
+        this(fileName, numClust, 1);
+    }
+
+    /**
+     * Constructor that builds the distance matrix and scans for the closest pair on the given number of threads.
+     */
+    public Hierarchical_Clustering(String fileName, int numClust, int threads)
     {
         // initialise instance variables
         super(fileName);
         numClusters = numClust;
+        setNumThreads(threads);
         hierarchical();
     }
 
+    /**
+     * Constructor for an already loaded matrix. Nothing is clustered until hierarchical() is called.
+     */
+    public Hierarchical_Clustering(ExpressionMatrix matrix, int numClust)
+    {
+        super(matrix);
+        numClusters = numClust;
+    }
+
+    /**
+     * Chooses how the distance between two clusters is defined; the default is AVERAGE. WARD needs
+     * the Euclidean metric, which is checked here and again when hierarchical() runs.
+     */
+    public void setLinkage(Linkage linkage){
+        checkLinkage(linkage, metric);
+        this.linkage = linkage;
+    }
+
+    private static void checkLinkage(Linkage linkage, DistanceMetric metric){
+        if(!linkage.supports(metric)){
+            throw new IllegalArgumentException("The " + linkage + " linkage needs Euclidean distances, not " + metric);
+        }
+    }
+
+    public void setEngine(Engine engine){
+        this.engine = engine;
+    }
+
+    /**
+     * Returns every merge made by the last run of the NN_CHAIN engine, or null if it has not run.
+     */
+    public MergeTree getMergeTree(){
+        return mergeTree;
+    }
+
+    /**
+     * Replaces the clusters with the given number of clusters cut from the recorded merge tree.
+     */
+    public void cutTree(int numClust){
+        numClusters = numClust;
+        setClustersFromAssignment(requireMergeTree().getClusterAssignment(numClust), numClust);
+    }
+
+    /**
+     * Replaces the clusters with those left after applying every merge at or below the given distance.
+     */
+    public void cutTreeAtHeight(double threshold){
+        MergeTree tree = requireMergeTree();
+        int[] assignment = tree.getClusterAssignmentAtHeight(threshold);
+        int numClust = 0;
+        for(int a : assignment){
+            numClust = Math.max(numClust, a+1);
+        }
+        numClusters = numClust;
+        setClustersFromAssignment(assignment, numClust);
+    }
+
+    private MergeTree requireMergeTree(){
+        if(mergeTree == null){
+            throw new IllegalStateException("No merge tree recorded; run hierarchical() with the NN_CHAIN engine first");
+        }
+        return mergeTree;
+    }
+
     public void hierarchical(){
-        initiallyAssignOneGeneToEachCluster();
-        while(numClusters!=clusters.size()){
-            mergeTwoClosestClusters();
+        //the metric may have changed since the linkage was set
+        checkLinkage(linkage, metric);
+        instrumentation.event("start", "genes", getNumGenes(), "experiments", getNumExperiments(), "clusters", numClusters,
+                "engine", engine, "linkage", linkage, "metric", metric, "threads", numThreads);
+        //every gene-to-gene distance is computed once, up front
+        computeDistances();
+        Instrumentation.Timer mergeTimer = instrumentation.timer("merge");
+        long startTime = mergeTimer.start();
+        if(engine == Engine.NN_CHAIN){
+            //the chain always builds the whole tree, then the tree is cut at numClusters
+            mergeTree = NearestNeighborChain.run(distances, linkage);
+            distances = null;
+            setClustersFromAssignment(mergeTree.getClusterAssignment(numClusters), numClusters);
+        }
+        else{
+            initiallyAssignOneGeneToEachCluster();
+            while(numClusters!=numLive){
+                mergeTwoClosestClusters();
+            }
+            recordClusterOfGene();
+            setClustersFromAssignment(clusterOfGene, numClusters);
         }
+        mergeTimer.stop(startTime);
+        instrumentation.event("finished", "clusters", getNumClusters());
+        instrumentation.summarize();
     }
     
+    /**
+     * Starts the SCAN engine over: every gene in a cluster of its own. The distances are computed
+     * first if hierarchical() has not done so, so mergeTwoClosestClusters() can be called from here on.
+     */
     public void initiallyAssignOneGeneToEachCluster(){
-        for(int i = 0; i<genes.size(); i++){
-            //make new cluster to add to clusters vector
-            Cluster newCluster = new Cluster();
-            //add gene to it's own cluster 
-            newCluster.addGene(genes.get(i));
-            //add cluster to vector of all clusters
-            clusters.add(newCluster);
-            System.out.println(newCluster);
+        if(distances == null){
+            computeDistances();
+        }
+        slots = new int[getNumGenes()];
+        slotSizes = new int[getNumGenes()];
+        mergedInto = new int[getNumGenes()];
+        //every gene starts in its own cluster, held in the slot of the same number
+        numLive = getNumGenes();
+        for(int i = 0; i<getNumGenes(); i++){
+            slots[i] = i;
+            slotSizes[i] = 1;
+            mergedInto[i] = i;
+        }
+    }
+    
+    //the distance between every pair of genes, under the metric
+    private void computeDistances(){
+        Instrumentation.Timer distanceTimer = instrumentation.timer("distanceMatrix");
+        long startTime = distanceTimer.start();
+        distances = CondensedDistanceMatrix.fromGenes(this);
+        distanceTimer.stop(startTime);
+        instrumentation.counter("distances").add((long)getNumGenes()*(getNumGenes()-1)/2);
+    }
+    
+    //gene i started in slot i, so following the merges from slot i leads to the slot of its cluster
+    private void recordClusterOfGene(){
+        int[] clusterOfSlot = new int[getNumGenes()];
+        for(int c = 0; c<numLive; c++){
+            clusterOfSlot[slots[c]] = c;
+        }
+        clusterOfGene = new int[getNumGenes()];
+        for(int i = 0; i<getNumGenes(); i++){
+            int slot = i;
+            while(mergedInto[slot] != slot){
+                slot = mergedInto[slot];
+            }
+            //point straight at the live slot so later genes stop sooner
+            mergedInto[i] = slot;
+            clusterOfGene[i] = clusterOfSlot[slot];
         }
     }
     
-    private double findDistance(Cluster cluster1, Cluster cluster2){
-        return cluster1.getDistanceToCluster(cluster2);
+    //distance between two clusters under the chosen linkage, read from the cached matrix
+    private double findDistance(int cluster1, int cluster2){
+        return distances.get(slots[cluster1], slots[cluster2]);
     }
     
     public void mergeTwoClosestClusters(){
-        double smallest = -1;
-        double distance;
+        int numChunks = getNumChunks(numLive);
+        //each chunk of rows finds its own closest pair; ties go to the earliest pair, as in a single scan
+        double[] chunkSmallest = new double[numChunks];
+        int[] chunkA = new int[numChunks];
+        int[] chunkB = new int[numChunks];
+        forEachChunk(numLive, (chunk, start, end) -> {
+            double smallest = Double.MAX_VALUE;
+            int a = -1, b = -1;
+            for(int i = start; i<end; i++){
+                for (int j = i+1; j<numLive; j++){
+                    double distance = findDistance(i, j);
+                    //pairs with no experiment in common are infinitely far apart, but are still merged last
+                    if (distance<smallest || a < 0){
+                        smallest = distance;
+                        a = i;
+                        b = j;
+                    }
+                }
+            }
+            chunkSmallest[chunk] = smallest;
+            chunkA[chunk] = a;
+            chunkB[chunk] = b;
+        });
+        double smallest = Double.MAX_VALUE;
         int cA = -1; 
         int cB = -1; 
-        for(int i = 0; i<clusters.size(); i++){
-            if (smallest ==-1){
-                distance = findDistance(clusters.get(i), clusters.get(i+1)); 
-                smallest = distance;
-                cA = i;
-                cB = i+1;
-            }
-            for (int j = i+1; j<clusters.size(); j++){
-                distance = findDistance(clusters.get(i), clusters.get(j));
-                if (distance<smallest){
-                    smallest = distance;
-                    cA = i;
-                    cB = j;
-                }
+        for(int c = 0; c<numChunks; c++){
+            if(chunkA[c] >= 0 && (cA < 0 || chunkSmallest[c]<smallest)){
+                smallest = chunkSmallest[c];
+                cA = chunkA[c];
+                cB = chunkB[c];
+            }
+        }
+        //Lance-Williams update: the distance from any cluster to the merged one follows from its
+        //distances to the two halves
+        int slotA = slots[cA], slotB = slots[cB];
+        double sizeA = slotSizes[slotA], sizeB = slotSizes[slotB];
+        for(int i = 0; i<numLive; i++){
+            if(i != cA && i != cB){
+                int slot = slots[i];
+                double merged = linkage.update(distances.get(slot, slotA), distances.get(slot, slotB), smallest, sizeA, sizeB, slotSizes[slot]);
+                distances.set(slot, slotA, merged);
             }
-        }        
-        clusters.get(cA).absorbCluster(clusters.get(cB));
-        clusters.remove(cB);
+        }
+        slotSizes[slotA] += slotSizes[slotB];
+        mergedInto[slotB] = slotA;
+        numLive--;
+        System.arraycopy(slots, cB + 1, slots, cB, numLive - cB);
     }
     
     public static void main(String[] args){
         int numClusters = Integer.parseInt(args[1]);
-        Hierarchical_Clustering h = new Hierarchical_Clustering(args[0], numClusters);
-        System.out.println(h.toString());
+        Hierarchical_Clustering h = new Hierarchical_Clustering(Clustering.readExpressionMatrix(args[0]), numClusters);
+        //optional arguments after the number of clusters: a number of threads, a linkage
+        //(single, complete, average, or ward with the euclidean metric only), "scan" for the closest-pair scan engine, "height=D" to
+        //cut the tree at distance D instead, "metric=NAME" (euclidean, squared_euclidean, pearson, cosine,
+        //manhattan), "newick=FILE" or "cdt=PREFIX" to write the tree (a flat CDT with the scan engine, and
+        //only the CDT, to standard output, for "cdt=-"), or
+        //"tsv=FILE" or "text=FILE" to also write the clusters there
+        double height = -1;
+        String newickFile = null, cdtPrefix = null;
+        List<String> outputs = new ArrayList<String>();
+        for(int i = 2; i<args.length; i++){
+            if(args[i].startsWith("tsv=") || args[i].startsWith("text=")){
+                outputs.add(args[i]);
+            }
+            else if(args[i].equals("scan")){
+                h.setEngine(Engine.SCAN);
+            }
+            else if(args[i].equals("nnchain")){
+                h.setEngine(Engine.NN_CHAIN);
+            }
+            else if(args[i].startsWith("metric=")){
+                h.setDistanceMetric(DistanceMetric.forName(args[i].substring(7)));
+            }
+            else if(args[i].startsWith("height=")){
+                height = Double.parseDouble(args[i].substring(7));
+            }
+            else if(args[i].startsWith("newick=")){
+                newickFile = args[i].substring(7);
+            }
+            else if(args[i].startsWith("cdt=")){
+                cdtPrefix = args[i].substring(4);
+            }
+            else if(Character.isDigit(args[i].charAt(0))){
+                h.setNumThreads(Integer.parseInt(args[i]));
+            }
+            else{
+                h.setLinkage(Linkage.valueOf(args[i].toUpperCase()));
+            }
+        }
+        h.hierarchical();
+        if(height >= 0){
+            h.cutTreeAtHeight(height);
+        }
+        try{
+            if(newickFile != null){
+                try(Writer out = new BufferedWriter(new FileWriter(newickFile), 1 << 16)){
+                    DendrogramWriter.writeNewick(h.requireMergeTree(), h.getExpressionMatrix(), out);
+                }
+            }
+            if("-".equals(cdtPrefix) && h.getMergeTree() != null){
+                //a GTR file can't share standard output with the CDT, so write the CDT alone
+                try(Writer out = ClusteringResultWriter.open("-")){
+                    DendrogramWriter.writeCdt(h.getMergeTree(), h.getExpressionMatrix(), out);
+                }
+            }
+            else if(cdtPrefix != null && h.getMergeTree() != null){
+                DendrogramWriter.writeCdtAndGtr(h.getMergeTree(), h.getExpressionMatrix(), cdtPrefix);
+            }
+            else if(cdtPrefix != null){
+                ClusteringResultWriter.writeOption(h, "cdt=" + cdtPrefix);
+            }
+            for(String output : outputs){
+                ClusteringResultWriter.writeOption(h, output);
+            }
+            try(Writer out = ClusteringResultWriter.open("-")){
+                h.write(out);
+                out.write(System.lineSeparator());
+            }
+        }
+        catch(IOException e){
+            System.err.println("Error - could not write the clusters: " + e.getMessage());
+            System.exit(1);
+        }
     }
     
 }
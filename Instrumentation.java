@@ -0,0 +1,559 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/******************************************************************
+ * An instance of the <code>Instrumentation</code> class collects what a
+ * clustering run is doing while it runs:
+ * <ul>
+ * <li><em>counters</em>, such as the number of distances computed;</li>
+ * <li><em>timers</em>, the total time and number of times spent in each
+ *     phase, such as seeding or assignment;</li>
+ * <li><em>events</em>, one per iteration or other step, each carrying a few
+ *     named values such as the number of genes that changed cluster.</li>
+ * </ul>
+ * Events can be written as JSON lines, one object per line, and the
+ * counters and timers can be published as a JMX MBean for watching a long
+ * run with JConsole.
+ * <p>
+ * Every <code>Clustering</code> reports into one. Unless the system
+ * properties below ask for it, that one is <code>DISABLED</code>, whose
+ * counters and timers do nothing but test a <code>null</code> field, so
+ * instrumented code costs next to nothing:
+ * <ul>
+ * <li><code>clustering.metrics=FILE</code> appends events to a JSON lines
+ *     file (<code>-</code> for standard error);</li>
+ * <li><code>clustering.metrics.jmx=true</code> registers an MBean named
+ *     <code>clustering:type=Instrumentation,name=RUN</code>.</li>
+ * </ul>
+ ******************************************************************/
+public class Instrumentation {
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * An <code>Instrumentation</code> that records nothing
+     */
+    public static final Instrumentation DISABLED = new Instrumentation();
+
+    /**
+     * Numbers the runs of this process, to give each a distinct name
+     */
+    private static final AtomicInteger runCount = new AtomicInteger();
+
+    /**
+     * Event logs opened from the <code>clustering.metrics</code> property, shared by every run that names them
+     */
+    private static final Map<String, Writer> sharedLogs = new HashMap<String, Writer>();
+
+
+
+    /**************************************************************
+     ********************** INSTANCE VARIABLES ********************
+     **************************************************************/
+
+    /**
+     * The name of the run, included in every event
+     */
+    private String runName;
+
+    /**
+     * <code>System.nanoTime()</code> when this <code>Instrumentation</code> was created
+     */
+    private long startTime;
+
+    /**
+     * The counters, by name, in the order they were first used
+     */
+    private Map<String, Counter> counters;
+
+    /**
+     * The timers, by name, in the order they were first used
+     */
+    private Map<String, Timer> timers;
+
+    /**
+     * Where events are written, or <code>null</code>
+     */
+    private volatile Writer eventLog;
+
+    /**
+     * The most recent event, as JSON
+     */
+    private volatile String lastEvent = "";
+
+    /**
+     * The name the MBean was registered under, or <code>null</code>
+     */
+    private ObjectName mbeanName;
+
+
+
+    /**************************************************************
+     ********************** CONSTRUCTORS **************************
+     **************************************************************/
+
+    /**
+     * Creates an <code>Instrumentation</code> that records counters, timers and events for the
+     * run with the specified name. Events are not written anywhere until an event log is set.
+     *
+     * @param   runName   the name of the run
+     */
+    public Instrumentation(String runName) {
+	this.runName = runName;
+	startTime = System.nanoTime();
+	counters = Collections.synchronizedMap(new LinkedHashMap<String, Counter>());
+	timers = Collections.synchronizedMap(new LinkedHashMap<String, Timer>());
+    }
+
+    /**
+     * Creates the disabled <code>Instrumentation</code>.
+     */
+    private Instrumentation() {
+	runName = "disabled";
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC CLASS METHODS ******************
+     **************************************************************/
+
+    /**
+     * Returns an <code>Instrumentation</code> for a run of the specified kind, set up as the
+     * <code>clustering.metrics</code> and <code>clustering.metrics.jmx</code> system properties
+     * ask, or <code>DISABLED</code> if neither is set.
+     *
+     * @param   kind   the kind of run, such as the name of the clustering class
+     * @return   an <code>Instrumentation</code> for the run
+     */
+    public static Instrumentation fromSystemProperties(String kind) {
+	String logName = System.getProperty("clustering.metrics");
+	boolean jmx = Boolean.getBoolean("clustering.metrics.jmx");
+	if (logName == null && !jmx)
+	    return DISABLED;
+	Instrumentation instrumentation = new Instrumentation(kind + "-" + runCount.incrementAndGet());
+	if (logName != null) {
+	    try {
+		instrumentation.setEventLog(sharedLog(logName));
+	    } catch (IOException e) {
+		System.err.println("Warning - could not open metrics file " + logName + " (" + e.getMessage() + ")");
+	    }
+	}
+	if (jmx) {
+	    try {
+		instrumentation.registerMBean();
+	    } catch (JMException e) {
+		System.err.println("Warning - could not register metrics MBean (" + e.getMessage() + ")");
+	    }
+	}
+	return instrumentation;
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC INSTANCE METHODS ***************
+     **************************************************************/
+
+    /**
+     * Returns <code>true</code> if this <code>Instrumentation</code> records anything. Callers only
+     * need to test this before doing extra work to compute a value worth reporting.
+     *
+     * @return   whether this <code>Instrumentation</code> is enabled
+     */
+    public boolean isEnabled() {
+	return counters != null;
+    }
+
+    /**
+     * Returns the name of the run.
+     *
+     * @return   the run name
+     */
+    public String getRunName() {
+	return runName;
+    }
+
+    /**
+     * Returns the counter with the specified name, creating it at 0 if needed. Hot loops should
+     * look the counter up once and keep it.
+     *
+     * @param   name   the name of a counter
+     * @return   the <code>Counter</code> with that name
+     */
+    public Counter counter(String name) {
+	if (counters == null)
+	    return Counter.DISABLED;
+	return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /**
+     * Returns the timer with the specified name, creating it if needed.
+     *
+     * @param   name   the name of a timer
+     * @return   the <code>Timer</code> with that name
+     */
+    public Timer timer(String name) {
+	if (timers == null)
+	    return Timer.DISABLED;
+	return timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    /**
+     * Records an event and writes it to the event log, if there is one. The event is written as a
+     * JSON object holding the run name, the event type, the milliseconds since the run started and
+     * the specified values.
+     *
+     * @param   type   the type of event, such as <code>iteration</code>
+     * @param   namesAndValues   alternating names and values (numbers, booleans or strings)
+     */
+    public void event(String type, Object... namesAndValues) {
+	if (counters == null)
+	    return;
+	StringBuilder sb = new StringBuilder(64 + 24 * namesAndValues.length);
+	sb.append("{\"run\":");
+	appendJson(sb, runName);
+	sb.append(",\"event\":");
+	appendJson(sb, type);
+	sb.append(",\"elapsed_ms\":");
+	appendJson(sb, (System.nanoTime() - startTime) / 1e6);
+	for (int i=0; i+1<namesAndValues.length; i+=2) {
+	    sb.append(',');
+	    appendJson(sb, String.valueOf(namesAndValues[i]));
+	    sb.append(':');
+	    appendJson(sb, namesAndValues[i + 1]);
+	}
+	sb.append('}');
+	lastEvent = sb.toString();
+	Writer log = eventLog;
+	if (log != null) {
+	    // Events come once per iteration at most, so each is flushed for anyone tailing the log
+	    synchronized (log) {
+		try {
+		    log.write(lastEvent);
+		    log.write('\n');
+		    log.flush();
+		} catch (IOException e) {
+		    System.err.println("Warning - could not write metrics event (" + e.getMessage() + ")");
+		    eventLog = null;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Records a <code>summary</code> event holding every counter and the total milliseconds and
+     * number of calls of every timer. Call at the end of a run.
+     */
+    public void summarize() {
+	if (counters == null)
+	    return;
+	List<Object> values = new ArrayList<Object>();
+	synchronized (counters) {
+	    for (Map.Entry<String, Counter> e : counters.entrySet()) {
+		values.add(e.getKey());
+		values.add(e.getValue().get());
+	    }
+	}
+	synchronized (timers) {
+	    for (Map.Entry<String, Timer> e : timers.entrySet()) {
+		values.add(e.getKey() + "_ms");
+		values.add(e.getValue().getTotalMillis());
+		values.add(e.getKey() + "_calls");
+		values.add(e.getValue().getCount());
+	    }
+	}
+	event("summary", values.toArray());
+    }
+
+    /**
+     * Sets where events are written as JSON lines; <code>null</code> stops writing them.
+     *
+     * @param   log   a <code>Writer</code> for the events
+     */
+    public void setEventLog(Writer log) {
+	if (counters != null)
+	    eventLog = log;
+    }
+
+    /**
+     * Registers a JMX MBean publishing the counters, the timers and the most recent event, named
+     * <code>clustering:type=Instrumentation,name=RUN</code>.
+     *
+     * @exception   JMException   if the MBean cannot be registered
+     */
+    public void registerMBean() throws JMException {
+	if (counters == null || mbeanName != null)
+	    return;
+	ObjectName name = new ObjectName("clustering:type=Instrumentation,name=" + ObjectName.quote(runName));
+	ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), name);
+	mbeanName = name;
+    }
+
+    /**
+     * Unregisters the MBean, if one was registered.
+     */
+    public void unregisterMBean() {
+	if (mbeanName == null)
+	    return;
+	try {
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+	} catch (JMException e) {
+	    // Already gone
+	}
+	mbeanName = null;
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE CLASS METHODS ******************
+     ***************************************************************/
+
+    /**
+     * Returns the writer for the named event log, opening it for appending the first time.
+     */
+    private static Writer sharedLog(String logName) throws IOException {
+	synchronized (sharedLogs) {
+	    Writer log = sharedLogs.get(logName);
+	    if (log == null) {
+		OutputStream out = logName.equals("-") ? System.err : new FileOutputStream(logName, true);
+		log = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		sharedLogs.put(logName, log);
+	    }
+	    return log;
+	}
+    }
+
+    private static void appendJson(StringBuilder sb, Object value) {
+	if (value == null) {
+	    sb.append("null");
+	} else if (value instanceof Double || value instanceof Float) {
+	    double d = ((Number)value).doubleValue();
+	    if (Double.isNaN(d) || Double.isInfinite(d))
+		sb.append("null");  // JSON has no NaN or infinity
+	    else
+		sb.append(d);
+	} else if (value instanceof Number || value instanceof Boolean) {
+	    sb.append(value);
+	} else {
+	    String s = value.toString();
+	    sb.append('"');
+	    for (int i=0; i<s.length(); i++) {
+		char c = s.charAt(i);
+		if (c == '"' || c == '\\')
+		    sb.append('\\').append(c);
+		else if (c < 0x20)
+		    sb.append(String.format("\\u%04x", (int)c));
+		else
+		    sb.append(c);
+	    }
+	    sb.append('"');
+	}
+    }
+
+
+
+    /**************************************************************
+     ********************** NESTED CLASSES ************************
+     **************************************************************/
+
+    /**
+     * A count that many threads can add to at once.
+     */
+    public static final class Counter {
+
+	static final Counter DISABLED = new Counter(null);
+
+	private final LongAdder sum;
+
+	private Counter() {
+	    this(new LongAdder());
+	}
+
+	private Counter(LongAdder sum) {
+	    this.sum = sum;
+	}
+
+	/**
+	 * Adds the specified amount to this counter.
+	 *
+	 * @param   delta   the amount to add
+	 */
+	public void add(long delta) {
+	    if (sum != null)
+		sum.add(delta);
+	}
+
+	/**
+	 * Adds 1 to this counter.
+	 */
+	public void increment() {
+	    if (sum != null)
+		sum.increment();
+	}
+
+	/**
+	 * Returns the current count.
+	 *
+	 * @return   the count
+	 */
+	public long get() {
+	    return sum == null ? 0 : sum.sum();
+	}
+    }
+
+    /**
+     * The total time spent in a phase and the number of times it was entered. Use as
+     * <pre>
+     *   long start = timer.start();
+     *   ...
+     *   timer.stop(start);
+     * </pre>
+     */
+    public static final class Timer {
+
+	static final Timer DISABLED = new Timer(null, null);
+
+	private final LongAdder nanos;
+	private final LongAdder count;
+
+	private Timer() {
+	    this(new LongAdder(), new LongAdder());
+	}
+
+	private Timer(LongAdder nanos, LongAdder count) {
+	    this.nanos = nanos;
+	    this.count = count;
+	}
+
+	/**
+	 * Returns the time to pass to <code>stop</code>, or 0 if this timer is disabled.
+	 *
+	 * @return   the start time in nanoseconds
+	 */
+	public long start() {
+	    return nanos == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Adds the time since <code>start</code> to this timer and returns it.
+	 *
+	 * @param   start   the value returned by <code>start</code>
+	 * @return   the nanoseconds elapsed, or 0 if this timer is disabled
+	 */
+	public long stop(long start) {
+	    if (nanos == null)
+		return 0;
+	    long elapsed = System.nanoTime() - start;
+	    record(elapsed);
+	    return elapsed;
+	}
+
+	/**
+	 * Adds a duration measured elsewhere to this timer.
+	 *
+	 * @param   elapsed   a duration in nanoseconds
+	 */
+	public void record(long elapsed) {
+	    if (nanos == null)
+		return;
+	    nanos.add(elapsed);
+	    count.increment();
+	}
+
+	/**
+	 * Returns the total time recorded, in milliseconds.
+	 *
+	 * @return   the total milliseconds
+	 */
+	public double getTotalMillis() {
+	    return nanos == null ? 0.0 : nanos.sum() / 1e6;
+	}
+
+	/**
+	 * Returns the number of durations recorded.
+	 *
+	 * @return   the count
+	 */
+	public long getCount() {
+	    return count == null ? 0 : count.sum();
+	}
+    }
+
+    /**
+     * Publishes the counters and timers over JMX. The attributes are whatever counters and timers
+     * exist when the MBean is asked for its description, so new ones appear as a run goes on.
+     */
+    private final class MBean implements DynamicMBean {
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+	    if (attribute.equals("LastEvent"))
+		return lastEvent;
+	    if (attribute.equals("ElapsedMillis"))
+		return (System.nanoTime() - startTime) / 1e6;
+	    Counter counter = counters.get(attribute);
+	    if (counter != null)
+		return counter.get();
+	    if (attribute.endsWith("Millis") || attribute.endsWith("Calls")) {
+		boolean millis = attribute.endsWith("Millis");
+		Timer timer = timers.get(attribute.substring(0, attribute.length() - (millis ? 6 : 5)));
+		if (timer != null)
+		    return millis ? (Object)timer.getTotalMillis() : (Object)timer.getCount();
+	    }
+	    throw new AttributeNotFoundException(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+	    AttributeList list = new AttributeList();
+	    for (String attribute : attributes) {
+		try {
+		    list.add(new Attribute(attribute, getAttribute(attribute)));
+		} catch (AttributeNotFoundException e) {
+		    // Left out, as the interface allows
+		}
+	    }
+	    return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+	    throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+	    return new AttributeList();
+	}
+
+	public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+	    throw new ReflectionException(new NoSuchMethodException(action));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+	    List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+	    attributes.add(new MBeanAttributeInfo("LastEvent", "java.lang.String", "The most recent event, as JSON", true, false, false));
+	    attributes.add(new MBeanAttributeInfo("ElapsedMillis", "double", "Milliseconds since the run started", true, false, false));
+	    List<String> counterNames, timerNames;
+	    synchronized (counters) {
+		counterNames = new ArrayList<String>(counters.keySet());
+	    }
+	    synchronized (timers) {
+		timerNames = new ArrayList<String>(timers.keySet());
+	    }
+	    for (String name : counterNames)
+		attributes.add(new MBeanAttributeInfo(name, "long", "Counter", true, false, false));
+	    for (String name : timerNames) {
+		attributes.add(new MBeanAttributeInfo(name + "Millis", "double", "Total milliseconds in " + name, true, false, false));
+		attributes.add(new MBeanAttributeInfo(name + "Calls", "long", "Times " + name + " was timed", true, false, false));
+	    }
+	    return new MBeanInfo(getClass().getName(), "Instrumentation of " + runName,
+				 attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+	}
+    }
+
+}
@@ -0,0 +1,285 @@
+import java.util.*;
+/**
+ * KMeansSeeder chooses starting means for a KMeans_Clustering.
+ *
+ * k-means++ picks the first mean uniformly at random and each later mean with probability
+ * proportional to a gene's squared distance from the nearest mean chosen so far, in O(n*k) time.
+ * Distances are taken under the clustering's metric, the same one the iterations use.
+ * k-means|| (scalable k-means++) instead runs a few rounds in which every gene is independently
+ * kept as a candidate with probability proportional to its squared distance, so each round is one
+ * parallel pass over the genes; the candidates, weighted by how many genes they are nearest to,
+ * are then reduced to k means with k-means++.
+ *
+ * All random choices come from the clustering's seeded generator, and parallel passes give each
+ * chunk its own generator derived from that seed, so the same seed always gives the same means
+ * whatever the number of threads.
+ */
+class KMeansSeeder
+{
+    //rounds of candidate sampling in k-means||, and the expected number of candidates per round (times k)
+    static final int PARALLEL_ROUNDS = 5;
+    static final double OVERSAMPLING = 2.0;
+
+    private final KMeans_Clustering c;
+    private final ExpressionMatrix matrix;
+    //the clustering's metric, and the cheaper one with the same ordering used to compare distances
+    private final DistanceMetric metric, comparison;
+    private final int n, k, d;
+    //squared distance under the metric from each gene to the nearest mean (or candidate) chosen so far
+    private final double[] nearestDist;
+
+    KMeansSeeder(KMeans_Clustering c)
+    {
+        this.c = c;
+        matrix = c.getMetricMatrix();
+        metric = c.getDistanceMetric();
+        comparison = metric.forComparison();
+        n = c.getNumGenes();
+        k = c.k;
+        d = c.getNumExperiments();
+        nearestDist = new double[n];
+    }
+
+    /**
+     * Returns k means chosen with k-means++.
+     */
+    public double[][] kMeansPlusPlus(Random rand){
+        double[][] chosen = new double[k][];
+        chosen[0] = row(rand.nextInt(n));
+        Arrays.fill(nearestDist, Double.MAX_VALUE);
+        for(int j = 1; j<k; j++){
+            double[] chunkTotals = updateNearestDist(chosen[j-1]);
+            chosen[j] = row(sampleByDistance(chunkTotals, rand.nextDouble()));
+        }
+        return chosen;
+    }
+
+    /**
+     * Returns k means chosen with k-means||.
+     */
+    public double[][] kMeansParallel(Random rand){
+        int numChunks = Clustering.getNumChunks(n);
+        boolean[] isCandidate = new boolean[n];
+        int first = rand.nextInt(n);
+        isCandidate[first] = true;
+        Arrays.fill(nearestDist, Double.MAX_VALUE);
+        double[] chunkTotals = updateNearestDist(row(first));
+        List<Integer> newCandidates = new ArrayList<Integer>();
+        for(int round = 0; round<PARALLEL_ROUNDS; round++){
+            double total = 0;
+            for(double t : chunkTotals){
+                total += t;
+            }
+            if(total == 0){
+                break;
+            }
+            double scale = OVERSAMPLING * k / total;
+            long roundSeed = rand.nextLong();
+            //each chunk samples its genes with its own generator, then the picks are gathered in chunk order
+            int[][] picks = new int[numChunks][];
+            c.forEachChunk(n, (chunk, start, end) -> {
+                SplittableRandom chunkRand = new SplittableRandom(roundSeed + 0x9E3779B97F4A7C15L * (chunk + 1));
+                int[] picked = new int[8];
+                int count = 0;
+                for(int i = start; i<end; i++){
+                    if(!isCandidate[i] && chunkRand.nextDouble() < scale * nearestDist[i]){
+                        if(count+1 >= picked.length){
+                            picked = Arrays.copyOf(picked, 2*picked.length);
+                        }
+                        picked[++count] = i;
+                    }
+                }
+                picked[0] = count;
+                picks[chunk] = picked;
+            });
+            newCandidates.clear();
+            for(int[] picked : picks){
+                for(int p = 1; p<=picked[0]; p++){
+                    isCandidate[picked[p]] = true;
+                    newCandidates.add(picked[p]);
+                }
+            }
+            //one pass compares every gene with all of the round's new candidates
+            if(!newCandidates.isEmpty()){
+                double[][] rows = new double[newCandidates.size()][];
+                for(int j = 0; j<rows.length; j++){
+                    rows[j] = row(newCandidates.get(j));
+                }
+                chunkTotals = updateNearestDist(rows);
+            }
+        }
+
+        int numCandidates = 0;
+        for(boolean b : isCandidate){
+            if(b) numCandidates++;
+        }
+        int[] candidates = new int[numCandidates];
+        for(int i = 0, j = 0; i<n; i++){
+            if(isCandidate[i]) candidates[j++] = i;
+        }
+        if(numCandidates <= k){
+            //too few distinct candidates to choose from; fall back to k-means++ over every gene
+            return kMeansPlusPlus(rand);
+        }
+        return weightedPlusPlus(candidates, candidateWeights(candidates), rand);
+    }
+
+    //number of genes nearest to each candidate under the clustering's metric
+    private double[] candidateWeights(int[] candidates){
+        int numChunks = Clustering.getNumChunks(n);
+        int[][] partial = new int[numChunks][];
+        c.forEachChunk(n, (chunk, start, end) -> {
+            int[] counts = new int[candidates.length];
+            for(int i = start; i<end; i++){
+                int best = 0;
+                double lowest = Double.MAX_VALUE;
+                for(int j = 0; j<candidates.length; j++){
+                    double dist = matrix.distanceBetweenRows(comparison, i, candidates[j]);
+                    if(dist<lowest){
+                        lowest = dist;
+                        best = j;
+                    }
+                }
+                counts[best]++;
+            }
+            partial[chunk] = counts;
+        });
+        double[] weights = new double[candidates.length];
+        for(int[] counts : partial){
+            for(int j = 0; j<counts.length; j++){
+                weights[j] += counts[j];
+            }
+        }
+        return weights;
+    }
+
+    //k-means++ over a small weighted set of candidate genes; each candidate is chosen at most once
+    private double[][] weightedPlusPlus(int[] candidates, double[] weights, Random rand){
+        int m = candidates.length;
+        double[] best = new double[m];
+        Arrays.fill(best, Double.MAX_VALUE);
+        boolean[] taken = new boolean[m];
+        double[][] chosen = new double[k][];
+        int pick = sample(weights, rand.nextDouble());
+        for(int j = 0; j<k; j++){
+            chosen[j] = row(candidates[pick]);
+            taken[pick] = true;
+            if(j == k-1){
+                break;
+            }
+            double[] score = new double[m];
+            double total = 0;
+            for(int x = 0; x<m; x++){
+                best[x] = Math.min(best[x], seedingWeight(candidates[x], chosen[j]));
+                score[x] = taken[x] ? 0 : weights[x] * best[x];
+                total += score[x];
+            }
+            if(total == 0){
+                //every candidate left coincides with a chosen mean (or cannot be compared with one), so
+                //fall back to their weights alone, or to any of them
+                for(int x = 0; x<m; x++){
+                    score[x] = taken[x] ? 0 : Math.max(weights[x], Double.MIN_VALUE);
+                }
+            }
+            pick = sample(score, rand.nextDouble());
+        }
+        return chosen;
+    }
+
+    //index chosen with probability proportional to its value, for a uniform draw u in [0, 1)
+    private static int sample(double[] values, double u){
+        double total = 0;
+        for(double v : values){
+            total += v;
+        }
+        double target = u * total;
+        double sum = 0;
+        for(int i = 0; i<values.length; i++){
+            sum += values[i];
+            if(sum > target && values[i] > 0){
+                return i;
+            }
+        }
+        //rounding left the target just past the end; take the last gene with any weight
+        for(int i = values.length-1; i>0; i--){
+            if(values[i] > 0) return i;
+        }
+        return 0;
+    }
+
+    /**
+     * Lowers each gene's nearest distance using a new mean and returns the per-chunk totals
+     * of the nearest distances, so a gene can be sampled without summing all of them again.
+     */
+    private double[] updateNearestDist(double[] mean){
+        return updateNearestDist(new double[][]{mean});
+    }
+
+    //as above for several new means at once, in a single pass over the genes
+    private double[] updateNearestDist(double[][] means){
+        double[] chunkTotals = new double[Clustering.getNumChunks(n)];
+        c.forEachChunk(n, (chunk, start, end) -> {
+            double total = 0;
+            for(int i = start; i<end; i++){
+                for(double[] mean : means){
+                    double dist = seedingWeight(i, mean);
+                    if(dist < nearestDist[i]){
+                        nearestDist[i] = dist;
+                    }
+                }
+                total += nearestDist[i];
+            }
+            chunkTotals[chunk] = total;
+        });
+        return chunkTotals;
+    }
+
+    //gene chosen with probability proportional to its nearest distance, skipping whole chunks by their totals
+    private int sampleByDistance(double[] chunkTotals, double u){
+        double total = 0;
+        for(double t : chunkTotals){
+            total += t;
+        }
+        if(total == 0){
+            //every gene coincides with a chosen mean, so any gene will do
+            return (int)(u * n);
+        }
+        double target = u * total;
+        int numChunks = chunkTotals.length;
+        int chunkSize = (n + numChunks - 1) / numChunks;
+        int chunk = 0;
+        while(chunk < numChunks-1 && target >= chunkTotals[chunk]){
+            target -= chunkTotals[chunk];
+            chunk++;
+        }
+        int end = Math.min(n, (chunk+1)*chunkSize);
+        int last = -1;
+        for(int i = chunk*chunkSize; i<end; i++){
+            if(nearestDist[i] > 0){
+                last = i;
+                target -= nearestDist[i];
+                if(target < 0){
+                    return i;
+                }
+            }
+        }
+        return last >= 0 ? last : (int)(u * n);
+    }
+
+    //squared distance under the metric from a gene to a mean; a gene with no measured experiment is
+    //infinitely far from every mean and gets no weight, so it is never sampled
+    private double seedingWeight(int gene, double[] mean){
+        double dist = matrix.distanceToVector(comparison, gene, mean);
+        if(dist == Double.POSITIVE_INFINITY){
+            return 0;
+        }
+        dist = metric.fromComparison(dist);
+        return dist*dist;
+    }
+
+    private double[] row(int gene){
+        double[] v = new double[d];
+        matrix.copyRow(gene, v, 0);
+        return v;
+    }
+}
@@ -1,6 +1,7 @@
 import java.util.*;
+import java.io.*;
 /**
- * KMeans_Clustering executes the k means clustering algorithm. 
+ * KMeans_Clustering executes the k means clustering algorithm.
  *
  * @author Catherine Larson and Skylar Kolisko
  * @version April 7 2022
@@ -8,83 +9,303 @@ import java.util.*;
 public class KMeans_Clustering extends Clustering
 {
     int k;
-    Vector<Vector<Double>> means;
+    //one mean per cluster, each with one value per experiment
+    double[][] means;
+    //for each gene (row of the expression matrix), the index of its cluster
+    int[] assignment;
+    //number of genes currently in each cluster
+    int[] clusterSizes;
     double oldDistances;
+    //genes that changed cluster in the last assignment pass
+    int genesMoved;
+    //when true, per-cluster sums are kept up to date as genes move instead of being rebuilt every iteration
+    boolean incrementalMeans = false;
+    //running sum of the genes in each cluster, only used with incrementalMeans
+    double[][] clusterSums;
+    //number of genes in each cluster measured in each experiment; only kept when values are missing
+    int[][] clusterCounts;
+    //false when clusterSums must be rebuilt from scratch
+    boolean sumsValid = false;
+    int iterationsSinceRebuild = 0;
+    //rebuild the running sums this often so rounding error from repeated add/subtract cannot build up
+    static final int REBUILD_INTERVAL = 50;
+
+    /**
+     * The ways the k means iterations can be run. LLOYD computes every gene-to-mean distance on
+     * every iteration. HAMERLY and ELKAN use bounds from the triangle inequality to skip most of
+     * them (see AcceleratedKMeans); AUTO picks Elkan for large k and Hamerly otherwise. The bounds
+     * need a true metric and data without missing values, since squared, correlation and scaled
+     * distances break them: there AUTO runs LLOYD, and kMeans() rejects HAMERLY and ELKAN.
+     */
+    public enum Engine { LLOYD, HAMERLY, ELKAN, AUTO }
+    Engine engine = Engine.LLOYD;
+    //Elkan keeps k bounds per gene, so AUTO only picks it when that many bounds fit comfortably
+    static final int ELKAN_MIN_K = 32;
+    static final long ELKAN_MAX_BOUNDS = 1L << 26;
+
+    /**
+     * The ways the starting clusters can be chosen. RANDOM_PARTITION deals the genes out to the
+     * clusters in random order; KMEANS_PLUS_PLUS and KMEANS_PARALLEL pick well spread starting
+     * means (see KMeansSeeder) and assign every gene to the nearest one.
+     */
+    public enum Seeding { RANDOM_PARTITION, KMEANS_PLUS_PLUS, KMEANS_PARALLEL }
+    Seeding seeding = Seeding.RANDOM_PARTITION;
+    //every random choice made by the algorithm comes from here, so a fixed seed reproduces a run exactly
+    Random rand = new Random();
+    //number of assignment passes made by the last call to kMeans()
+    int iterations;
     /**
      * Constructor for objects of class KMeans_Clustering
      */
     public KMeans_Clustering(String fileName, int numClust)
+    {
+        this(fileName, numClust, 1);
+    }
+
+    /**
+     * Constructor that runs the assignment and mean steps on the given number of threads.
+     * The clustering is the same as with one thread.
+     */
+    public KMeans_Clustering(String fileName, int numClust, int threads)
     {
         // initialise instance variables
         super(fileName);
         k = numClust;
-        means = new  Vector<Vector<Double>>();
+        means = new double[k][getNumExperiments()];
+        setNumThreads(threads);
         kMeans();
     }
 
+    /**
+     * Constructor for an already loaded matrix. Nothing is clustered until kMeans() is called,
+     * so options such as the number of threads can be set first.
+     */
+    public KMeans_Clustering(ExpressionMatrix matrix, int numClust)
+    {
+        super(matrix);
+        k = numClust;
+        means = new double[k][getNumExperiments()];
+    }
+
+    /**
+     * Turns incremental mean maintenance on or off. When on, each cluster's sum is updated only
+     * for genes that changed cluster, so late iterations where few genes move cost far less than
+     * a full pass over every gene.
+     */
+    public void setIncrementalMeans(boolean incremental){
+        incrementalMeans = incremental;
+        sumsValid = false;
+    }
+
+    /**
+     * Chooses how kMeans() runs its iterations; the default is LLOYD.
+     */
+    public void setEngine(Engine engine){
+        this.engine = engine;
+    }
+
+    /**
+     * Chooses how kMeans() picks its starting clusters; the default is RANDOM_PARTITION.
+     */
+    public void setSeeding(Seeding seeding){
+        this.seeding = seeding;
+    }
+
+    /**
+     * Seeds the random number generator so that runs can be reproduced.
+     */
+    public void setSeed(long seed){
+        rand = new Random(seed);
+    }
+
+    public int getIterations(){
+        return iterations;
+    }
+
     public void initializeAllClusters(){
-        for(int i=0; i<clusters.size(); i++){
-            clusters.get(i).initialize();
-        }
+        Arrays.fill(clusterSizes, 0);
     }
-    
+
     public void randomlyAssignGenesToClusters(){
-        Vector<Integer> choices = new Vector<Integer>();
-        for(int i = 0; i<genes.size(); i++){
-            choices.add(i);
-        }
-        Random rand = new Random();  
-        Gene currentGene;
-        int counter = 0;
-        while(choices.size()>0){
+        //shuffle the genes, then deal them out to the clusters in turn
+        int[] order = new int[getNumGenes()];
+        for(int i = 0; i<order.length; i++){
+            order[i] = i;
+        }
+        for(int i = order.length-1; i>0; i--){
+            int randomInt = rand.nextInt(i+1);
+            int tmp = order[i];
+            order[i] = order[randomInt];
+            order[randomInt] = tmp;
+        }
+        for(int counter = 0; counter<order.length; counter++){
             int currentCluster = counter % k;
-            
-            int randomInt = rand.nextInt(choices.size());
-            
-            int geneToGet = choices.get(randomInt);
-            currentGene = genes.get(geneToGet);
-            clusters.get(currentCluster).addGene(currentGene);
-                    
-            choices.remove(randomInt);
-            counter++;
-        }
-        
-    }
-    
-    public Vector<Vector<Double>> getMeansOfAllClusters(){
-        Vector<Vector<Double>> means = new  Vector<Vector<Double>> ();
-        //calculate
-        //for each cluster
-        for(int i= 0; i< clusters.size(); i++){
-            //getClusterMean
-            //add it to means
-            means.add(clusters.get(i).getClusterMean());
+            assignment[order[counter]] = currentCluster;
+            clusterSizes[currentCluster]++;
         }
+
+    }
+
+    //picks starting means with k-means++ or k-means|| and assigns every gene to the nearest one
+    public void seedMeansAndAssignGenes(){
+        KMeansSeeder seeder = new KMeansSeeder(this);
+        double[][] seeds = seeding == Seeding.KMEANS_PARALLEL ? seeder.kMeansParallel(rand) : seeder.kMeansPlusPlus(rand);
+        for(int i = 0; i<k; i++){
+            System.arraycopy(seeds[i], 0, means[i], 0, means[i].length);
+        }
+        assignGenesToClusters();
+        populateEmptyClusters();
+    }
+
+    public double[][] getMeansOfAllClusters(){
+        int d = getNumExperiments();
+        if(!incrementalMeans || !sumsValid || iterationsSinceRebuild >= REBUILD_INTERVAL){
+            computeClusterSums();
+        }
+        for(int i = 0; i<k; i++){
+            //missing values are left out of the mean of each experiment
+            ExpressionMatrix.divideSum(clusterSums[i], clusterSizes[i], clusterCounts == null ? null : clusterCounts[i], means[i]);
+            //correlation-type metrics compare against the normalized mean
+            normalizeVector(means[i]);
+        }
+        iterationsSinceRebuild++;
         return means;
     }
-    
-    public boolean assignGenesToClusters(){        
-        //clear out all clusters
+
+    //rebuilds the sum of every cluster from the current assignment
+    void computeClusterSums(){
+        int d = getNumExperiments();
+        //each chunk of genes sums its own members, then the chunks are merged in order
+        double[][] partialSums = new double[getNumChunks(getNumGenes())][];
+        int[][][] partialCounts = new int[partialSums.length][][];
+        ExpressionMatrix rows = getMetricMatrix();
+        boolean missing = rows.hasMissingValues();
+        forEachChunk(getNumGenes(), (chunk, start, end) -> {
+            double[] sums = new double[k*d];
+            int[][] counts = missing ? new int[k][d] : null;
+            for(int i = start; i<end; i++){
+                rows.addRowTo(i, sums, assignment[i]*d);
+                if(missing){
+                    rows.addPresenceTo(i, counts[assignment[i]]);
+                }
+            }
+            partialSums[chunk] = sums;
+            partialCounts[chunk] = counts;
+        });
+        if(clusterSums == null){
+            clusterSums = new double[k][d];
+        }
+        for(int i = 0; i<k; i++){
+            Arrays.fill(clusterSums[i], 0.0);
+        }
+        for(double[] sums : partialSums){
+            for(int i = 0; i<k; i++){
+                for(int j = 0; j<d; j++){
+                    clusterSums[i][j] += sums[i*d+j];
+                }
+            }
+        }
+        clusterCounts = missing ? new int[k][d] : null;
+        if(missing){
+            for(int[][] counts : partialCounts){
+                for(int i = 0; i<k; i++){
+                    for(int j = 0; j<d; j++){
+                        clusterCounts[i][j] += counts[i][j];
+                    }
+                }
+            }
+        }
+        sumsValid = true;
+        iterationsSinceRebuild = 0;
+    }
+
+    //moves a gene's contribution from one cluster's running sum to another's
+    private void moveGeneBetweenSums(int gene, int from, int to){
+        if(sumsValid){
+            getMetricMatrix().subtractRowFrom(gene, clusterSums[from]);
+            getMetricMatrix().addRowTo(gene, clusterSums[to]);
+            if(clusterCounts != null){
+                getMetricMatrix().subtractPresenceFrom(gene, clusterCounts[from]);
+                getMetricMatrix().addPresenceTo(gene, clusterCounts[to]);
+            }
+        }
+    }
+
+    public boolean assignGenesToClusters(){
+        //each chunk of genes finds its nearest means independently and keeps its own total distance and cluster sizes
+        int numChunks = getNumChunks(getNumGenes());
+        double[] partialDist = new double[numChunks];
+        int[][] partialSizes = new int[numChunks][];
+        //genes that changed cluster in each chunk, stored as (gene, old cluster) pairs
+        int[][] partialMoves = new int[numChunks][];
+        int[] numMoves = new int[numChunks];
+        int[] numChanged = new int[numChunks];
+        boolean trackMoves = incrementalMeans && sumsValid;
+        ExpressionMatrix rows = getMetricMatrix();
+        DistanceMetric comparison = metric.forComparison();
+        Instrumentation.Counter distances = instrumentation.counter("distances");
+        forEachChunk(getNumGenes(), (chunk, start, end) -> {
+            int[] sizes = new int[k];
+            int[] moves = trackMoves ? new int[16] : null;
+            int moved = 0;
+            int changed = 0;
+            double dist = 0;
+            double[] lowest = new double[1];
+            for(int i = start; i < end; i++){
+                //assign to a cluster
+                int clusterIndex = nearestMean(i, rows, comparison, lowest);
+                if(assignment[i] != clusterIndex){
+                    changed++;
+                }
+                if(trackMoves && assignment[i] != clusterIndex){
+                    if(2*moved+2 > moves.length){
+                        moves = Arrays.copyOf(moves, 2*moves.length);
+                    }
+                    moves[2*moved] = i;
+                    moves[2*moved+1] = assignment[i];
+                    moved++;
+                }
+                assignment[i] = clusterIndex;
+                sizes[clusterIndex]++;
+                //the comparison distance to the nearest mean converts to the real one, e.g. by a square root;
+                //a gene with no measured experiment is infinitely far from every mean and is left out
+                if(lowest[0] < Double.POSITIVE_INFINITY){
+                    dist+=metric.fromComparison(lowest[0]);
+                }
+            }
+            partialDist[chunk] = dist;
+            partialSizes[chunk] = sizes;
+            partialMoves[chunk] = moves;
+            numMoves[chunk] = moved;
+            numChanged[chunk] = changed;
+            //k distances to find the nearest mean
+            distances.add((long)(end-start)*k);
+        });
+        //only genes that moved touch the running sums
+        if(!trackMoves){
+            sumsValid = false;
+        }
+        else{
+            for(int c = 0; c<numChunks; c++){
+                for(int m = 0; m<numMoves[c]; m++){
+                    int gene = partialMoves[c][2*m];
+                    moveGeneBetweenSums(gene, partialMoves[c][2*m+1], assignment[gene]);
+                }
+            }
+        }
+        //clear out all clusters, then merge the chunks in order so the result never depends on the thread count
         initializeAllClusters();
-        double dist;
-        int clusterIndex = 0;
         double totalDist = 0;
         boolean done_improving=false;
-        //for each gene
-        for(int i = 0; i < genes.size(); i++){
-            //assign to a cluster
-            double lowest = genes.get(i).distanceToExpressionVector(means.get(0));
-            for(int j = 1; j< means.size(); j++){
-                dist = genes.get(i).distanceToExpressionVector(means.get(j));
-                if(dist<lowest){
-                    lowest = dist;
-                    clusterIndex = j;
-                }
+        genesMoved = 0;
+        for(int c = 0; c<numChunks; c++){
+            totalDist += partialDist[c];
+            genesMoved += numChanged[c];
+            for(int j = 0; j<k; j++){
+                clusterSizes[j] += partialSizes[c][j];
             }
-            clusters.get(clusterIndex).addGene(genes.get(i));
-            totalDist+=lowest;
         }
-        
+
         //compare old clusters to new clusters, if better then return right boolean
         if (totalDist==oldDistances){
             done_improving=true;
@@ -92,60 +313,191 @@ public class KMeans_Clustering extends Clustering
         else{
             oldDistances = totalDist;
         }
-        
+
         return done_improving;
     }
-        
+
+    //index of the mean closest to the given gene, compared with a metric that orders distances the
+    //same way as the clustering's but may be cheaper (squared instead of plain Euclidean, so no sqrt per mean)
+    //index of the mean nearest the gene; its comparison distance is left in lowestOut[0]
+    private int nearestMean(int gene, ExpressionMatrix rows, DistanceMetric comparison, double[] lowestOut){
+        int clusterIndex = 0;
+        double lowest = rows.distanceToVector(comparison, gene, means[0]);
+        for(int j = 1; j< k; j++){
+            double dist = rows.distanceToVector(comparison, gene, means[j]);
+            if(dist<lowest){
+                lowest = dist;
+                clusterIndex = j;
+            }
+        }
+        lowestOut[0] = lowest;
+        return clusterIndex;
+    }
+
     public void populateEmptyClusters(){
-        for(int i = 0; i<clusters.size(); i++){
-            if(clusters.get(i).getSizeOfCluster() == 0){
+        for(int i = 0; i<k; i++){
+            if(clusterSizes[i] == 0){
                 //put a gene in it
                 populate(i);
             }
         }
     }
-    
-    private void populate(int emptyClusterIndex){
-        //in case of invalid input
-        Random rand = new Random();
-        //int count = 0;
-        int randomCluster = rand.nextInt(clusters.size());
-        while(clusters.get(randomCluster).getSizeOfCluster()<2){
-            randomCluster = rand.nextInt(clusters.size());
+
+    //moves a random gene from a cluster with at least two genes into the empty cluster and returns that gene
+    int populate(int emptyClusterIndex){
+        int randomCluster = rand.nextInt(k);
+        while(clusterSizes[randomCluster]<2){
+            randomCluster = rand.nextInt(k);
         }
-        Cluster randClust = clusters.get(randomCluster);
-        int randomGeneIndex = rand.nextInt(randClust.getSizeOfCluster());
-        Gene  replacementGene = randClust.getGene(randomGeneIndex);
-        
-        clusters.get(emptyClusterIndex).addGene(replacementGene);
-        
-        randClust.removeGene(replacementGene);
-        
+        //find the randomly chosen member of that cluster
+        int randomMember = rand.nextInt(clusterSizes[randomCluster]);
+        int replacementGene = -1;
+        for(int i = 0; randomMember >= 0; i++){
+            if(assignment[i] == randomCluster){
+                replacementGene = i;
+                randomMember--;
+            }
+        }
+
+        moveGeneBetweenSums(replacementGene, randomCluster, emptyClusterIndex);
+        assignment[replacementGene] = emptyClusterIndex;
+        clusterSizes[emptyClusterIndex]++;
+        clusterSizes[randomCluster]--;
+        return replacementGene;
     }
-    
+
     public void kMeans(){
-        for(int i=0; i<k; i++){
-            Cluster clusterK = new Cluster();
-            clusters.add(clusterK);
-        }        
-        randomlyAssignGenesToClusters();
+        Engine chosen = chooseEngine();
+        assignment = new int[getNumGenes()];
+        clusterSizes = new int[k];
+        sumsValid = false;
+        oldDistances = 0;
+        iterations = 0;
+        Instrumentation.Timer seedingTimer = instrumentation.timer("seeding");
+        long startTime = seedingTimer.start();
+        if(seeding == Seeding.RANDOM_PARTITION){
+            randomlyAssignGenesToClusters();
+        }
+        else{
+            seedMeansAndAssignGenes();
+        }
+        seedingTimer.stop(startTime);
+        instrumentation.event("start", "genes", getNumGenes(), "experiments", getNumExperiments(), "k", k,
+                "engine", chosen, "seeding", seeding, "metric", metric, "threads", numThreads);
+        if(chosen != Engine.LLOYD){
+            computeClusterSums();
+            AcceleratedKMeans accelerated = new AcceleratedKMeans(this, chosen == Engine.ELKAN);
+            accelerated.run();
+            iterations = accelerated.getIterations();
+            setClustersFromAssignment(assignment, k);
+            finishRun();
+            return;
+        }
         boolean converged = false;
-        
+        Instrumentation.Timer meansTimer = instrumentation.timer("means");
+        Instrumentation.Timer assignTimer = instrumentation.timer("assign");
+
         while(!converged){
             //calculate means of each cluster
-            means = getMeansOfAllClusters();            
+            startTime = meansTimer.start();
+            means = getMeansOfAllClusters();
+            long meansNanos = meansTimer.stop(startTime);
             // assign each gene to cluster with closest mean
+            double previousDistances = oldDistances;
+            startTime = assignTimer.start();
             converged = assignGenesToClusters();
+            long assignNanos = assignTimer.stop(startTime);
+            iterations++;
             //iff assign returns true then converged = true
             // check for empty clusters
             populateEmptyClusters();
+            instrumentation.event("iteration", "iteration", iterations, "moved", genesMoved, "distance", oldDistances,
+                    "delta", previousDistances - oldDistances, "means_ms", meansNanos/1e6, "assign_ms", assignNanos/1e6);
         }
+        setClustersFromAssignment(assignment, k);
+        finishRun();
     }
-    
+
+    //the engine a run will use; an engine whose bounds would not hold is rejected before anything runs
+    private Engine chooseEngine(){
+        //the bounds need the triangle inequality, which squared and correlation distances break; with
+        //missing values each gene-to-mean distance is scaled by how many experiments the gene has, so
+        //the mean-to-mean distances and drifts the bounds are built from no longer apply either
+        String unsupported = null;
+        if(!metric.isTrueMetric()){
+            unsupported = "the " + metric + " distance does not obey the triangle inequality";
+        }
+        else if(getMetricMatrix().hasMissingValues()){
+            unsupported = "the triangle inequality bounds do not hold for data with missing values";
+        }
+        if(engine == Engine.AUTO){
+            if(unsupported != null){
+                return Engine.LLOYD;
+            }
+            boolean elkanFits = (long)getNumGenes()*k <= ELKAN_MAX_BOUNDS;
+            return (k >= ELKAN_MIN_K && elkanFits) ? Engine.ELKAN : Engine.HAMERLY;
+        }
+        if(engine != Engine.LLOYD && unsupported != null){
+            throw new IllegalArgumentException("Cannot run the " + engine + " engine: " + unsupported + "; use LLOYD or AUTO");
+        }
+        return engine;
+    }
+
+    //reports the end of a run and its totals
+    private void finishRun(){
+        instrumentation.event("converged", "iterations", iterations);
+        instrumentation.summarize();
+    }
+
     public static void main(String[] args){
         int k = Integer.parseInt(args[1]);
-        KMeans_Clustering c = new KMeans_Clustering(args[0], k);
-        System.out.println(c.toString());
+        KMeans_Clustering c = new KMeans_Clustering(Clustering.readExpressionMatrix(args[0]), k);
+        //optional arguments after k: a number of threads, "incremental" to keep running cluster sums,
+        //"kmeans++" or "kmeans||" seeding, "seed=N", "metric=NAME" (euclidean, squared_euclidean, pearson,
+        //cosine, manhattan), an engine name (lloyd, hamerly, elkan, auto), or "tsv=FILE", "cdt=PREFIX" or
+        //"text=FILE" to also write the result there
+        List<String> outputs = new ArrayList<String>();
+        for(int i = 2; i<args.length; i++){
+            if(ClusteringResultWriter.isOutputOption(args[i])){
+                outputs.add(args[i]);
+            }
+            else if(args[i].equals("incremental")){
+                c.setIncrementalMeans(true);
+            }
+            else if(args[i].equals("kmeans++")){
+                c.setSeeding(Seeding.KMEANS_PLUS_PLUS);
+            }
+            else if(args[i].equals("kmeans||")){
+                c.setSeeding(Seeding.KMEANS_PARALLEL);
+            }
+            else if(args[i].startsWith("seed=")){
+                c.setSeed(Long.parseLong(args[i].substring(5)));
+            }
+            else if(args[i].startsWith("metric=")){
+                c.setDistanceMetric(DistanceMetric.forName(args[i].substring(7)));
+            }
+            else if(Character.isDigit(args[i].charAt(0))){
+                c.setNumThreads(Integer.parseInt(args[i]));
+            }
+            else{
+                c.setEngine(Engine.valueOf(args[i].toUpperCase()));
+            }
+        }
+        c.kMeans();
+        System.err.println("Converged after " + c.getIterations() + " iterations.");
+        try{
+            for(String output : outputs){
+                ClusteringResultWriter.writeOption(c, output);
+            }
+            try(Writer out = ClusteringResultWriter.open("-")){
+                c.write(out);
+                out.write(System.lineSeparator());
+            }
+        }
+        catch(IOException e){
+            System.err.println("Error - could not write the clusters: " + e.getMessage());
+            System.exit(1);
+        }
     }
-    
+
 }
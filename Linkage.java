@@ -0,0 +1,75 @@
+/******************************************************************
+ * A <code>Linkage</code> defines the distance between two clusters of
+ * genes in agglomerative (hierarchical) clustering, in the form of a
+ * Lance-Williams update: the distance from a cluster <code>k</code> to the
+ * union of clusters <code>i</code> and <code>j</code> is computed from the
+ * distances <code>d(k,i)</code>, <code>d(k,j)</code> and <code>d(i,j)</code>
+ * and the three cluster sizes alone, so clusters never have to be compared
+ * gene by gene once the gene-to-gene distances are known.
+ * <p>
+ * All four linkages are <em>reducible</em>, which is what allows the
+ * nearest-neighbor-chain algorithm to find the same merges as a full scan.
+ ******************************************************************/
+public enum Linkage {
+
+    /**
+     * Distance between the closest pair of genes, one from each cluster
+     */
+    SINGLE,
+
+    /**
+     * Distance between the farthest pair of genes, one from each cluster
+     */
+    COMPLETE,
+
+    /**
+     * Average distance over all pairs of genes, one from each cluster (UPGMA)
+     */
+    AVERAGE,
+
+    /**
+     * Ward's minimum variance criterion, on Euclidean distances. Its update treats the distances
+     * as Euclidean, so it cannot be used with any other metric.
+     */
+    WARD;
+
+    /**
+     * Returns <code>true</code> if this linkage can be used with distances under the specified metric.
+     * Every linkage but <code>WARD</code> works with any metric.
+     *
+     * @param   metric   a <code>DistanceMetric</code>
+     * @return   whether this linkage gives meaningful distances under the metric
+     */
+    public boolean supports(DistanceMetric metric) {
+	return this != WARD || metric.getStandardMetric() == StandardDistanceMetric.EUCLIDEAN;
+    }
+
+    /**
+     * Returns the distance from cluster <code>k</code> to the union of clusters <code>i</code> and <code>j</code>.
+     *
+     * @param   dki   the distance between clusters <code>k</code> and <code>i</code>
+     * @param   dkj   the distance between clusters <code>k</code> and <code>j</code>
+     * @param   dij   the distance between clusters <code>i</code> and <code>j</code>
+     * @param   ni   the number of genes in cluster <code>i</code>
+     * @param   nj   the number of genes in cluster <code>j</code>
+     * @param   nk   the number of genes in cluster <code>k</code>
+     * @return   the distance from <code>k</code> to the merged cluster
+     */
+    public double update(double dki, double dkj, double dij, double ni, double nj, double nk) {
+	switch (this) {
+	case SINGLE:
+	    return Math.min(dki, dkj);
+	case COMPLETE:
+	    return Math.max(dki, dkj);
+	case AVERAGE:
+	    return (ni * dki + nj * dkj) / (ni + nj);
+	default:
+	    // A cluster with no experiment in common with the others stays infinitely far from them
+	    if (Double.isInfinite(dki) || Double.isInfinite(dkj))
+		return Double.POSITIVE_INFINITY;
+	    double squared = ((ni + nk) * dki * dki + (nj + nk) * dkj * dkj - nk * dij * dij) / (ni + nj + nk);
+	    return Math.sqrt(Math.max(0.0, squared));
+	}
+    }
+
+}
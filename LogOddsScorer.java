@@ -0,0 +1,283 @@
+/******************************************************************
+ * A <code>LogOddsScorer</code> scores windows of a sequence against a
+ * motif model as log-odds: the natural log of the probability of the
+ * window under the motif's position-specific matrix divided by its
+ * probability under a background model. Summing logs
+ * rather than multiplying probabilities cannot underflow, however long
+ * the motif.
+ * <p>
+ * The scores are precomputed into one flat table with a row of 5 weights
+ * per motif position, indexed by the base codes of
+ * <code>PackedSequences</code>, so a window is scored with one table
+ * lookup and one addition per base and no branches. The weight of an
+ * ambiguous base (<code>N</code>) is negative infinity, so no window
+ * containing one can be chosen as a motif instance.
+ * <p>
+ * Against a plain nucleotide composition (a background of order 0) the
+ * background is folded into the table. Against a Markov background the
+ * probability of a window depends on the bases around it, so the
+ * background log probability of every base of a sequence is computed once
+ * and a running sum over the window is subtracted from its score.
+ * <p>
+ * A scorer holds a snapshot of the matrix it was built from, and never
+ * changes, so it can be shared between threads.
+ ******************************************************************/
+public class LogOddsScorer {
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * The number of weights per motif position: A, C, G, T and N
+     */
+    private static final int CODES = 5;
+
+    /**
+     * Per-thread buffers for background log probabilities and window scores
+     */
+    private static final ThreadLocal<double[][]> scratch = ThreadLocal.withInitial(() -> new double[2][0]);
+
+
+
+    /**************************************************************
+     ********************** INSTANCE VARIABLES ********************
+     **************************************************************/
+
+    /**
+     * The length of the motif
+     */
+    private final int motifLength;
+
+    /**
+     * The weight of base code <code>b</code> at motif position <code>i</code> is at index
+     * <code>i*5 + b</code>
+     */
+    private final double[] weights;
+
+    /**
+     * The Markov background subtracted window by window, or <code>null</code> if the background
+     * is folded into <code>weights</code>
+     */
+    private final BackgroundModel markov;
+
+
+
+    /**************************************************************
+     ********************** CONSTRUCTOR ***************************
+     **************************************************************/
+
+    /**
+     * Creates a <code>LogOddsScorer</code> for a motif matrix against a background composition.
+     * Background frequencies of 0 are raised to the smallest normal <code>double</code>, since
+     * a base that never occurs is never scored.
+     *
+     * @param   matrix   a 4-row matrix of nucleotide frequencies (A, C, G, T), one column per motif position
+     * @param   background   the frequencies of A, C, G and T in the sequences
+     */
+    public LogOddsScorer(double[][] matrix, double[] background) {
+	this(matrix, logs(background), null);
+    }
+
+    /**
+     * Creates a <code>LogOddsScorer</code> for a motif matrix against a background model.
+     *
+     * @param   matrix   a 4-row matrix of nucleotide frequencies (A, C, G, T), one column per motif position
+     * @param   background   a background model of the sequences to be scored
+     */
+    public LogOddsScorer(double[][] matrix, BackgroundModel background) {
+	this(matrix, background.getOrder() == 0 ? orderZeroLogs(background) : new double[4],
+	     background.getOrder() == 0 ? null : background);
+    }
+
+    /**
+     * Creates a <code>LogOddsScorer</code> with the specified log background probabilities folded
+     * into its table, and a Markov background to subtract window by window if not <code>null</code>.
+     */
+    private LogOddsScorer(double[][] matrix, double[] logBackground, BackgroundModel markov) {
+	motifLength = matrix[0].length;
+	weights = new double[CODES * motifLength];
+	this.markov = markov;
+	for (int i=0; i<motifLength; i++) {
+	    for (int b=0; b<4; b++)
+		weights[i*CODES + b] = Math.log(matrix[b][i]) - logBackground[b];
+	    weights[i*CODES + PackedSequences.N] = Double.NEGATIVE_INFINITY;
+	}
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC INSTANCE METHODS ***************
+     **************************************************************/
+
+    /**
+     * Returns the length of the motif.
+     *
+     * @return   the number of bases in a window
+     */
+    public int getMotifLength() {
+	return motifLength;
+    }
+
+    /**
+     * Returns the number of windows in a sequence of the specified length.
+     *
+     * @param   length   the length of a sequence
+     * @return   the number of positions a motif instance can start at, or 0 if the sequence is too short
+     */
+    public int getNumWindows(int length) {
+	return Math.max(0, length - motifLength + 1);
+    }
+
+    /**
+     * Returns the log-odds score of the window of base codes starting at the specified index.
+     *
+     * @param   bases   base codes, as from <code>PackedSequences.copyBases</code>
+     * @param   start   the index of the first base of the window
+     * @return   the log-odds score of the window
+     */
+    public double score(byte[] bases, int start) {
+	double score = motifScore(bases, start);
+	if (markov != null) {
+	    for (int i=0; i<motifLength; i++)
+		score -= markov.logProbability(bases, start + i);
+	}
+	return score;
+    }
+
+    /**
+     * Returns the log-odds score of a window given as nucleotide characters.
+     *
+     * @param   s   a <code>String</code> of at least <code>getMotifLength()</code> characters
+     * @return   the log-odds score of the first window of <code>s</code>
+     */
+    public double score(String s) {
+	byte[] bases = new byte[motifLength];
+	for (int i=0; i<motifLength; i++)
+	    bases[i] = (byte)PackedSequences.code(s.charAt(i));
+	return score(bases, 0);
+    }
+
+    /**
+     * Scores every window of a sequence.
+     *
+     * @param   bases   the base codes of a sequence
+     * @param   length   the length of the sequence
+     * @param   scores   an array of at least <code>getNumWindows(length)</code> entries for the scores
+     * @return   the number of windows scored
+     */
+    public int scoreWindows(byte[] bases, int length, double[] scores) {
+	int numWindows = getNumWindows(length);
+	for (int s=0; s<numWindows; s++)
+	    scores[s] = motifScore(bases, s);
+	if (markov != null && numWindows > 0) {
+	    double[] logs = scratch(0, length);
+	    markov.logProbabilities(bases, length, logs);
+	    double window = 0;
+	    for (int i=0; i<motifLength; i++)
+		window += logs[i];
+	    scores[0] -= window;
+	    for (int s=1; s<numWindows; s++) {
+		window += logs[s + motifLength - 1] - logs[s - 1];
+		scores[s] -= window;
+	    }
+	}
+	return numWindows;
+    }
+
+    /**
+     * Returns the start of the highest-scoring window of a sequence. Ties go to the earliest window,
+     * and if no window scores above negative infinity, 0 is returned.
+     *
+     * @param   bases   the base codes of a sequence
+     * @param   length   the length of the sequence
+     * @return   the index of the best window
+     */
+    public int bestWindow(byte[] bases, int length) {
+	int numWindows = getNumWindows(length);
+	double[] scores = null;
+	if (markov != null)
+	    scoreWindows(bases, length, scores = scratch(1, numWindows));
+	int best = 0;
+	double bestScore = Double.NEGATIVE_INFINITY;
+	for (int s=0; s<numWindows; s++) {
+	    double score = scores == null ? motifScore(bases, s) : scores[s];
+	    if (score > bestScore) {
+		bestScore = score;
+		best = s;
+	    }
+	}
+	return best;
+    }
+
+    /**
+     * Turns the log-odds scores of a sequence's windows into sampling weights in place: each
+     * score <code>x</code> becomes <code>exp(x - max)</code>, proportional to the likelihood ratio of
+     * the window but scaled so the largest weight is 1 and none overflows.
+     *
+     * @param   scores   log-odds scores
+     * @param   numWindows   the number of scores to convert
+     * @return   the sum of the weights
+     */
+    public static double toWeights(double[] scores, int numWindows) {
+	double max = Double.NEGATIVE_INFINITY;
+	for (int s=0; s<numWindows; s++)
+	    max = Math.max(max, scores[s]);
+	double sum = 0;
+	for (int s=0; s<numWindows; s++) {
+	    scores[s] = max == Double.NEGATIVE_INFINITY ? 0 : Math.exp(scores[s] - max);
+	    sum += scores[s];
+	}
+	return sum;
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE METHODS ************************
+     ***************************************************************/
+
+    /**
+     * Returns the sum of the table weights of a window: its whole score against a background of
+     * order 0, or the motif part of it against a Markov background.
+     */
+    private double motifScore(byte[] bases, int start) {
+	double score = 0;
+	for (int i=0, w=0; i<motifLength; i++, w+=CODES)
+	    score += weights[w + bases[start + i]];
+	return score;
+    }
+
+    /**
+     * Returns this thread's scratch buffer with the specified index, grown to at least <code>length</code>.
+     */
+    private static double[] scratch(int index, int length) {
+	double[][] buffers = scratch.get();
+	if (buffers[index].length < length)
+	    buffers[index] = new double[length];
+	return buffers[index];
+    }
+
+    /**
+     * Returns the logs of background frequencies, raising frequencies of 0 to the smallest normal
+     * <code>double</code>, since a base that never occurs is never scored.
+     */
+    private static double[] logs(double[] background) {
+	double[] logBackground = new double[4];
+	for (int b=0; b<4; b++)
+	    logBackground[b] = Math.log(Math.max(background[b], Double.MIN_NORMAL));
+	return logBackground;
+    }
+
+    /**
+     * Returns the order 0 log probabilities of a background model.
+     */
+    private static double[] orderZeroLogs(BackgroundModel background) {
+	double[] logBackground = new double[4];
+	for (int b=0; b<4; b++)
+	    logBackground[b] = background.logProbability(b);
+	return logBackground;
+    }
+
+}
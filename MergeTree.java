@@ -0,0 +1,262 @@
+/******************************************************************
+ * An instance of the <code>MergeTree</code> class records every merge
+ * made by agglomerative clustering of <code>n</code> genes, in order of
+ * increasing merge distance.
+ * <p>
+ * Clusters are identified as in SciPy's linkage matrix: genes are
+ * clusters <code>0</code> to <code>n-1</code>, and merge <code>m</code>
+ * creates cluster <code>n+m</code> from two earlier clusters.
+ ******************************************************************/
+public class MergeTree {
+
+    /**************************************************************
+     ********************** INSTANCE VARIABLES ********************
+     **************************************************************/
+
+    /**
+     * The number of genes (leaves)
+     */
+    private int numLeaves;
+
+    /**
+     * For each merge, the two clusters merged, with <code>left[m] &lt; right[m]</code>
+     */
+    private int[] left;
+    private int[] right;
+
+    /**
+     * For each merge, the distance between the two clusters merged
+     */
+    private double[] height;
+
+    /**
+     * For each merge, the number of genes in the resulting cluster
+     */
+    private int[] size;
+
+
+
+    /**************************************************************
+     ********************** CONSTRUCTOR ***************************
+     **************************************************************/
+
+    /**
+     * Creates a <code>MergeTree</code> from arrays describing each merge in order.
+     * The arrays are used directly and are not copied.
+     *
+     * @param   numLeaves   the number of genes
+     * @param   left   for each merge, the smaller id of the two clusters merged
+     * @param   right   for each merge, the larger id of the two clusters merged
+     * @param   height   for each merge, the distance between the two clusters merged
+     * @param   size   for each merge, the number of genes in the resulting cluster
+     */
+    public MergeTree(int numLeaves, int[] left, int[] right, double[] height, int[] size) {
+	this.numLeaves = numLeaves;
+	this.left = left;
+	this.right = right;
+	this.height = height;
+	this.size = size;
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC INSTANCE METHODS ***************
+     **************************************************************/
+
+    /**
+     * Returns the number of genes (leaves) in this <code>MergeTree</code>.
+     *
+     * @return   the number of genes
+     */
+    public int getNumLeaves() {
+	return numLeaves;
+    }
+
+    /**
+     * Returns the number of merges recorded in this <code>MergeTree</code>.
+     *
+     * @return   the number of merges
+     */
+    public int getNumMerges() {
+	return left.length;
+    }
+
+    /**
+     * Returns the smaller id of the two clusters joined by the specified merge.
+     *
+     * @param   m   the index of a merge
+     * @return   a cluster id
+     */
+    public int getLeft(int m) {
+	return left[m];
+    }
+
+    /**
+     * Returns the larger id of the two clusters joined by the specified merge.
+     *
+     * @param   m   the index of a merge
+     * @return   a cluster id
+     */
+    public int getRight(int m) {
+	return right[m];
+    }
+
+    /**
+     * Returns the distance between the two clusters joined by the specified merge.
+     *
+     * @param   m   the index of a merge
+     * @return   the merge distance
+     */
+    public double getHeight(int m) {
+	return height[m];
+    }
+
+    /**
+     * Returns the number of genes in the cluster created by the specified merge.
+     *
+     * @param   m   the index of a merge
+     * @return   the number of genes
+     */
+    public int getSize(int m) {
+	return size[m];
+    }
+
+    /**
+     * Returns the partition of the genes into the specified number of clusters obtained by
+     * applying the first <code>numLeaves - numClusters</code> merges. Clusters are numbered
+     * in order of their lowest-numbered gene.
+     *
+     * @param   numClusters   the number of clusters
+     * @return   for each gene, the index of its cluster
+     */
+    public int[] getClusterAssignment(int numClusters) {
+	if (numClusters < 1 || numClusters > numLeaves)
+	    throw new IllegalArgumentException("Cannot cut " + numLeaves + " genes into " + numClusters + " clusters");
+	return applyMerges(numLeaves - numClusters);
+    }
+
+
+
+    /**
+     * Returns the partition of the genes obtained by applying every merge at or below the specified
+     * distance. Clusters are numbered in order of their lowest-numbered gene.
+     *
+     * @param   threshold   the largest merge distance to apply
+     * @return   for each gene, the index of its cluster
+     */
+    public int[] getClusterAssignmentAtHeight(double threshold) {
+	// Merges are sorted by height, so the ones to apply form a prefix
+	int low = 0, high = left.length;
+	while (low < high) {
+	    int mid = (low + high) >>> 1;
+	    if (height[mid] <= threshold)
+		low = mid + 1;
+	    else
+		high = mid;
+	}
+	return applyMerges(low);
+    }
+
+    /**
+     * Returns the merges as a SciPy linkage matrix: one row per merge holding the two cluster ids,
+     * the merge distance, and the number of genes in the new cluster.
+     *
+     * @return   a 2D array with <code>getNumMerges()</code> rows and 4 columns
+     */
+    public double[][] toLinkageMatrix() {
+	double[][] z = new double[left.length][4];
+	for (int m=0; m<left.length; m++) {
+	    z[m][0] = left[m];
+	    z[m][1] = right[m];
+	    z[m][2] = height[m];
+	    z[m][3] = size[m];
+	}
+	return z;
+    }
+
+    /**
+     * Returns <code>true</code> if the genes have been merged all the way into a single cluster.
+     *
+     * @return   whether this <code>MergeTree</code> has a single root
+     */
+    public boolean isComplete() {
+	return left.length == numLeaves - 1;
+    }
+
+    /**
+     * Returns the genes in the order they appear as leaves of the dendrogram, visiting the
+     * left (lower id) branch of every merge first.
+     *
+     * @return   an array of gene indices
+     */
+    public int[] getLeafOrder() {
+	if (!isComplete())
+	    throw new IllegalStateException("The merge tree does not join all " + numLeaves + " genes");
+	int[] order = new int[numLeaves];
+	int count = 0;
+	int[] stack = new int[numLeaves];
+	int top = 0;
+	if (numLeaves > 0)
+	    stack[top++] = 2 * numLeaves - 2;
+	while (top > 0) {
+	    int node = stack[--top];
+	    if (node < numLeaves) {
+		order[count++] = node;
+	    } else {
+		stack[top++] = right[node - numLeaves];  // Pushed first so the left branch is visited first
+		stack[top++] = left[node - numLeaves];
+	    }
+	}
+	return order;
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE INSTANCE METHODS ***************
+     ***************************************************************/
+
+    /**
+     * Applies the first <code>numMerges</code> merges with a union-find over the genes and numbers
+     * the resulting clusters in order of their lowest-numbered gene.
+     */
+    private int[] applyMerges(int numMerges) {
+	int[] parent = new int[numLeaves];
+	for (int i=0; i<numLeaves; i++)
+	    parent[i] = i;
+	// Any gene of cluster id c can stand for it in the union-find
+	int[] representative = new int[numLeaves + numMerges];
+	for (int i=0; i<numLeaves; i++)
+	    representative[i] = i;
+	for (int m=0; m<numMerges; m++) {
+	    int a = find(parent, representative[left[m]]);
+	    int b = find(parent, representative[right[m]]);
+	    parent[b] = a;
+	    representative[numLeaves + m] = a;
+	}
+	int[] assignment = new int[numLeaves];
+	int[] clusterOfRoot = new int[numLeaves];
+	java.util.Arrays.fill(clusterOfRoot, -1);
+	int numClusters = 0;
+	for (int i=0; i<numLeaves; i++) {
+	    int root = find(parent, i);
+	    if (clusterOfRoot[root] < 0)
+		clusterOfRoot[root] = numClusters++;
+	    assignment[i] = clusterOfRoot[root];
+	}
+	return assignment;
+    }
+
+    /**
+     * Returns the root of the specified element, halving paths along the way.
+     */
+    private static int find(int[] parent, int i) {
+	while (parent[i] != i) {
+	    parent[i] = parent[parent[i]];
+	    i = parent[i];
+	}
+	return i;
+    }
+
+}
@@ -0,0 +1,335 @@
+import java.util.*;
+import java.io.*;
+/**
+ * MiniBatchKMeans_Clustering executes mini-batch k means on expression files too large to load.
+ *
+ * Genes are read from the file a batch at a time (cycling back to the start of the file when it
+ * runs out) and each batch nudges the means toward its genes, with a learning rate of one over the
+ * number of genes a mean has seen so far. A final pass over the file assigns every gene to its
+ * nearest mean. Only one batch is ever in memory, so memory is bounded by batch size times the
+ * number of experiments no matter how many genes the file holds.
+ *
+ * Batches are consecutive runs of genes from the file, so files sorted by expression pattern
+ * should be shuffled first. Missing values (NaN) are skipped: distances are scaled up from the
+ * experiments present, and a mean is only moved along the experiments the gene was measured in.
+ *
+ * Genes are compared with the means under the clustering's metric (Euclidean unless
+ * setDistanceMetric chose another). Under a metric that normalizes, such as Pearson, each gene is
+ * normalized before it is compared or moves a mean, and the means are normalized again after
+ * every batch, as KMeans_Clustering does with its means.
+ *
+ * Like the other clusterings it reports into its Instrumentation: one event per batch with the
+ * movement of the means and the time spent reading, assigning and moving means, and counters of
+ * genes read, passes over the file and distances computed.
+ */
+public class MiniBatchKMeans_Clustering extends Clustering
+{
+    String fileName;
+    int k;
+    int batchSize;
+    int maxBatches;
+    //stop early once one batch moves the means by less than this fraction of their squared length
+    //(summed over all means), so the test does not depend on the scale of the expression values
+    double tolerance = DEFAULT_TOLERANCE;
+    static final double DEFAULT_TOLERANCE = 1e-6;
+    double[][] means;
+    //number of genes each mean has been updated with in each experiment, which sets its learning rate
+    long[][] meanCounts;
+    //number of genes in each cluster after the final assignment pass
+    long[] clusterSizes;
+    int batchesRun;
+    Random rand = new Random();
+
+    /**
+     * Constructor for objects of class MiniBatchKMeans_Clustering. Only the header of the file is
+     * read here; genes are read in batches by miniBatchKMeans() and writeAssignments().
+     */
+    public MiniBatchKMeans_Clustering(String fileName, int numClust, int batchSize, int maxBatches) throws IOException
+    {
+        super(readHeader(fileName));
+        this.fileName = fileName;
+        k = numClust;
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+        means = new double[k][getNumExperiments()];
+        meanCounts = new long[k][getNumExperiments()];
+        clusterSizes = new long[k];
+    }
+
+    //an expression matrix holding the experiment names of the file and no genes
+    private static ExpressionMatrix readHeader(String fileName) throws IOException {
+        try(ExpressionFileReader.RowStream stream = new ExpressionFileReader(fileName).openRowStream(1)){
+            return new ExpressionMatrix(stream.getExperimentNames(), new String[0], new String[0], new double[0]);
+        }
+    }
+
+    public void setSeed(long seed){
+        rand = new Random(seed);
+    }
+
+    /**
+     * Sets how little one batch may move the means, as a fraction of their squared length, before
+     * the run stops early; 0 always runs every batch. The default is DEFAULT_TOLERANCE.
+     */
+    public void setTolerance(double tolerance){
+        this.tolerance = tolerance;
+    }
+
+    public void miniBatchKMeans() throws IOException {
+        int d = getNumExperiments();
+        int[] nearest = new int[batchSize];
+        instrumentation.event("start", "experiments", d, "k", k, "batch_size", batchSize, "max_batches", maxBatches,
+                "tolerance", tolerance, "metric", metric, "threads", numThreads);
+        Instrumentation.Timer readTimer = instrumentation.timer("read");
+        Instrumentation.Timer seedingTimer = instrumentation.timer("seeding");
+        Instrumentation.Timer assignTimer = instrumentation.timer("assign");
+        Instrumentation.Timer meansTimer = instrumentation.timer("means");
+        Instrumentation.Counter genesRead = instrumentation.counter("genes");
+        Instrumentation.Counter passes = instrumentation.counter("passes");
+        boolean stoppedEarly = false;
+        try(ExpressionFileReader.RowStream stream = new ExpressionFileReader(fileName).openRowStream(batchSize)){
+            //seed the means with k distinct random genes from the first batch
+            long startTime = readTimer.start();
+            int rows = stream.nextBatch();
+            long[] masks = new long[batchSize*maskWords()];
+            if(rows < k){
+                throw new IllegalArgumentException("The first batch holds " + rows + " genes, fewer than the " + k + " clusters requested");
+            }
+            prepareBatch(stream.getValues(), rows, masks);
+            long readNanos = readTimer.stop(startTime);
+            passes.increment();
+            startTime = seedingTimer.start();
+            int[] order = new int[rows];
+            for(int i = 0; i<rows; i++){
+                order[i] = i;
+            }
+            for(int i = 0; i<k; i++){
+                int pick = i + rand.nextInt(rows - i);
+                int tmp = order[i];
+                order[i] = order[pick];
+                order[pick] = tmp;
+                //a missing value in a seed gene was set to 0 by prepareBatch, which starts that experiment's mean at 0
+                System.arraycopy(stream.getValues(), order[i]*d, means[i], 0, d);
+            }
+            seedingTimer.stop(startTime);
+
+            for(batchesRun = 0; batchesRun<maxBatches; batchesRun++){
+                if(batchesRun > 0){
+                    startTime = readTimer.start();
+                    rows = stream.nextBatch();
+                    if(rows == 0){
+                        //start the next pass over the file
+                        stream.rewind();
+                        rows = stream.nextBatch();
+                        passes.increment();
+                    }
+                    prepareBatch(stream.getValues(), rows, masks);
+                    readNanos = readTimer.stop(startTime);
+                }
+                genesRead.add(rows);
+                double[] values = stream.getValues();
+                startTime = assignTimer.start();
+                findNearestMeans(values, rows, masks, nearest);
+                long assignNanos = assignTimer.stop(startTime);
+                startTime = meansTimer.start();
+                //move each gene's mean toward it, with a learning rate that shrinks as the mean sees more genes
+                double movement = 0;
+                int words = maskWords();
+                for(int i = 0; i<rows; i++){
+                    int c = nearest[i];
+                    int offset = i*d;
+                    for(int j = 0; j<d; j++){
+                        if(((masks[i*words + (j >>> 6)] >>> j) & 1L) == 0){
+                            continue;
+                        }
+                        meanCounts[c][j]++;
+                        double eta = 1.0 / meanCounts[c][j];
+                        double step = eta * (values[offset+j] - means[c][j]);
+                        means[c][j] += step;
+                        movement += step*step;
+                    }
+                }
+                if(metric.isNormalizing()){
+                    for(double[] mean : means){
+                        normalizeVector(mean);
+                    }
+                }
+                double length = 0;
+                for(double[] mean : means){
+                    for(double m : mean){
+                        length += m*m;
+                    }
+                }
+                long meansNanos = meansTimer.stop(startTime);
+                instrumentation.event("batch", "batch", batchesRun+1, "genes", rows, "movement", movement,
+                        "relative_movement", length > 0 ? movement/length : 0.0, "read_ms", readNanos/1e6,
+                        "assign_ms", assignNanos/1e6, "means_ms", meansNanos/1e6);
+                if(movement < tolerance*length){
+                    batchesRun++;
+                    stoppedEarly = true;
+                    break;
+                }
+            }
+        }
+        instrumentation.event("converged", "batches", batchesRun, "stopped_early", stoppedEarly);
+        instrumentation.summarize();
+    }
+
+    //sets each gene's presence bits in masks, replaces its missing values with 0 and normalizes it
+    //for the metric, in parallel chunks
+    private void prepareBatch(double[] values, int rows, long[] masks){
+        int d = getNumExperiments();
+        int words = maskWords();
+        Arrays.fill(masks, 0, rows*words, 0L);
+        forEachChunk(rows, (chunk, start, end) -> {
+            for(int i = start; i<end; i++){
+                int offset = i*d;
+                boolean complete = true;
+                for(int j = 0; j<d; j++){
+                    if(Double.isNaN(values[offset+j])){
+                        values[offset+j] = 0;
+                        complete = false;
+                    }
+                    else{
+                        masks[i*words + (j >>> 6)] |= 1L << j;
+                    }
+                }
+                if(complete){
+                    metric.normalize(values, offset, d);
+                }
+                else{
+                    metric.normalize(values, offset, d, masks, i*words);
+                }
+            }
+        });
+    }
+
+    //finds the nearest mean of every gene in a prepared batch under the metric, in parallel chunks;
+    //a gene with missing values is compared on the experiments it has
+    private void findNearestMeans(double[] values, int rows, long[] masks, int[] nearest){
+        int d = getNumExperiments();
+        int words = maskWords();
+        DistanceMetric comparison = metric.forComparison();
+        instrumentation.counter("distances").add((long)rows*k);
+        forEachChunk(rows, (chunk, start, end) -> {
+            for(int i = start; i<end; i++){
+                int offset = i*d;
+                boolean complete = true;
+                for(int w = 0; w<words; w++){
+                    int bits = Math.min(64, d - 64*w);
+                    complete &= masks[i*words + w] == (bits == 64 ? -1L : (1L << bits) - 1);
+                }
+                int best = 0;
+                double lowest = Double.MAX_VALUE;
+                for(int j = 0; j<k; j++){
+                    double dist = complete ? comparison.distance(values, offset, means[j], 0, d)
+                                           : comparison.distance(values, offset, means[j], 0, d, masks, i*words);
+                    if(dist<lowest){
+                        lowest = dist;
+                        best = j;
+                    }
+                }
+                //a gene with no measured experiment is infinitely far from every mean; it stays with
+                //mean 0, and having no presence bits it never moves it
+                nearest[i] = best;
+            }
+        });
+    }
+
+    //number of longs holding the presence bits of one gene
+    private int maskWords(){
+        return (getNumExperiments() + 63) >>> 6;
+    }
+
+    /**
+     * Reads the file once more and writes each gene's name and cluster index, tab-delimited,
+     * one gene per line.
+     */
+    public void writeAssignments(PrintStream out) throws IOException {
+        int[] nearest = new int[batchSize];
+        long[] masks = new long[batchSize*maskWords()];
+        Arrays.fill(clusterSizes, 0);
+        Instrumentation.Timer writeTimer = instrumentation.timer("write");
+        long startTime = writeTimer.start();
+        long genes = 0;
+        try(ExpressionFileReader.RowStream stream = new ExpressionFileReader(fileName).openRowStream(batchSize)){
+            int rows;
+            while((rows = stream.nextBatch()) > 0){
+                prepareBatch(stream.getValues(), rows, masks);
+                findNearestMeans(stream.getValues(), rows, masks, nearest);
+                String[] names = stream.getGeneNames();
+                for(int i = 0; i<rows; i++){
+                    out.print(names[i]);
+                    out.print('\t');
+                    out.println(nearest[i]);
+                    clusterSizes[nearest[i]]++;
+                }
+                genes += rows;
+            }
+        }
+        out.flush();
+        instrumentation.event("assigned", "genes", genes, "ms", writeTimer.stop(startTime)/1e6);
+    }
+
+    public String toString(){
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i<k; i++){
+            sb.append("Cluster # " + i + " containing " + clusterSizes[i] + " genes.\n");
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args){
+        int k = Integer.parseInt(args[1]);
+        //optional arguments: batch size, number of batches, number of threads, and "metric=NAME",
+        //"tolerance=T" (0 runs every batch) or "seed=N" anywhere after k
+        List<String> positional = new ArrayList<String>();
+        String metricName = null;
+        double tolerance = DEFAULT_TOLERANCE;
+        Long seed = null;
+        for(int i = 2; i<args.length; i++){
+            if(args[i].startsWith("metric=")){
+                metricName = args[i].substring(7);
+            }
+            else if(args[i].startsWith("tolerance=")){
+                tolerance = Double.parseDouble(args[i].substring(10));
+            }
+            else if(args[i].startsWith("seed=")){
+                seed = Long.parseLong(args[i].substring(5));
+            }
+            else{
+                positional.add(args[i]);
+            }
+        }
+        int batchSize = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 10000;
+        int batches = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 100;
+        MiniBatchKMeans_Clustering c;
+        try{
+            c = new MiniBatchKMeans_Clustering(args[0], k, batchSize, batches);
+        }
+        catch(IOException e){
+            System.err.println("Error - could not read in file " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if(positional.size() > 2){
+            c.setNumThreads(Integer.parseInt(positional.get(2)));
+        }
+        if(metricName != null){
+            c.setDistanceMetric(DistanceMetric.forName(metricName));
+        }
+        c.setTolerance(tolerance);
+        if(seed != null){
+            c.setSeed(seed);
+        }
+        try{
+            c.miniBatchKMeans();
+            c.writeAssignments(new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false));
+        }
+        catch(IOException e){
+            System.err.println("Error - could not read in file " + args[0]);
+            System.exit(1);
+        }
+        System.err.print(c.toString());
+    }
+}
@@ -13,9 +13,9 @@ public class MotifSearch {
      **************************************************************/
 
     /**
-     * A collection of genomic sequences
+     * A collection of genomic sequences, packed 2 bits per base
      */
-    protected Vector<String> sequences;
+    protected PackedSequences sequences;
 
     /**
      * The number of genomic sequences
@@ -34,16 +34,26 @@ public class MotifSearch {
     protected double[][] matrix;
 
     /**
-     * A collection of integers where each integer represents the index
-     * of the start location of a motif instance in a genomic sequence
+     * For each genomic sequence, the index of the start location of a
+     * motif instance in that sequence
      */
-    protected Vector<Integer> instanceLocations;
+    protected int[] instanceLocations;
 
     /**
      * A dictionary of IUPAC symbols
      */
     private Hashtable<String, Character> IUPAC;
 
+    /**
+     * A buffer the codes of one sequence are unpacked into for scoring
+     */
+    protected byte[] codes;
+
+    /**
+     * The background composition of the sequences, counted once
+     */
+    protected BackgroundModel background;
+
 
 
     /**************************************************************
@@ -64,13 +74,33 @@ public class MotifSearch {
      */
     public MotifSearch(String fileName, int motifLength) {
         sequences = readInMultipleSequencesFromFastaFile(fileName);
-        numSequences = sequences.size();
+        numSequences = sequences.getNumSequences();
         this.motifLength = motifLength;
         matrix = new double[4][motifLength];
-        instanceLocations = new Vector<Integer>(numSequences);
-        for (int i=0; i<numSequences; i++)
-            instanceLocations.add(-1);
+        instanceLocations = new int[numSequences];
+        Arrays.fill(instanceLocations, -1);
         IUPAC = initialize_IUPAC();
+        codes = new byte[sequences.getMaxLength()];
+        background = new BackgroundModel(sequences, 0);
+    }
+
+    /**
+     * Creates a <code>MotifSearch</code> over the same sequences, motif length and background
+     * model as the specified one, which are shared rather than copied, but with its own empty
+     * matrix and motif instances. Searches made this way can run at the same time.
+     *
+     * @param   other   the <code>MotifSearch</code> whose sequences are searched
+     */
+    protected MotifSearch(MotifSearch other) {
+        sequences = other.sequences;
+        numSequences = other.numSequences;
+        motifLength = other.motifLength;
+        matrix = new double[4][motifLength];
+        instanceLocations = new int[numSequences];
+        Arrays.fill(instanceLocations, -1);
+        IUPAC = other.IUPAC;
+        codes = new byte[sequences.getMaxLength()];
+        background = other.background;
     }
 
 
@@ -98,14 +128,19 @@ public class MotifSearch {
 
     /**
      * Returns a <code>String</code> representation of motif instances found in the genomic sequences.
+     * A sequence without an instance, because it is shorter than the motif or has not been searched,
+     * is shown as <code>-</code>.
      *
      * @return   a <code>String</code> represenation of motif instances found in the genomic sequences
      */
     public String motifInstancesToString() {
 	StringBuilder sb = new StringBuilder();
 	for (int i=0; i<numSequences; i++) {
-	    int startIndexOfMotifInstance = instanceLocations.get(i);
-	    sb.append("\t" + sequences.get(i).substring(startIndexOfMotifInstance, startIndexOfMotifInstance + motifLength) + "\n");
+	    int startIndexOfMotifInstance = instanceLocations[i];
+	    if (startIndexOfMotifInstance < 0)
+		sb.append("\t-\n");
+	    else
+		sb.append("\t" + sequences.substring(i, startIndexOfMotifInstance, startIndexOfMotifInstance + motifLength) + "\n");
 	}
 	return sb.toString();
     }
@@ -125,22 +160,60 @@ public class MotifSearch {
 
     /**
      * Returns a <code>double</code> representing the frequency that the specified nucleotide character
-     * occurs in the genomic sequences.
+     * occurs in the genomic sequences. The frequencies are counted once, when the sequences are read.
+     * Any character that is not a nucleotide gives the frequency of ambiguous bases.
      *
      * @param   c   a nucleotide character (e.g., A or C or G or T)
      * @return   a <code>double</code> representing the frequency that <code>c</code> occurs in the sequences
      */
     public double getNucleotideContent(char c) {
-	int count = 0;
-	int total = 0;
-	for (int i=0; i<numSequences; i++) {
-	    for (int j=0; j<sequences.get(i).length(); j++) {
-		if (sequences.get(i).charAt(j) == c)
-		    count++;
-	    }
-	    total += sequences.get(i).length();
-	}
-	return ((double)count) / ((double)total);
+	int code = PackedSequences.code(c);
+	if (code != PackedSequences.N)
+	    return background.getFrequency(code);
+	double ambiguous = 1.0;
+	for (int b=0; b<4; b++)
+	    ambiguous -= background.getFrequency(b);
+	return ambiguous;
+    }
+
+    /**
+     * Sets the order of the Markov model of the background that log-odds scores are measured
+     * against: 0 for the plain nucleotide composition, or 1 to 3 to condition each base on the
+     * bases before it. Information content is always measured against the plain composition.
+     *
+     * @param   order   the order of the background model, from 0 to 3
+     */
+    public void setBackgroundOrder(int order) {
+	background = new BackgroundModel(sequences, order);
+    }
+
+    /**
+     * Returns the model of the background composition of the sequences.
+     *
+     * @return   the background model
+     */
+    public BackgroundModel getBackgroundModel() {
+	return background;
+    }
+
+    /**
+     * Returns the frequencies of A, C, G and T in the genomic sequences, in that order. Ambiguous
+     * bases count towards the total but towards no nucleotide, as in <code>getNucleotideContent</code>.
+     *
+     * @return   an array of 4 nucleotide frequencies
+     */
+    public double[] getBackgroundComposition() {
+	return background.getComposition();
+    }
+
+    /**
+     * Returns a <code>LogOddsScorer</code> for the current matrix against the background model
+     * of the sequences. The scorer does not follow later changes to the matrix.
+     *
+     * @return   a log-odds scorer for the motif model
+     */
+    public LogOddsScorer getLogOddsScorer() {
+	return new LogOddsScorer(matrix, background);
     }
 
     /**
@@ -159,13 +232,14 @@ public class MotifSearch {
 
     /**
      * Returns a <em>copy</em> of the indices of start locations of motif instances in the sequences.
+     * A sequence shorter than the motif has no instance, and its index is -1.
      *
      * @return   a collection of indices of start locations of motif instances in the sequences
      */
     public Vector<Integer> getInstanceLocations() {
         Vector<Integer> v = new Vector<Integer>(numSequences);
         for (int i=0; i<numSequences; i++) {
-            v.add(instanceLocations.get(i));
+            v.add(instanceLocations[i]);
         }
 	    return v;
     }
@@ -257,59 +331,46 @@ public class MotifSearch {
      **************************************************************/
 
     /**
-     * Returns a collection of genomic sequences found in a FASTA file.
+     * Returns a collection of genomic sequences found in a FASTA file, packed 2 bits per base
+     * as they are read. Lower case letters are read as upper case and U as T. Any other
+     * character is masked as an ambiguous base (<code>N</code>).
      *
      * @param   fileName   the name of a FASTA file containing one or more genomic sequences
      * @return   a collection of genomic sequences
      */
-    private static Vector<String> readInMultipleSequencesFromFastaFile(String fileName) {
-	Vector<String> seqs = new Vector<String>();
-	try {
-	    Scanner reader = new Scanner(new File(fileName));
-	    StringBuilder sequence = new StringBuilder();
-	    while (reader.hasNext()) {  // continue until we reach end of file
-		String line = reader.nextLine();
+    private static PackedSequences readInMultipleSequencesFromFastaFile(String fileName) {
+	PackedSequences.Builder seqs = new PackedSequences.Builder();
+	try (BufferedReader reader = new BufferedReader(new FileReader(fileName), 1 << 16)) {
+	    String line;
+	    while ((line = reader.readLine()) != null) {  // continue until we reach end of file
 		if ((line.length() == 0) || (line.charAt(0) == '>')) {
-		    if (sequence.length() > 0)  // Add previous (completed) sequence to Vector
-			seqs.add(processString(sequence.toString()));
-		    sequence = new StringBuilder();  // Begin a new sequence
+		    if (seqs.getCurrentLength() > 0)  // End previous (completed) sequence
+			endSequence(seqs);
 		} else {
-		    sequence.append(line);  // Add line to growing sequence
+		    seqs.append(line);  // Add line to growing sequence
 		}
 	    }
-	    if (sequence.length() > 0)  // Add final sequence in file to Vector
-		seqs.add(processString(sequence.toString()));
-	    reader.close();
+	    if (seqs.getCurrentLength() > 0)  // End final sequence in file
+		endSequence(seqs);
 	} catch (FileNotFoundException e) {
 	    System.err.println("Error - the file " + fileName + " could not be found and opened.");
 	    System.exit(0);
+	} catch (IOException e) {
+	    System.err.println("Error - the file " + fileName + " could not be read: " + e.getMessage());
+	    System.exit(0);
 	}
-	return seqs;
+	return seqs.build();
     }
 
     /**
-     * Returns a <em>cleaned</em> version of the specified input <code>String</code>.
-     * A sequence is <em>clean</em> if it contains all capital letters and if it contains
-     * only the 4 nucleotides: A or C or G or T. 
-     *
-     * @param   s   a <code>String</code> representing a genomic sequence
-     * @return   a <em>cleaned</em> version of the input <code>String</code>
+     * Ends the sequence being read, warning if it contains any non-nucleotide characters.
      *
+     * @param   seqs   the sequences read so far
      */
-    private static String processString(String s) {
-	String processed = s.toUpperCase();  // Convert to upper case
-	processed = s.replace('U', 'T');  // Replace U with T
-
-	// Check if String contains any non-nucleotide characters
-	for (int i=0; i<s.length(); i++) {
-	    if ((s.charAt(i) != 'A') && (s.charAt(i) != 'C') &&
-		(s.charAt(i) != 'G') && (s.charAt(i) != 'T')) {
-		System.out.println("Error - sequence contains non-nucleotide characters");
-		System.out.println("\n" + s + "\n");
-	    }
-	}
-
-	return processed;
+    private static void endSequence(PackedSequences.Builder seqs) {
+	if (seqs.isCurrentAmbiguous())
+	    System.err.println("Warning - sequence contains non-nucleotide characters, which are masked as N");
+	seqs.endSequence();
     }
 
 
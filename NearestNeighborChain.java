@@ -0,0 +1,133 @@
+import java.util.*;
+/**
+ * NearestNeighborChain performs agglomerative clustering with the nearest-neighbor-chain
+ * algorithm, in O(n^2) time overall instead of the O(n^2) per merge of a full closest-pair scan.
+ *
+ * Starting from any cluster, the chain repeatedly follows each cluster's nearest neighbor until
+ * two clusters are each other's nearest neighbors; those two are merged and the chain resumes from
+ * where it was. For reducible linkages (see Linkage) this finds the same merges as always merging
+ * the globally closest pair, though not in the same order, so the merges are sorted by distance
+ * afterwards.
+ */
+class NearestNeighborChain
+{
+    /**
+     * Clusters all items of the distance matrix and returns every merge. The matrix is updated in
+     * place with Lance-Williams formulas as clusters merge, so it cannot be reused afterwards.
+     */
+    static MergeTree run(CondensedDistanceMatrix distances, Linkage linkage){
+        int n = distances.size();
+        int numMerges = Math.max(0, n-1);
+        //merges in the order they are made; a and b are slots, a merged cluster keeps slot b
+        int[] mergeA = new int[numMerges];
+        int[] mergeB = new int[numMerges];
+        double[] mergeHeight = new double[numMerges];
+
+        int[] size = new int[n];
+        Arrays.fill(size, 1);
+        //active slots in a doubly linked list, so scans skip merged-away slots
+        int[] next = new int[n+1];
+        int[] prev = new int[n+1];
+        //slot n is the list head
+        for(int i = 0; i<=n; i++){
+            next[i] = (i+1) % (n+1);
+            prev[(i+1) % (n+1)] = i;
+        }
+
+        int[] chain = new int[n];
+        int chainLength = 0;
+        for(int m = 0; m<numMerges; m++){
+            if(chainLength == 0){
+                chain[chainLength++] = next[n];
+            }
+            int a, b;
+            while(true){
+                a = chain[chainLength-1];
+                //prefer the previous cluster in the chain on ties, which guarantees the chain stops growing
+                int previous = chainLength >= 2 ? chain[chainLength-2] : -1;
+                b = previous;
+                double nearest = previous >= 0 ? distances.get(a, previous) : Double.POSITIVE_INFINITY;
+                for(int slot = next[n]; slot != n; slot = next[slot]){
+                    if(slot != a){
+                        double dist = distances.get(a, slot);
+                        //a cluster with no experiment in common with any other is infinitely far from
+                        //all of them, so it still needs some neighbor to be merged with
+                        if(dist < nearest || b < 0){
+                            nearest = dist;
+                            b = slot;
+                        }
+                    }
+                }
+                if(b == previous){
+                    break;
+                }
+                chain[chainLength++] = b;
+            }
+            chainLength -= 2;
+
+            double dab = distances.get(a, b);
+            mergeA[m] = a;
+            mergeB[m] = b;
+            mergeHeight[m] = dab;
+            //the merged cluster keeps slot b; slot a is unlinked
+            next[prev[a]] = next[a];
+            prev[next[a]] = prev[a];
+            for(int k = next[n]; k != n; k = next[k]){
+                if(k != b){
+                    distances.set(k, b, linkage.update(distances.get(k, a), distances.get(k, b), dab, size[a], size[b], size[k]));
+                }
+            }
+            size[b] += size[a];
+        }
+        return sortAndLabel(n, mergeA, mergeB, mergeHeight);
+    }
+
+    /**
+     * Sorts merges by distance (keeping the order they were made on ties) and converts slot
+     * numbers into SciPy-style cluster ids.
+     */
+    private static MergeTree sortAndLabel(int n, int[] mergeA, int[] mergeB, double[] mergeHeight){
+        int numMerges = mergeA.length;
+        Integer[] order = new Integer[numMerges];
+        for(int m = 0; m<numMerges; m++){
+            order[m] = m;
+        }
+        Arrays.sort(order, (x, y) -> Double.compare(mergeHeight[x], mergeHeight[y]));
+
+        //union-find over slots; clusterId holds the current id of the cluster whose root is each slot
+        int[] parent = new int[n];
+        int[] clusterId = new int[n];
+        int[] clusterSize = new int[n];
+        for(int i = 0; i<n; i++){
+            parent[i] = i;
+            clusterId[i] = i;
+            clusterSize[i] = 1;
+        }
+        int[] left = new int[numMerges];
+        int[] right = new int[numMerges];
+        double[] height = new double[numMerges];
+        int[] size = new int[numMerges];
+        for(int m = 0; m<numMerges; m++){
+            int o = order[m];
+            int rootA = find(parent, mergeA[o]);
+            int rootB = find(parent, mergeB[o]);
+            int idA = clusterId[rootA], idB = clusterId[rootB];
+            left[m] = Math.min(idA, idB);
+            right[m] = Math.max(idA, idB);
+            height[m] = mergeHeight[o];
+            size[m] = clusterSize[rootA] + clusterSize[rootB];
+            parent[rootA] = rootB;
+            clusterId[rootB] = n + m;
+            clusterSize[rootB] = size[m];
+        }
+        return new MergeTree(n, left, right, height, size);
+    }
+
+    private static int find(int[] parent, int i){
+        while(parent[i] != i){
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+}
@@ -0,0 +1,425 @@
+import java.util.*;
+
+/******************************************************************
+ * An instance of the <code>PackedSequences</code> class holds a collection
+ * of genomic sequences with each nucleotide packed into 2 bits, 32 to a
+ * <code>long</code>, one eighth of the memory of a <code>String</code>.
+ * The sequences are stored end to end; sequence <code>s</code> starts at
+ * base <code>starts[s]</code> of the packed stream.
+ * <p>
+ * Nucleotides are coded as array indices: <code>A</code> is 0,
+ * <code>C</code> is 1, <code>G</code> is 2 and <code>T</code> (or
+ * <code>U</code>) is 3, the same order as the rows of a motif matrix.
+ * Any other character is recorded in an ambiguity bitmask (one bit per
+ * base) and read back as the code <code>N</code> (4), so a scoring table
+ * with a fifth row can score ambiguous bases without testing for them.
+ * Collections without ambiguous bases have no mask.
+ ******************************************************************/
+public class PackedSequences {
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * The codes of the four nucleotides, and of an ambiguous base
+     */
+    public static final int A = 0, C = 1, G = 2, T = 3, N = 4;
+
+    /**
+     * The character of each code
+     */
+    private static final char[] SYMBOLS = {'A', 'C', 'G', 'T', 'N'};
+
+    /**
+     * The code of each ASCII character, upper or lower case
+     */
+    private static final byte[] CODES = new byte[128];
+
+    static {
+	Arrays.fill(CODES, (byte)N);
+	CODES['A'] = CODES['a'] = A;
+	CODES['C'] = CODES['c'] = C;
+	CODES['G'] = CODES['g'] = G;
+	CODES['T'] = CODES['t'] = T;
+	CODES['U'] = CODES['u'] = T;
+    }
+
+
+
+    /**************************************************************
+     ********************** INSTANCE VARIABLES ********************
+     **************************************************************/
+
+    /**
+     * The number of sequences
+     */
+    private int numSequences;
+
+    /**
+     * The position in the packed stream where each sequence starts, with the total
+     * number of bases at the end
+     */
+    private int[] starts;
+
+    /**
+     * Two bits per base: base <code>p</code> of the stream is bits
+     * <code>2*(p % 32)</code> and up of word <code>p / 32</code>
+     */
+    private long[] bases;
+
+    /**
+     * One bit per base, set for ambiguous bases, or <code>null</code> if there are none
+     */
+    private long[] ambiguous;
+
+
+
+    /**************************************************************
+     ********************** CONSTRUCTOR ***************************
+     **************************************************************/
+
+    /**
+     * Creates <code>PackedSequences</code> from the arrays filled by a <code>Builder</code>.
+     */
+    private PackedSequences(int numSequences, int[] starts, long[] bases, long[] ambiguous) {
+	this.numSequences = numSequences;
+	this.starts = starts;
+	this.bases = bases;
+	this.ambiguous = ambiguous;
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC INSTANCE METHODS ***************
+     **************************************************************/
+
+    /**
+     * Returns the number of sequences.
+     *
+     * @return   the number of sequences
+     */
+    public int getNumSequences() {
+	return numSequences;
+    }
+
+    /**
+     * Returns the length of the specified sequence.
+     *
+     * @param   seq   the index of a sequence
+     * @return   the number of bases in the sequence
+     */
+    public int getLength(int seq) {
+	return starts[seq + 1] - starts[seq];
+    }
+
+    /**
+     * Returns the number of bases in all sequences together.
+     *
+     * @return   the total length of the sequences
+     */
+    public int getTotalLength() {
+	return starts[numSequences];
+    }
+
+    /**
+     * Returns the length of the longest sequence.
+     *
+     * @return   the greatest length of any sequence
+     */
+    public int getMaxLength() {
+	int max = 0;
+	for (int s=0; s<numSequences; s++)
+	    max = Math.max(max, getLength(s));
+	return max;
+    }
+
+    /**
+     * Returns <code>true</code> if any base in any sequence is ambiguous.
+     *
+     * @return   whether any base is ambiguous
+     */
+    public boolean hasAmbiguousBases() {
+	return ambiguous != null;
+    }
+
+    /**
+     * Returns the code of a base: <code>A</code>, <code>C</code>, <code>G</code>, <code>T</code> or <code>N</code>.
+     *
+     * @param   seq   the index of a sequence
+     * @param   pos   a position in the sequence
+     * @return   the code of the base at that position
+     */
+    public int getBase(int seq, int pos) {
+	return code(starts[seq] + pos);
+    }
+
+    /**
+     * Copies the codes of a run of bases of a sequence into an array.
+     *
+     * @param   seq   the index of a sequence
+     * @param   pos   the position of the first base to copy
+     * @param   length   the number of bases to copy
+     * @param   dest   the array to copy the codes into
+     * @param   destOffset   the index in <code>dest</code> of the first code
+     * @throws   IndexOutOfBoundsException   if the run does not lie within the sequence
+     */
+    public void copyBases(int seq, int pos, int length, byte[] dest, int destOffset) {
+	checkRange(seq, pos, pos + length);
+	int p = starts[seq] + pos;
+	int end = p + length;
+	while (p < end) {
+	    // Unpack a word at a time
+	    long word = bases[p >>> 5] >>> ((p & 31) << 1);
+	    int stop = Math.min(end, (p | 31) + 1);
+	    for (; p<stop; p++, word >>>= 2)
+		dest[destOffset++] = (byte)(word & 3);
+	}
+	if (ambiguous != null) {
+	    p = starts[seq] + pos;
+	    for (int q=nextAmbiguous(p); q>=0 && q<end; q=nextAmbiguous(q+1))
+		dest[destOffset - length + (q - p)] = (byte)N;
+	}
+    }
+
+    /**
+     * Returns the codes of a whole sequence, in the specified array if it is long enough.
+     *
+     * @param   seq   the index of a sequence
+     * @param   buffer   an array to reuse, or <code>null</code>
+     * @return   an array whose first <code>getLength(seq)</code> entries are the codes of the sequence
+     */
+    public byte[] getBases(int seq, byte[] buffer) {
+	int length = getLength(seq);
+	if (buffer == null || buffer.length < length)
+	    buffer = new byte[length];
+	copyBases(seq, 0, length, buffer, 0);
+	return buffer;
+    }
+
+    /**
+     * Returns the number of times each code occurs in all sequences, indexed by code.
+     *
+     * @return   an array of 5 counts, the last for ambiguous bases
+     */
+    public long[] getBaseCounts() {
+	long[] counts = new long[5];
+	int total = getTotalLength();
+	for (int p=0; p<total; p++)
+	    counts[code(p)]++;
+	return counts;
+    }
+
+    /**
+     * Returns part of a sequence as a <code>String</code>, with ambiguous bases as <code>N</code>.
+     *
+     * @param   seq   the index of a sequence
+     * @param   start   the position of the first base
+     * @param   end   the position after the last base
+     * @return   the bases from <code>start</code> up to <code>end</code>
+     * @throws   IndexOutOfBoundsException   if <code>start</code> or <code>end</code> is not within the sequence
+     */
+    public String substring(int seq, int start, int end) {
+	checkRange(seq, start, end);
+	char[] chars = new char[end - start];
+	for (int i=0; i<chars.length; i++)
+	    chars[i] = SYMBOLS[getBase(seq, start + i)];
+	return new String(chars);
+    }
+
+    /**
+     * Returns a whole sequence as a <code>String</code>, with ambiguous bases as <code>N</code>.
+     *
+     * @param   seq   the index of a sequence
+     * @return   the sequence
+     */
+    public String getSequence(int seq) {
+	return substring(seq, 0, getLength(seq));
+    }
+
+    /**
+     * Returns the approximate number of bytes used by the packed bases and the ambiguity mask.
+     *
+     * @return   the size of the backing arrays in bytes
+     */
+    public long getBytes() {
+	return 8L * bases.length + 4L * starts.length + (ambiguous == null ? 0 : 8L * ambiguous.length);
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC CLASS METHODS ******************
+     **************************************************************/
+
+    /**
+     * Returns the code of a nucleotide character, or <code>N</code> if it is not one.
+     *
+     * @param   c   a character
+     * @return   the code of <code>c</code>
+     */
+    public static int code(char c) {
+	return c < 128 ? CODES[c] : N;
+    }
+
+    /**
+     * Returns the character for a code.
+     *
+     * @param   code   <code>A</code>, <code>C</code>, <code>G</code>, <code>T</code> or <code>N</code>
+     * @return   the character of the code
+     */
+    public static char symbol(int code) {
+	return SYMBOLS[code];
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE INSTANCE METHODS ***************
+     ***************************************************************/
+
+    /**
+     * Throws an <code>IndexOutOfBoundsException</code> unless positions <code>start</code> up to
+     * <code>end</code> all lie within the specified sequence, so a read never runs into its neighbors.
+     */
+    private void checkRange(int seq, int start, int end) {
+	if (seq < 0 || seq >= numSequences)
+	    throw new IndexOutOfBoundsException("Sequence " + seq + " of " + numSequences);
+	if (start < 0 || start > end || end > getLength(seq))
+	    throw new IndexOutOfBoundsException("Bases " + start + " to " + end + " of sequence " + seq
+						+ ", which has " + getLength(seq));
+    }
+
+    /**
+     * Returns the code of the base at a position of the packed stream.
+     */
+    private int code(int p) {
+	if (ambiguous != null && (ambiguous[p >>> 6] & (1L << p)) != 0)
+	    return N;
+	return (int)(bases[p >>> 5] >>> ((p & 31) << 1)) & 3;
+    }
+
+    /**
+     * Returns the position of the first ambiguous base at or after <code>p</code>, or -1.
+     */
+    private int nextAmbiguous(int p) {
+	int w = p >>> 6;
+	if (w >= ambiguous.length)
+	    return -1;
+	long word = ambiguous[w] & (-1L << p);
+	while (word == 0) {
+	    if (++w == ambiguous.length)
+		return -1;
+	    word = ambiguous[w];
+	}
+	return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+
+
+    /**************************************************************
+     ********************** NESTED CLASSES ************************
+     **************************************************************/
+
+    /**
+     * Packs sequences one base at a time, as they are read.
+     */
+    public static class Builder {
+
+	private int numSequences;
+	private int[] starts = new int[16];
+	private long[] bases = new long[1024];
+	private long[] ambiguous;
+	private int length;
+	private boolean currentAmbiguous;
+
+	/**
+	 * Appends a base to the sequence being built. Characters other than A, C, G, T and U
+	 * (in either case) are recorded as ambiguous.
+	 *
+	 * @param   c   a nucleotide character
+	 */
+	public void append(char c) {
+	    if (length == Integer.MAX_VALUE)
+		throw new IllegalStateException("Too many bases to pack");
+	    if ((length >>> 5) == bases.length)
+		bases = Arrays.copyOf(bases, 2 * bases.length);
+	    int code = code(c);
+	    if (code == N) {
+		if (ambiguous == null)
+		    ambiguous = new long[(bases.length + 1) / 2];
+		else if ((length >>> 6) >= ambiguous.length)
+		    ambiguous = Arrays.copyOf(ambiguous, Math.max((bases.length + 1) / 2, ambiguous.length + 1));
+		ambiguous[length >>> 6] |= 1L << length;
+		currentAmbiguous = true;
+		code = A;  // The 2-bit slot is unused; the mask decides
+	    }
+	    bases[length >>> 5] |= (long)code << ((length & 31) << 1);
+	    length++;
+	}
+
+	/**
+	 * Appends every character of a run of text to the sequence being built.
+	 *
+	 * @param   s   nucleotide characters
+	 */
+	public void append(CharSequence s) {
+	    for (int i=0; i<s.length(); i++)
+		append(s.charAt(i));
+	}
+
+	/**
+	 * Returns the number of bases in the sequence being built.
+	 *
+	 * @return   the length of the current sequence
+	 */
+	public int getCurrentLength() {
+	    return length - starts[numSequences];
+	}
+
+	/**
+	 * Returns <code>true</code> if the sequence being built has an ambiguous base.
+	 *
+	 * @return   whether the current sequence has an ambiguous base
+	 */
+	public boolean isCurrentAmbiguous() {
+	    return currentAmbiguous;
+	}
+
+	/**
+	 * Ends the sequence being built; the next base starts a new sequence.
+	 */
+	public void endSequence() {
+	    if (numSequences + 2 > starts.length)
+		starts = Arrays.copyOf(starts, 2 * starts.length);
+	    starts[++numSequences] = length;
+	    currentAmbiguous = false;
+	}
+
+	/**
+	 * Returns the sequences ended so far. Bases appended since the last <code>endSequence</code>
+	 * are dropped.
+	 *
+	 * @return   the packed sequences
+	 */
+	public PackedSequences build() {
+	    int total = starts[numSequences];
+	    long[] mask = null;
+	    if (ambiguous != null) {
+		mask = Arrays.copyOf(ambiguous, (total + 63) >>> 6);
+		// Drop any bits set by an unfinished sequence
+		if ((total & 63) != 0 && mask.length > 0)
+		    mask[mask.length - 1] &= (1L << total) - 1;
+		boolean any = false;
+		for (long word : mask)
+		    any |= word != 0;
+		if (!any)
+		    mask = null;
+	    }
+	    return new PackedSequences(numSequences, Arrays.copyOf(starts, numSequences + 1),
+				       Arrays.copyOf(bases, (total + 31) >>> 5), mask);
+	}
+    }
+
+}
@@ -0,0 +1,291 @@
+/******************************************************************
+ * The <code>StandardDistanceMetric</code> enumeration holds the distance
+ * metrics offered for clustering expression data.
+ * <p>
+ * Each loop keeps four independent partial sums, so consecutive elements
+ * do not wait on each other's additions and the JIT can unroll and
+ * vectorize the element-wise work. The partial sums are combined in a fixed
+ * order, so a distance never depends on the hardware it is computed on.
+ * <p>
+ * With missing values, Euclidean and Manhattan distances are summed over the
+ * elements present in both vectors and scaled up by the fraction missing, as
+ * Cluster 3.0 does. Two vectors with no element present in both cannot be
+ * compared, and are at an infinite distance. Pearson and cosine distances take the cosine of the
+ * two normalized vectors restricted to the elements present, so a gene with
+ * missing values is not penalized for the part of the other vector it
+ * cannot be compared with.
+ ******************************************************************/
+public enum StandardDistanceMetric implements DistanceMetric {
+
+    /**
+     * The straight-line distance between two vectors
+     */
+    EUCLIDEAN {
+	public double distance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+	    return Math.sqrt(ExpressionMatrix.squaredDistance(a, aOffset, b, bOffset, length));
+	}
+
+	public double distance(double[] a, int aOffset, double[] b, int bOffset, int length, long[] mask, int maskOffset) {
+	    return Math.sqrt(SQUARED_EUCLIDEAN.distance(a, aOffset, b, bOffset, length, mask, maskOffset));
+	}
+
+	public DistanceMetric forComparison() {
+	    return SQUARED_EUCLIDEAN;
+	}
+
+	public double fromComparison(double comparisonDistance) {
+	    return Math.sqrt(comparisonDistance);
+	}
+    },
+
+    /**
+     * The square of the Euclidean distance; it does not obey the triangle inequality
+     */
+    SQUARED_EUCLIDEAN {
+	public double distance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+	    return ExpressionMatrix.squaredDistance(a, aOffset, b, bOffset, length);
+	}
+
+	public double distance(double[] a, int aOffset, double[] b, int bOffset, int length, long[] mask, int maskOffset) {
+	    double sum = 0.0;
+	    for (int start=0, w=maskOffset; start<length; start+=64, w++) {
+		int stop = Math.min(length, start + 64);
+		long bits = mask[w];
+		if (bits == fullWord(stop - start)) {
+		    sum += ExpressionMatrix.squaredDistance(a, aOffset + start, b, bOffset + start, stop - start);
+		    continue;
+		}
+		// Weight each term by its presence bit rather than branching on it
+		for (int j=start; j<stop; j++) {
+		    double d = a[aOffset + j] - b[bOffset + j];
+		    sum += ((bits >>> j) & 1L) * (d * d);
+		}
+	    }
+	    return scaleToFullLength(sum, length, mask, maskOffset);
+	}
+
+	public boolean isTrueMetric() {
+	    return false;
+	}
+    },
+
+    /**
+     * One minus the Pearson correlation of two vectors, from 0 (perfectly correlated) to 2
+     * (perfectly anti-correlated). Vectors are normalized to mean 0 and length 1, so the
+     * correlation is their dot product. A constant vector normalizes to all zeros and is at
+     * distance 1 from everything.
+     */
+    PEARSON {
+	public double distance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+	    return 1.0 - dot(a, aOffset, b, bOffset, length);
+	}
+
+	public double distance(double[] a, int aOffset, double[] b, int bOffset, int length, long[] mask, int maskOffset) {
+	    return maskedCosineDistance(a, aOffset, b, bOffset, length, mask, maskOffset);
+	}
+
+	public boolean isNormalizing() {
+	    return true;
+	}
+
+	public void normalize(double[] v, int offset, int length) {
+	    double sum = 0.0;
+	    for (int j=0; j<length; j++)
+		sum += v[offset + j];
+	    double mean = length > 0 ? sum / length : 0.0;
+	    for (int j=0; j<length; j++)
+		v[offset + j] -= mean;
+	    scaleToUnitLength(v, offset, length);
+	}
+
+	public void normalize(double[] v, int offset, int length, long[] mask, int maskOffset) {
+	    // Missing elements hold 0, so they add nothing to the sum, and are left at 0 when centering
+	    double sum = 0.0;
+	    int present = 0;
+	    for (int j=0; j<length; j++) {
+		sum += v[offset + j];
+		present += (int)((mask[maskOffset + (j >>> 6)] >>> j) & 1L);
+	    }
+	    double mean = present > 0 ? sum / present : 0.0;
+	    for (int j=0; j<length; j++)
+		v[offset + j] -= ((mask[maskOffset + (j >>> 6)] >>> j) & 1L) * mean;
+	    scaleToUnitLength(v, offset, length);
+	}
+
+	public boolean isTrueMetric() {
+	    return false;
+	}
+    },
+
+    /**
+     * One minus the cosine of the angle between two vectors. Vectors are normalized to length 1,
+     * so the cosine is their dot product.
+     */
+    COSINE {
+	public double distance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+	    return 1.0 - dot(a, aOffset, b, bOffset, length);
+	}
+
+	public double distance(double[] a, int aOffset, double[] b, int bOffset, int length, long[] mask, int maskOffset) {
+	    return maskedCosineDistance(a, aOffset, b, bOffset, length, mask, maskOffset);
+	}
+
+	public boolean isNormalizing() {
+	    return true;
+	}
+
+	public void normalize(double[] v, int offset, int length) {
+	    scaleToUnitLength(v, offset, length);
+	}
+
+	public boolean isTrueMetric() {
+	    return false;
+	}
+    },
+
+    /**
+     * The sum of the absolute differences between two vectors
+     */
+    MANHATTAN {
+	public double distance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+	    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+	    int j = 0;
+	    for (; j+3<length; j+=4) {
+		s0 += Math.abs(a[aOffset + j] - b[bOffset + j]);
+		s1 += Math.abs(a[aOffset + j + 1] - b[bOffset + j + 1]);
+		s2 += Math.abs(a[aOffset + j + 2] - b[bOffset + j + 2]);
+		s3 += Math.abs(a[aOffset + j + 3] - b[bOffset + j + 3]);
+	    }
+	    for (; j<length; j++)
+		s0 += Math.abs(a[aOffset + j] - b[bOffset + j]);
+	    return (s0 + s1) + (s2 + s3);
+	}
+
+	public double distance(double[] a, int aOffset, double[] b, int bOffset, int length, long[] mask, int maskOffset) {
+	    double sum = 0.0;
+	    for (int start=0, w=maskOffset; start<length; start+=64, w++) {
+		int stop = Math.min(length, start + 64);
+		long bits = mask[w];
+		if (bits == fullWord(stop - start)) {
+		    sum += distance(a, aOffset + start, b, bOffset + start, stop - start);
+		    continue;
+		}
+		for (int j=start; j<stop; j++)
+		    sum += ((bits >>> j) & 1L) * Math.abs(a[aOffset + j] - b[bOffset + j]);
+	    }
+	    return scaleToFullLength(sum, length, mask, maskOffset);
+	}
+    };
+
+
+
+    /**************************************************************
+     ********************** PUBLIC INSTANCE METHODS ***************
+     **************************************************************/
+
+    public StandardDistanceMetric getStandardMetric() {
+	return this;
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC CLASS METHODS ******************
+     **************************************************************/
+
+    /**
+     * Returns the dot product of two vectors stored in arrays.
+     *
+     * @param   a   an array holding the first vector
+     * @param   aOffset   the index of the first element of the first vector
+     * @param   b   an array holding the second vector
+     * @param   bOffset   the index of the first element of the second vector
+     * @param   length   the number of elements in each vector
+     * @return   the dot product
+     */
+    public static double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+	double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+	int j = 0;
+	for (; j+3<length; j+=4) {
+	    s0 += a[aOffset + j] * b[bOffset + j];
+	    s1 += a[aOffset + j + 1] * b[bOffset + j + 1];
+	    s2 += a[aOffset + j + 2] * b[bOffset + j + 2];
+	    s3 += a[aOffset + j + 3] * b[bOffset + j + 3];
+	}
+	for (; j<length; j++)
+	    s0 += a[aOffset + j] * b[bOffset + j];
+	return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Returns one minus the cosine of the angle between two vectors restricted to the elements whose
+     * presence bit is set, or 1 if either restricted vector is all zeros.
+     *
+     * @param   a   an array holding the first vector
+     * @param   aOffset   the index of the first element of the first vector
+     * @param   b   an array holding the second vector
+     * @param   bOffset   the index of the first element of the second vector
+     * @param   length   the number of elements in each vector
+     * @param   mask   presence bits, as for the masked <code>distance</code>
+     * @param   maskOffset   the index of the first word of the mask
+     * @return   the cosine distance over the present elements
+     */
+    public static double maskedCosineDistance(double[] a, int aOffset, double[] b, int bOffset, int length, long[] mask, int maskOffset) {
+	double ab = 0.0, aa = 0.0, bb = 0.0;
+	for (int j=0; j<length; j++) {
+	    double w = (mask[maskOffset + (j >>> 6)] >>> j) & 1L;
+	    double x = w * a[aOffset + j], y = w * b[bOffset + j];
+	    ab += x * y;
+	    aa += x * x;
+	    bb += y * y;
+	}
+	return (aa == 0.0 || bb == 0.0) ? 1.0 : 1.0 - ab / Math.sqrt(aa * bb);
+    }
+
+    /**
+     * Scales a sum over the present elements of a vector up to what it would be over all
+     * <code>length</code> elements. Returns <code>Double.POSITIVE_INFINITY</code> if no element
+     * is present, since there is then nothing to compare.
+     *
+     * @param   sum   a sum over the present elements
+     * @param   length   the number of elements in the vector
+     * @param   mask   presence bits, as for the masked <code>distance</code>
+     * @param   maskOffset   the index of the first word of the mask
+     * @return   the scaled sum
+     */
+    public static double scaleToFullLength(double sum, int length, long[] mask, int maskOffset) {
+	int present = 0;
+	for (int w=0; w<(length + 63) / 64; w++)
+	    present += Long.bitCount(mask[maskOffset + w]);
+	return present == 0 ? Double.POSITIVE_INFINITY : sum * length / present;
+    }
+
+    /**
+     * Scales a vector in place to length 1, leaving a vector of all zeros unchanged.
+     *
+     * @param   v   an array holding the vector
+     * @param   offset   the index of the first element of the vector
+     * @param   length   the number of elements in the vector
+     */
+    public static void scaleToUnitLength(double[] v, int offset, int length) {
+	double norm = Math.sqrt(dot(v, offset, v, offset, length));
+	if (norm == 0.0)
+	    return;
+	for (int j=0; j<length; j++)
+	    v[offset + j] /= norm;
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE CLASS METHODS ******************
+     ***************************************************************/
+
+    /**
+     * Returns a mask word with the lowest <code>count</code> bits set, for 1 to 64 bits.
+     */
+    private static long fullWord(int count) {
+	return count == 64 ? -1L : (1L << count) - 1;
+    }
+
+}
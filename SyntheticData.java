@@ -0,0 +1,373 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/******************************************************************
+ * The <code>SyntheticData</code> class writes synthetic inputs with a
+ * known answer, for checking the accuracy and speed of the clustering and
+ * motif search algorithms on data of any size:
+ * <ul>
+ * <li>tab-delimited expression tables whose genes are drawn around
+ *     planted cluster centres, with Gaussian noise and optionally some
+ *     values left blank (missing);</li>
+ * <li>FASTA files whose sequences each hold one instance of a planted
+ *     motif, with a chosen fraction of its positions mutated, in a
+ *     background of chosen base composition.</li>
+ * </ul>
+ * Each file is accompanied by <code>fileName.truth</code>, a tab-delimited
+ * file recording the planted cluster of every gene or the planted motif
+ * and the location of its instance in every sequence.
+ * <p>
+ * Files are generated in blocks of rows or sequences, on several threads,
+ * and written in order as the blocks complete, so memory use does not grow
+ * with the size of the file. Each block draws from its own random number
+ * generator seeded from the seed and the block's index, so the same seed
+ * gives the same file however many threads are used.
+ ******************************************************************/
+public class SyntheticData {
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * The number of genes or sequences generated together by one task
+     */
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * The number of bases per line of a FASTA file
+     */
+    private static final int FASTA_LINE_LENGTH = 60;
+
+    /**
+     * The bases, in the order used by background compositions
+     */
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+
+
+
+    /**************************************************************
+     ********************** PUBLIC CLASS METHODS ******************
+     **************************************************************/
+
+    /**
+     * Writes an expression table with planted clusters and its truth file. Cluster centres are
+     * drawn uniformly from [-2, 2] in each experiment; each gene belongs to a cluster chosen
+     * uniformly at random and its values are its centre plus Gaussian noise, written to three
+     * decimal places. The truth file lists each gene with the index of its cluster.
+     *
+     * @param   fileName   the name of the expression table to write
+     * @param   numGenes   the number of genes (rows)
+     * @param   numExperiments   the number of experiments (columns)
+     * @param   numClusters   the number of planted clusters
+     * @param   noise   the standard deviation of the noise added to each value
+     * @param   missingRate   the probability that a value is left blank
+     * @param   seed   the seed that determines the contents of the files
+     * @param   numThreads   the number of threads generating blocks of genes
+     * @exception   IOException   if a file cannot be written
+     */
+    public static void writeExpressionTable(String fileName, int numGenes, int numExperiments, int numClusters,
+					    double noise, double missingRate, long seed, int numThreads) throws IOException {
+	SplittableRandom random = new SplittableRandom(seed);
+	double[][] centres = new double[numClusters][numExperiments];
+	for (double[] centre : centres)
+	    for (int j=0; j<numExperiments; j++)
+		centre[j] = 4.0 * random.nextDouble() - 2.0;
+
+	try (OutputStream table = new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16);
+	     OutputStream truth = new BufferedOutputStream(new FileOutputStream(fileName + ".truth"), 1 << 16)) {
+	    TextBuffer header = new TextBuffer(64 + 8 * numExperiments);
+	    header.append("ORF\tNAME");
+	    for (int j=0; j<numExperiments; j++)
+		header.append("\tEXP").append(j);
+	    header.append('\n');
+	    header.writeTo(table);
+	    truth.write("#gene\tcluster\n".getBytes(StandardCharsets.US_ASCII));
+
+	    writeBlocks(numGenes, seed, numThreads, (blockRandom, start, end) -> {
+		TextBuffer rows = new TextBuffer((end - start) * (24 + 8 * numExperiments));
+		TextBuffer clusters = new TextBuffer((end - start) * 16);
+		for (int i=start; i<end; i++) {
+		    int cluster = blockRandom.nextInt(numClusters);
+		    rows.append("GENE").append(i).append("\tcluster ").append(cluster);
+		    for (int j=0; j<numExperiments; j++) {
+			rows.append('\t');
+			if (missingRate == 0.0 || blockRandom.nextDouble() >= missingRate)
+			    rows.appendFixed3(centres[cluster][j] + noise * blockRandom.nextGaussian());
+		    }
+		    rows.append('\n');
+		    clusters.append("GENE").append(i).append('\t').append(cluster).append('\n');
+		}
+		return new TextBuffer[] {rows, clusters};
+	    }, table, truth);
+	}
+    }
+
+    /**
+     * Writes a FASTA file with a planted motif and its truth file. The motif's consensus is drawn
+     * from the background composition. Each sequence is drawn from the background and gets one
+     * instance of the motif at a uniformly random position, in which each base is replaced with
+     * probability <code>degeneracy</code> by one of the other three bases. The truth file starts
+     * with the consensus and then lists each sequence with the start of its instance (counting
+     * from 0) and the instance itself.
+     *
+     * @param   fileName   the name of the FASTA file to write
+     * @param   numSequences   the number of sequences
+     * @param   length   the length of every sequence
+     * @param   motifLength   the length of the planted motif
+     * @param   degeneracy   the probability that a base of an instance differs from the consensus
+     * @param   background   the relative frequencies of A, C, G and T outside the instances
+     * @param   seed   the seed that determines the contents of the files
+     * @param   numThreads   the number of threads generating blocks of sequences
+     * @exception   IOException   if a file cannot be written
+     */
+    public static void writeFasta(String fileName, int numSequences, int length, int motifLength, double degeneracy,
+				  double[] background, long seed, int numThreads) throws IOException {
+	if (motifLength > length)
+	    throw new IllegalArgumentException("Motif length " + motifLength + " exceeds sequence length " + length);
+	double[] cumulative = new double[4];
+	double total = 0.0;
+	for (int b=0; b<4; b++)
+	    total += background[b];
+	for (int b=0; b<4; b++)
+	    cumulative[b] = (b == 0 ? 0.0 : cumulative[b - 1]) + background[b] / total;
+	cumulative[3] = 1.0;
+
+	SplittableRandom random = new SplittableRandom(seed);
+	byte[] motif = new byte[motifLength];
+	for (int j=0; j<motifLength; j++)
+	    motif[j] = drawBase(random, cumulative);
+
+	try (OutputStream fasta = new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16);
+	     OutputStream truth = new BufferedOutputStream(new FileOutputStream(fileName + ".truth"), 1 << 16)) {
+	    truth.write(("#motif\t" + new String(motif, StandardCharsets.US_ASCII) + "\n#sequence\tstart\tinstance\n").getBytes(StandardCharsets.US_ASCII));
+
+	    writeBlocks(numSequences, seed, numThreads, (blockRandom, start, end) -> {
+		TextBuffer sequences = new TextBuffer((end - start) * (length + length / FASTA_LINE_LENGTH + 24));
+		TextBuffer instances = new TextBuffer((end - start) * (motifLength + 24));
+		byte[] sequence = new byte[length];
+		for (int i=start; i<end; i++) {
+		    for (int j=0; j<length; j++)
+			sequence[j] = drawBase(blockRandom, cumulative);
+		    int position = blockRandom.nextInt(length - motifLength + 1);
+		    for (int j=0; j<motifLength; j++) {
+			byte base = motif[j];
+			if (degeneracy > 0.0 && blockRandom.nextDouble() < degeneracy)
+			    base = otherBase(base, blockRandom.nextInt(3));
+			sequence[position + j] = base;
+		    }
+		    sequences.append(">SEQ").append(i).append('\n');
+		    for (int j=0; j<length; j+=FASTA_LINE_LENGTH)
+			sequences.append(sequence, j, Math.min(length, j + FASTA_LINE_LENGTH)).append('\n');
+		    instances.append("SEQ").append(i).append('\t').append(position).append('\t');
+		    instances.append(sequence, position, position + motifLength).append('\n');
+		}
+		return new TextBuffer[] {sequences, instances};
+	    }, fasta, truth);
+	}
+    }
+
+    /**
+     * Writes synthetic data from the command line:
+     * <pre>
+     *   java SyntheticData expression FILE GENES EXPERIMENTS CLUSTERS [noise=0.3] [missing=0.0] [seed=1] [threads=N]
+     *   java SyntheticData fasta FILE SEQUENCES LENGTH MOTIF_LENGTH [degeneracy=0.1] [background=A,C,G,T] [seed=1] [threads=N]
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length < 5) {
+	    System.err.println("Usage: java SyntheticData expression FILE GENES EXPERIMENTS CLUSTERS [noise=0.3] [missing=0.0] [seed=1] [threads=N]");
+	    System.err.println("       java SyntheticData fasta FILE SEQUENCES LENGTH MOTIF_LENGTH [degeneracy=0.1] [background=A,C,G,T] [seed=1] [threads=N]");
+	    System.exit(1);
+	}
+	Map<String, String> options = new HashMap<String, String>();
+	for (int i=5; i<args.length; i++) {
+	    int equals = args[i].indexOf('=');
+	    if (equals < 0)
+		throw new IllegalArgumentException("Expected name=value but found " + args[i]);
+	    options.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+	}
+	long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+	int numThreads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+	int a = Integer.parseInt(args[2]), b = Integer.parseInt(args[3]), c = Integer.parseInt(args[4]);
+
+	long startTime = System.nanoTime();
+	if (args[0].equals("expression")) {
+	    writeExpressionTable(args[1], a, b, c, Double.parseDouble(options.getOrDefault("noise", "0.3")),
+				 Double.parseDouble(options.getOrDefault("missing", "0.0")), seed, numThreads);
+	} else if (args[0].equals("fasta")) {
+	    String[] frequencies = options.getOrDefault("background", "0.25,0.25,0.25,0.25").split(",");
+	    if (frequencies.length != 4)
+		throw new IllegalArgumentException("Expected four background frequencies (A,C,G,T)");
+	    double[] background = new double[4];
+	    for (int i=0; i<4; i++)
+		background[i] = Double.parseDouble(frequencies[i]);
+	    writeFasta(args[1], a, b, c, Double.parseDouble(options.getOrDefault("degeneracy", "0.1")), background, seed, numThreads);
+	} else {
+	    throw new IllegalArgumentException("Unknown kind of data " + args[0] + "; expected expression or fasta");
+	}
+	System.err.printf("Wrote %s (%d bytes) in %.2f s%n", args[1], new File(args[1]).length(), (System.nanoTime() - startTime) / 1e9);
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE CLASS METHODS ******************
+     ***************************************************************/
+
+    /**
+     * Generates <code>count</code> items in blocks on a pool of threads and writes the blocks to the
+     * two streams in order. At most two blocks per thread are held in memory at once.
+     */
+    private static void writeBlocks(int count, long seed, int numThreads, BlockWriter writer,
+				    OutputStream out, OutputStream truth) throws IOException {
+	int numBlocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+	ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads), r -> {
+	    Thread t = new Thread(r, "synthetic-data");
+	    t.setDaemon(true);
+	    return t;
+	});
+	try {
+	    ArrayDeque<Future<TextBuffer[]>> pending = new ArrayDeque<Future<TextBuffer[]>>();
+	    int next = 0;
+	    while (next < numBlocks || !pending.isEmpty()) {
+		while (next < numBlocks && pending.size() < 2 * Math.max(1, numThreads)) {
+		    int block = next++;
+		    int start = block * BLOCK_SIZE, end = Math.min(count, start + BLOCK_SIZE);
+		    // Each block has its own generator, so the output does not depend on the number of threads
+		    SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + block);
+		    pending.add(pool.submit(() -> writer.write(random, start, end)));
+		}
+		TextBuffer[] buffers = pending.remove().get();
+		buffers[0].writeTo(out);
+		buffers[1].writeTo(truth);
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Interrupted while generating data");
+	} catch (ExecutionException e) {
+	    throw new IOException("Could not generate data", e.getCause());
+	} finally {
+	    pool.shutdownNow();
+	}
+    }
+
+    /**
+     * Draws a base from a cumulative distribution over A, C, G and T.
+     */
+    private static byte drawBase(SplittableRandom random, double[] cumulative) {
+	double u = random.nextDouble();
+	int b = 0;
+	while (b < 3 && u >= cumulative[b])
+	    b++;
+	return BASES[b];
+    }
+
+    /**
+     * Returns the <code>which</code>-th (0 to 2) of the three bases other than <code>base</code>.
+     */
+    private static byte otherBase(byte base, int which) {
+	for (byte other : BASES) {
+	    if (other != base && which-- == 0)
+		return other;
+	}
+	return base;
+    }
+
+
+
+    /**************************************************************
+     ********************** NESTED CLASSES ************************
+     **************************************************************/
+
+    /**
+     * Generates the text for the items from <code>start</code> (inclusive) to <code>end</code>
+     * (exclusive) of a file, returning one buffer for the file itself and one for its truth file.
+     */
+    private interface BlockWriter {
+	TextBuffer[] write(SplittableRandom random, int start, int end);
+    }
+
+    /**
+     * A growable buffer of ASCII text that formats numbers without creating <code>Strings</code>.
+     */
+    private static final class TextBuffer {
+
+	private byte[] bytes;
+	private int size;
+
+	TextBuffer(int capacity) {
+	    bytes = new byte[Math.max(16, capacity)];
+	}
+
+	TextBuffer append(char c) {
+	    ensure(1);
+	    bytes[size++] = (byte)c;
+	    return this;
+	}
+
+	TextBuffer append(String s) {
+	    ensure(s.length());
+	    for (int i=0; i<s.length(); i++)
+		bytes[size++] = (byte)s.charAt(i);
+	    return this;
+	}
+
+	TextBuffer append(byte[] b, int start, int end) {
+	    ensure(end - start);
+	    System.arraycopy(b, start, bytes, size, end - start);
+	    size += end - start;
+	    return this;
+	}
+
+	TextBuffer append(long n) {
+	    ensure(20);
+	    if (n < 0) {
+		bytes[size++] = '-';
+		n = -n;
+	    }
+	    int first = size;
+	    do {
+		bytes[size++] = (byte)('0' + n % 10);
+		n /= 10;
+	    } while (n > 0);
+	    // The digits were written least significant first
+	    for (int i=first, j=size-1; i<j; i++, j--) {
+		byte t = bytes[i];
+		bytes[i] = bytes[j];
+		bytes[j] = t;
+	    }
+	    return this;
+	}
+
+	/**
+	 * Appends a number rounded to three decimal places, such as -0.250.
+	 */
+	TextBuffer appendFixed3(double value) {
+	    long thousandths = Math.round(value * 1000.0);
+	    if (thousandths < 0) {
+		append('-');
+		thousandths = -thousandths;
+	    }
+	    append(thousandths / 1000).append('.');
+	    long fraction = thousandths % 1000;
+	    ensure(3);
+	    bytes[size++] = (byte)('0' + fraction / 100);
+	    bytes[size++] = (byte)('0' + fraction / 10 % 10);
+	    bytes[size++] = (byte)('0' + fraction % 10);
+	    return this;
+	}
+
+	void writeTo(OutputStream out) throws IOException {
+	    out.write(bytes, 0, size);
+	}
+
+	private void ensure(int extra) {
+	    if (size + extra > bytes.length)
+		bytes = Arrays.copyOf(bytes, Math.max(size + extra, 2 * bytes.length));
+	}
+    }
+
+}
@@ -0,0 +1,218 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the clustering algorithms on synthetic expression tables.
+ * Sizes are JMH parameters, so larger runs need no code changes, e.g.
+ * <code>-p genes=50000 -p experiments=100</code>.
+ */
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dclustering.cache=false"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ClusteringBenchmarks {
+
+    private static final MethodHandle READ_MATRIX = Reflection.staticMethod("Clustering", "readExpressionMatrix", Reflection.type("ExpressionMatrix"), String.class);
+
+    /**
+     * One pass of k means assignment over every gene, on a clustering that has
+     * already converged so every pass does the same work.
+     */
+    @State(Scope.Benchmark)
+    public static class KMeansState {
+        private static final MethodHandle CONSTRUCTOR = Reflection.constructor("KMeans_Clustering", Reflection.type("ExpressionMatrix"), int.class);
+        private static final MethodHandle FILE_CONSTRUCTOR = Reflection.constructor("KMeans_Clustering", String.class, int.class);
+        private static final MethodHandle SET_SEED = Reflection.method("KMeans_Clustering", "setSeed", void.class, long.class);
+        private static final MethodHandle SET_SEEDING = Reflection.method("KMeans_Clustering", "setSeeding", void.class, Reflection.type("KMeans_Clustering$Seeding"));
+        private static final MethodHandle K_MEANS = Reflection.method("KMeans_Clustering", "kMeans", void.class);
+        static final MethodHandle ASSIGN = Reflection.method("KMeans_Clustering", "assignGenesToClusters", boolean.class);
+
+        @Param({"10000"})
+        int genes;
+
+        @Param({"20"})
+        int experiments;
+
+        @Param({"10"})
+        int clusters;
+
+        Object kMeans;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            Path file = SyntheticInputs.expressionTable(genes, experiments, clusters, 42);
+            if (!Reflection.isSupported(CONSTRUCTOR)) {
+                // Trees from before ExpressionMatrix read the file and run k means in the constructor
+                kMeans = FILE_CONSTRUCTOR.invoke(file.toString(), clusters);
+                return;
+            }
+            kMeans = CONSTRUCTOR.invoke(READ_MATRIX.invoke(file.toString()), clusters);
+            SET_SEED.invoke(kMeans, 42L);
+            SET_SEEDING.invoke(kMeans, Reflection.enumConstant("KMeans_Clustering$Seeding", "KMEANS_PLUS_PLUS"));
+            K_MEANS.invoke(kMeans);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean kMeansAssignGenesToClusters(KMeansState state) throws Throwable {
+        return (boolean)KMeansState.ASSIGN.invoke(state.kMeans);
+    }
+
+    /**
+     * The first merges of the SCAN engine, from one cluster per gene. Each
+     * <code>mergeTwoClosestClusters</code> call depends on the state left by
+     * the last, so every invocation starts from a fresh clustering, whose
+     * distance matrix is computed outside the timed region, and makes
+     * <code>MERGES</code> calls; the score is the time of one call.
+     */
+    @State(Scope.Benchmark)
+    public static class MergeState {
+        static final int MERGES = 100;
+
+        private static final MethodHandle INITIALLY_ASSIGN = Reflection.method("Hierarchical_Clustering", "initiallyAssignOneGeneToEachCluster", void.class);
+        static final MethodHandle MERGE = Reflection.method("Hierarchical_Clustering", "mergeTwoClosestClusters", void.class);
+
+        @Param({"2000"})
+        int genes;
+
+        @Param({"20"})
+        int experiments;
+
+        Object matrix;
+        Object hierarchical;
+
+        @Setup(Level.Trial)
+        public void readMatrix() throws Throwable {
+            matrix = READ_MATRIX.invoke(SyntheticInputs.expressionTable(genes, experiments, 10, 42).toString());
+        }
+
+        @Setup(Level.Invocation)
+        public void newClustering() throws Throwable {
+            hierarchical = HierarchicalState.CONSTRUCTOR.invoke(matrix, 10);
+            HierarchicalState.SET_ENGINE.invoke(hierarchical, Reflection.enumConstant("Hierarchical_Clustering$Engine", "SCAN"));
+            INITIALLY_ASSIGN.invoke(hierarchical);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @OperationsPerInvocation(MergeState.MERGES)
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 10, batchSize = 1)
+    public Object hierarchicalMergeTwoClosestClusters(MergeState state) throws Throwable {
+        for (int i = 0; i < MergeState.MERGES; i++) {
+            MergeState.MERGE.invoke(state.hierarchical);
+        }
+        return state.hierarchical;
+    }
+
+    /**
+     * A complete agglomerative clustering into 10 clusters: the distance
+     * matrix and every merge. Only the NN_CHAIN engine runs by default; add
+     * <code>-p engine=SCAN,NN_CHAIN</code> to compare it with the scan, whose
+     * run takes tens of seconds at the default size.
+     */
+    @State(Scope.Benchmark)
+    public static class HierarchicalState {
+        static final MethodHandle CONSTRUCTOR = Reflection.constructor("Hierarchical_Clustering", Reflection.type("ExpressionMatrix"), int.class);
+        static final MethodHandle SET_ENGINE = Reflection.method("Hierarchical_Clustering", "setEngine", void.class, Reflection.type("Hierarchical_Clustering$Engine"));
+        static final MethodHandle HIERARCHICAL = Reflection.method("Hierarchical_Clustering", "hierarchical", void.class);
+
+        @Param({"2000"})
+        int genes;
+
+        @Param({"20"})
+        int experiments;
+
+        @Param({"NN_CHAIN"})
+        String engine;
+
+        Object matrix;
+        Object hierarchical;
+
+        @Setup(Level.Trial)
+        public void readMatrix() throws Throwable {
+            matrix = READ_MATRIX.invoke(SyntheticInputs.expressionTable(genes, experiments, 10, 42).toString());
+        }
+
+        @Setup(Level.Invocation)
+        public void newClustering() throws Throwable {
+            hierarchical = CONSTRUCTOR.invoke(matrix, 10);
+            SET_ENGINE.invoke(hierarchical, Reflection.enumConstant("Hierarchical_Clustering$Engine", engine));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 10, batchSize = 1)
+    public Object hierarchicalCluster(HierarchicalState state) throws Throwable {
+        HierarchicalState.HIERARCHICAL.invoke(state.hierarchical);
+        return state.hierarchical;
+    }
+
+    /**
+     * A complete <code>cast</code> run on a table read beforehand. The run
+     * leaves no unassigned genes behind, so each invocation builds a new
+     * instance. Trees without the matrix constructor read the table and run
+     * <code>cast</code> in their constructor, so with them the score includes
+     * parsing the table.
+     */
+    @State(Scope.Benchmark)
+    public static class CastState {
+        private static final MethodHandle CONSTRUCTOR = Reflection.constructor("CAST_Clustering", Reflection.type("ExpressionMatrix"), double.class);
+        private static final MethodHandle FILE_CONSTRUCTOR = Reflection.constructor("CAST_Clustering", String.class, double.class);
+        static final MethodHandle CAST = Reflection.method("CAST_Clustering", "cast", void.class);
+
+        @Param({"2000"})
+        int genes;
+
+        @Param({"20"})
+        int experiments;
+
+        @Param({"3.0"})
+        double threshold;
+
+        String fileName;
+        Object matrix;
+        Object cast;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            fileName = SyntheticInputs.expressionTable(genes, experiments, 10, 42).toString();
+            if (Reflection.isSupported(CONSTRUCTOR)) {
+                matrix = READ_MATRIX.invoke(fileName);
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void newClustering() throws Throwable {
+            cast = matrix == null ? null : CONSTRUCTOR.invoke(matrix, threshold);
+        }
+
+        Object run() throws Throwable {
+            if (cast == null) {
+                return FILE_CONSTRUCTOR.invoke(fileName, threshold);
+            }
+            CAST.invoke(cast);
+            return cast;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 10, batchSize = 1)
+    public Object castCast(CastState state) throws Throwable {
+        return state.run();
+    }
+}
@@ -0,0 +1,126 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the EM and Gibbs motif searches on synthetic FASTA files.
+ * Sizes are JMH parameters, e.g. <code>-p sequences=1000 -p length=2000</code>.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MotifSearchBenchmarks {
+
+    private static final MethodHandle EM_CONSTRUCTOR = Reflection.constructor("EM_MotifSearch", String.class, int.class);
+    private static final MethodHandle GIBBS_CONSTRUCTOR = Reflection.constructor("Gibbs_MotifSearch", String.class, int.class);
+    private static final MethodHandle SET_RANDOM_LOCATIONS = Reflection.method("EM_MotifSearch", "setRandomLocationsForMotifInstances", void.class);
+    private static final MethodHandle DETERMINE_MATRIX = Reflection.method("EM_MotifSearch", "determineMatrixModel", void.class);
+    private static final MethodHandle DETERMINE_INSTANCES = Reflection.method("EM_MotifSearch", "determineMotifInstances", void.class);
+    private static final MethodHandle SCORE = Reflection.method("EM_MotifSearch", "getScoreForMotifInstance", double.class, String.class);
+    private static final MethodHandle SAMPLE = Reflection.method("Gibbs_MotifSearch", "getIndexViaSampling", int.class, double[].class, int.class, double.class, SplittableRandom.class);
+    private static final MethodHandle GET_SCORER = Reflection.method("MotifSearch", "getLogOddsScorer", Reflection.type("LogOddsScorer"));
+    private static final MethodHandle SCORE_WINDOWS = Reflection.method("LogOddsScorer", "scoreWindows", int.class, byte[].class, int.class, double[].class);
+
+    @Param({"200"})
+    int sequences;
+
+    @Param({"1000"})
+    int length;
+
+    @Param({"12"})
+    int motifLength;
+
+    private Object em;
+    private Object gibbs;
+    private String[] windows;
+    private int nextWindow;
+    private double[] weights;
+    private double weightSum;
+    private SplittableRandom random;
+    private Object scorer;
+    private byte[] bases;
+    private double[] windowScores;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Path file = SyntheticInputs.fasta(sequences, length, motifLength, 42);
+        em = EM_CONSTRUCTOR.invoke(file.toString(), motifLength);
+        SET_RANDOM_LOCATIONS.invoke(em);
+        DETERMINE_MATRIX.invoke(em);
+        gibbs = GIBBS_CONSTRUCTOR.invoke(file.toString(), motifLength);
+        SET_RANDOM_LOCATIONS.invoke(gibbs);
+        DETERMINE_MATRIX.invoke(gibbs);
+
+        // Every window of the first sequence, weighted by its probability under the matrix
+        List<String> lines = Files.readAllLines(file);
+        String first = lines.get(1);
+        windows = new String[first.length() - motifLength + 1];
+        weights = new double[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = first.substring(i, i + motifLength);
+            weights[i] = (double)SCORE.invoke(gibbs, windows[i]);
+            weightSum += weights[i];
+        }
+        random = new SplittableRandom(42);
+        if (Reflection.isSupported(GET_SCORER)) {
+            scorer = GET_SCORER.invoke(em);
+        }
+        bases = new byte[first.length()];
+        for (int i = 0; i < bases.length; i++) {
+            bases[i] = (byte)"ACGT".indexOf(first.charAt(i));
+        }
+        windowScores = new double[windows.length];
+    }
+
+    /**
+     * One E step: the best-scoring window of every sequence under a fixed matrix.
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object emDetermineMotifInstances() throws Throwable {
+        DETERMINE_INSTANCES.invoke(em);
+        return em;
+    }
+
+    /**
+     * The score of one window, cycling through the windows of a sequence.
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public double emGetScoreForMotifInstance() throws Throwable {
+        String window = windows[nextWindow];
+        nextWindow = nextWindow + 1 == windows.length ? 0 : nextWindow + 1;
+        return (double)SCORE.invoke(em, window);
+    }
+
+    /**
+     * Log-odds scores of every window of a sequence, from its base codes.
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public double[] logOddsScoreWindows() throws Throwable {
+        SCORE_WINDOWS.invoke(scorer, bases, bases.length, windowScores);
+        return windowScores;
+    }
+
+    /**
+     * One draw from the weights of every window of a sequence, as the Gibbs E step makes it.
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int gibbsGetIndexViaSampling() throws Throwable {
+        return (int)SAMPLE.invoke(gibbs, weights, weights.length, weightSum, random);
+    }
+}
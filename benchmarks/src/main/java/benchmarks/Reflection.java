@@ -0,0 +1,152 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Looks up the classes under test, which live in the default package and so
+ * cannot be named from a benchmark (JMH refuses benchmarks in the default
+ * package). Handles are kept in <code>static final</code> fields, where the
+ * JIT inlines them like direct calls.
+ *
+ * A class or method missing from the tree on the class path is an error,
+ * raised as soon as the class that looks it up is loaded, so a renamed or changed
+ * method can never be benchmarked by a stand-in. Only when the system
+ * property <code>benchmarks.oldTree</code> is <code>true</code> is a missing
+ * one replaced by a handle that throws
+ * <code>UnsupportedOperationException</code> when invoked, so that the suite
+ * can run against older trees, such as the one recorded in
+ * <code>baseline/</code>: only the benchmarks that call it fail, and
+ * benchmarks may check <code>isSupported</code> to fall back to an older API.
+ */
+final class Reflection {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    /**
+     * Whether the tree on the class path may lack classes and methods that the current tree has
+     */
+    static final boolean OLD_TREE = Boolean.getBoolean("benchmarks.oldTree");
+
+    private static final Set<MethodHandle> UNSUPPORTED = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    private Reflection() {
+    }
+
+    /**
+     * Returns the class with the specified name in the default package, or <code>null</code> if
+     * the tree on the class path has no such class. Handles asked for with a <code>null</code>
+     * type are missing too.
+     */
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a handle on a public constructor.
+     */
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        Class<?> type = type(className);
+        try {
+            if (type != null && !hasMissing(parameterTypes)) {
+                return LOOKUP.findConstructor(type, MethodType.methodType(void.class, parameterTypes));
+            }
+        } catch (ReflectiveOperationException e) {
+            // Not in this tree
+        }
+        return unsupported("constructor " + className, Object.class, parameterTypes);
+    }
+
+    /**
+     * Returns a handle on a public instance method.
+     */
+    static MethodHandle method(String className, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        Class<?> type = type(className);
+        try {
+            if (type != null && returnType != null && !hasMissing(parameterTypes)) {
+                return LOOKUP.findVirtual(type, name, MethodType.methodType(returnType, parameterTypes));
+            }
+        } catch (ReflectiveOperationException e) {
+            // Not in this tree
+        }
+        Class<?>[] withReceiver = new Class<?>[parameterTypes.length + 1];
+        withReceiver[0] = Object.class;
+        System.arraycopy(parameterTypes, 0, withReceiver, 1, parameterTypes.length);
+        return unsupported("method " + className + "." + name, returnType, withReceiver);
+    }
+
+    /**
+     * Returns a handle on a public static method.
+     */
+    static MethodHandle staticMethod(String className, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        Class<?> type = type(className);
+        try {
+            if (type != null && returnType != null && !hasMissing(parameterTypes)) {
+                return LOOKUP.findStatic(type, name, MethodType.methodType(returnType, parameterTypes));
+            }
+        } catch (ReflectiveOperationException e) {
+            // Not in this tree
+        }
+        return unsupported("static method " + className + "." + name, returnType, parameterTypes);
+    }
+
+    /**
+     * Returns <code>true</code> unless the handle stands in for something missing from the tree.
+     */
+    static boolean isSupported(MethodHandle handle) {
+        return !UNSUPPORTED.contains(handle);
+    }
+
+    /**
+     * Returns the constant with the specified name of an enum nested in or named by <code>enumName</code>.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object enumConstant(String enumName, String constant) {
+        Class<?> type = type(enumName);
+        if (type == null) {
+            throw OLD_TREE ? new UnsupportedOperationException("No enum " + enumName + " in this tree")
+                    : new IllegalStateException("No enum " + enumName + " in the tree on the class path");
+        }
+        return Enum.valueOf((Class<? extends Enum>)type, constant);
+    }
+
+    private static boolean hasMissing(Class<?>[] types) {
+        for (Class<?> type : types) {
+            if (type == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a handle taking the specified parameters that throws when invoked, or throws
+     * <code>IllegalStateException</code> right away unless an old tree is expected. Missing types
+     * are taken as <code>Object</code>, which any caller's arguments convert to.
+     */
+    private static MethodHandle unsupported(String what, Class<?> returnType, Class<?>[] parameterTypes) {
+        Class<?>[] types = parameterTypes.clone();
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == null) {
+                types[i] = Object.class;
+            }
+        }
+        if (!OLD_TREE) {
+            throw new IllegalStateException("No public " + what + " in the tree on the class path;"
+                    + " run with -Dbenchmarks.oldTree=true to benchmark an older tree");
+        }
+        UnsupportedOperationException e = new UnsupportedOperationException("No public " + what + " in this tree");
+        MethodHandle thrower = MethodHandles.throwException(returnType == null || returnType == void.class ? Object.class : returnType, UnsupportedOperationException.class).bindTo(e);
+        MethodHandle handle = MethodHandles.dropArguments(thrower, 0, types);
+        UNSUPPORTED.add(handle);
+        return handle;
+    }
+}
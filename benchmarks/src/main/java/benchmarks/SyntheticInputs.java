@@ -0,0 +1,76 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * Writes the input files the benchmarks run on. Inputs depend only on their
+ * size parameters and a seed, so every run and every fork sees the same data.
+ */
+final class SyntheticInputs {
+
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+    private SyntheticInputs() {
+    }
+
+    /**
+     * Writes a tab-delimited expression table of <code>genes</code> rows and
+     * <code>experiments</code> columns, with the genes spread around
+     * <code>clusters</code> random centres, and returns its path.
+     */
+    static Path expressionTable(int genes, int experiments, int clusters, long seed) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        double[][] centres = new double[clusters][experiments];
+        for (double[] centre : centres)
+            for (int j = 0; j < experiments; j++)
+                centre[j] = 4.0 * random.nextDouble() - 2.0;
+        Path file = Files.createTempFile("expression", ".txt");
+        file.toFile().deleteOnExit();
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("Gene\tFunction");
+            for (int j = 0; j < experiments; j++)
+                out.write("\tE" + j);
+            out.newLine();
+            for (int i = 0; i < genes; i++) {
+                double[] centre = centres[i % clusters];
+                out.write("G" + i + "\tcluster " + (i % clusters));
+                for (int j = 0; j < experiments; j++)
+                    out.write(String.format("\t%.3f", centre[j] + 0.3 * random.nextGaussian()));
+                out.newLine();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes a FASTA file of <code>sequences</code> uniformly random sequences of
+     * <code>length</code> bases, each with one copy of a random motif of
+     * <code>motifLength</code> bases planted at a random position, and returns its path.
+     */
+    static Path fasta(int sequences, int length, int motifLength, long seed) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        char[] motif = new char[motifLength];
+        for (int j = 0; j < motifLength; j++)
+            motif[j] = BASES[random.nextInt(4)];
+        Path file = Files.createTempFile("sequences", ".fa");
+        file.toFile().deleteOnExit();
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            char[] sequence = new char[length];
+            for (int i = 0; i < sequences; i++) {
+                for (int j = 0; j < length; j++)
+                    sequence[j] = BASES[random.nextInt(4)];
+                System.arraycopy(motif, 0, sequence, random.nextInt(length - motifLength + 1), motifLength);
+                out.write(">sequence" + i);
+                out.newLine();
+                out.write(sequence);
+                out.newLine();
+            }
+        }
+        return file;
+    }
+}
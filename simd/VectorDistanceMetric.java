@@ -0,0 +1,172 @@
+import jdk.incubator.vector.*;
+
+/******************************************************************
+ * A <code>VectorDistanceMetric</code> computes one of the standard
+ * distance metrics with explicit SIMD instructions from the
+ * <code>jdk.incubator.vector</code> module.
+ * <p>
+ * This class is kept apart from the other sources because the module
+ * must be named when compiling and running:
+ * <pre>
+ *   javac --add-modules jdk.incubator.vector -d classes *.java simd/*.java
+ *   java --add-modules jdk.incubator.vector -Dclustering.simd=true -cp classes ...
+ * </pre>
+ * <code>DistanceMetric.forName</code> falls back to
+ * <code>StandardDistanceMetric</code> when it is missing. The lanes are
+ * summed in a different order from the scalar loops, so distances may
+ * differ from them in the last bits.
+ ******************************************************************/
+public class VectorDistanceMetric implements DistanceMetric {
+
+    /**************************************************************
+     ********************** CLASS VARIABLES ***********************
+     **************************************************************/
+
+    /**
+     * The widest vector shape the hardware supports
+     */
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+
+
+    /**************************************************************
+     ********************** INSTANCE VARIABLES ********************
+     **************************************************************/
+
+    /**
+     * The metric computed, which also supplies normalization
+     */
+    private StandardDistanceMetric standard;
+
+
+
+    /**************************************************************
+     ********************** CONSTRUCTOR ***************************
+     **************************************************************/
+
+    /**
+     * Creates a <code>VectorDistanceMetric</code> that computes the specified metric.
+     *
+     * @param   standard   the metric to compute
+     */
+    public VectorDistanceMetric(StandardDistanceMetric standard) {
+	this.standard = standard;
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC INSTANCE METHODS ***************
+     **************************************************************/
+
+    public double distance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+	switch (standard) {
+	case EUCLIDEAN:
+	    return Math.sqrt(squaredDistance(a, aOffset, b, bOffset, length));
+	case SQUARED_EUCLIDEAN:
+	    return squaredDistance(a, aOffset, b, bOffset, length);
+	case MANHATTAN:
+	    return manhattan(a, aOffset, b, bOffset, length);
+	default:
+	    return 1.0 - dot(a, aOffset, b, bOffset, length);
+	}
+    }
+
+    public double distance(double[] a, int aOffset, double[] b, int bOffset, int length, long[] mask, int maskOffset) {
+	// Rows with missing values are rare enough to leave to the scalar loops
+	return standard.distance(a, aOffset, b, bOffset, length, mask, maskOffset);
+    }
+
+    public boolean isNormalizing() {
+	return standard.isNormalizing();
+    }
+
+    public void normalize(double[] v, int offset, int length) {
+	standard.normalize(v, offset, length);
+    }
+
+    public void normalize(double[] v, int offset, int length, long[] mask, int maskOffset) {
+	standard.normalize(v, offset, length, mask, maskOffset);
+    }
+
+    public boolean isTrueMetric() {
+	return standard.isTrueMetric();
+    }
+
+    public DistanceMetric forComparison() {
+	DistanceMetric comparison = standard.forComparison();
+	return comparison == standard ? this : new VectorDistanceMetric((StandardDistanceMetric)comparison);
+    }
+
+    public StandardDistanceMetric getStandardMetric() {
+	return standard;
+    }
+
+    public double fromComparison(double comparisonDistance) {
+	return standard.fromComparison(comparisonDistance);
+    }
+
+    public String toString() {
+	return standard + " (SIMD)";
+    }
+
+
+
+    /**************************************************************
+     ********************** PUBLIC CLASS METHODS ******************
+     **************************************************************/
+
+    /**
+     * Returns the SIMD version of the specified metric; called by <code>DistanceMetric.forName</code>.
+     *
+     * @param   standard   a metric
+     * @return   a <code>DistanceMetric</code> computing that metric with SIMD instructions
+     */
+    public static DistanceMetric forStandard(StandardDistanceMetric standard) {
+	return new VectorDistanceMetric(standard);
+    }
+
+
+
+    /***************************************************************
+     ********************** PRIVATE CLASS METHODS ******************
+     ***************************************************************/
+
+    private static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+	DoubleVector sum = DoubleVector.zero(SPECIES);
+	int j = 0;
+	for (int bound = SPECIES.loopBound(length); j<bound; j+=SPECIES.length()) {
+	    DoubleVector d = DoubleVector.fromArray(SPECIES, a, aOffset + j).sub(DoubleVector.fromArray(SPECIES, b, bOffset + j));
+	    sum = d.fma(d, sum);
+	}
+	double result = sum.reduceLanes(VectorOperators.ADD);
+	for (; j<length; j++) {
+	    double d = a[aOffset + j] - b[bOffset + j];
+	    result += d * d;
+	}
+	return result;
+    }
+
+    private static double manhattan(double[] a, int aOffset, double[] b, int bOffset, int length) {
+	DoubleVector sum = DoubleVector.zero(SPECIES);
+	int j = 0;
+	for (int bound = SPECIES.loopBound(length); j<bound; j+=SPECIES.length())
+	    sum = sum.add(DoubleVector.fromArray(SPECIES, a, aOffset + j).sub(DoubleVector.fromArray(SPECIES, b, bOffset + j)).abs());
+	double result = sum.reduceLanes(VectorOperators.ADD);
+	for (; j<length; j++)
+	    result += Math.abs(a[aOffset + j] - b[bOffset + j]);
+	return result;
+    }
+
+    private static double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+	DoubleVector sum = DoubleVector.zero(SPECIES);
+	int j = 0;
+	for (int bound = SPECIES.loopBound(length); j<bound; j+=SPECIES.length())
+	    sum = DoubleVector.fromArray(SPECIES, a, aOffset + j).fma(DoubleVector.fromArray(SPECIES, b, bOffset + j), sum);
+	double result = sum.reduceLanes(VectorOperators.ADD);
+	for (; j<length; j++)
+	    result += a[aOffset + j] * b[bOffset + j];
+	return result;
+    }
+
+}